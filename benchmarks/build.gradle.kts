@@ -0,0 +1,19 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    jmh(project(":tiny-s3-lib"))
+}
+
+jmh {
+    jmhVersion = "1.37"
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+}
+
+tasks.withType<PublishToMavenRepository>().configureEach {
+    enabled = false
+}
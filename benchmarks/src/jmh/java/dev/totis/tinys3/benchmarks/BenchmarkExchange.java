@@ -0,0 +1,115 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.http.S3HttpExchange;
+import dev.totis.tinys3.http.S3HttpHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** In-process exchange so benchmarks measure tiny-s3 itself instead of the HTTP stack. */
+public class BenchmarkExchange implements S3HttpExchange {
+  private final String method;
+  private final URI uri;
+  private final Headers requestHeaders = new Headers();
+  private final Headers responseHeaders = new Headers();
+  private InputStream requestBody = InputStream.nullInputStream();
+  private OutputStream responseBody = OutputStream.nullOutputStream();
+  private int responseCode;
+
+  public BenchmarkExchange(String method, String uri) {
+    this.method = method;
+    this.uri = URI.create(uri);
+  }
+
+  public BenchmarkExchange header(String name, String value) {
+    requestHeaders.addHeader(name, value);
+    return this;
+  }
+
+  public BenchmarkExchange body(byte[] body) {
+    this.requestBody = new ByteArrayInputStream(body);
+    return this;
+  }
+
+  public BenchmarkExchange responseBody(OutputStream responseBody) {
+    this.responseBody = responseBody;
+    return this;
+  }
+
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public S3HttpHeaders getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public S3HttpHeaders getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return responseBody;
+  }
+
+  @Override
+  public void sendResponseHeaders(int rCode, long responseLength) {
+    this.responseCode = rCode;
+  }
+
+  @Override
+  public void close() {}
+
+  private static class Headers implements S3HttpHeaders {
+    private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    @Override
+    public void addHeader(String key, String value) {
+      headers.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public boolean containsHeader(String headerName) {
+      return headers.containsKey(headerName);
+    }
+
+    @Override
+    public String getFirst(String header) {
+      List<String> values = headers.get(header);
+      return values == null ? null : values.getFirst();
+    }
+
+    @Override
+    public void forEach(HeaderConsumer consumer) {
+      headers.forEach(consumer::accept);
+    }
+
+    @Override
+    public Iterable<? extends Map.Entry<String, List<String>>> entrySet() {
+      return headers.entrySet();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.io.Durability;
+import dev.totis.tinys3.io.NioFileOperations;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PUT to disk storage with each {@link Durability}, alone and from many threads. Sampling gives
+ * the latency percentiles next to the throughput; both depend far more on the disk than on tiny-s3.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DurabilityBenchmark {
+
+  @Param({"NONE", "FSYNC", "GROUP_COMMIT"})
+  public Durability durability;
+
+  @Param({"4096"})
+  public int size;
+
+  private Path storageDir;
+  private DefaultS3FileOperations fileOperations;
+  private byte[] body;
+
+  /** A key per thread and call, so writers never contend for the same object. */
+  @State(Scope.Thread)
+  public static class Keys {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    // All in one directory, which is what group commit forces once for many writers
+    private final String prefix = "thread-" + THREADS.incrementAndGet() + "-";
+    private int next;
+
+    String next() {
+      return prefix + (next++ % 10_000);
+    }
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    body = new byte[size];
+    new Random(42).nextBytes(body);
+    storageDir = Files.createTempDirectory("tinys3-bench-");
+    fileOperations =
+        new DefaultS3FileOperations(
+            new NioFileOperations(
+                storageDir.toString(), durability, NioFileOperations.DEFAULT_COMMIT_WINDOW));
+    fileOperations.createDirectory("bucket");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(storageDir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public String put(Keys keys) throws Exception {
+    return fileOperations.handlePutObject("bucket", keys.next(), new ByteArrayInputStream(body));
+  }
+
+  @Benchmark
+  @Threads(32)
+  public String putConcurrently(Keys keys) throws Exception {
+    return fileOperations.handlePutObject("bucket", keys.next(), new ByteArrayInputStream(body));
+  }
+}
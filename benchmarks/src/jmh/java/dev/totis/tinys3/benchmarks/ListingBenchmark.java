@@ -0,0 +1,72 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.S3Context;
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.response.BucketListResult;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Listing a page of a large bucket and serializing the page to XML. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListingBenchmark {
+  private static final byte[] BODY = {1};
+
+  @Param({"10000", "1000000"})
+  public int keys;
+
+  private DefaultS3FileOperations fileOperations;
+  private S3Context firstPage;
+  private S3Context prefixPage;
+  private BucketListResult page;
+
+  @Setup
+  public void setUp() throws Exception {
+    InMemoryFileOperations fileOps = new InMemoryFileOperations();
+    fileOps.createDirectory("bucket");
+    for (int i = 0; i < keys; i++) {
+      fileOps.writeFile(fileOps.getObjectPath("bucket", key(i)), BODY);
+    }
+    fileOperations = new DefaultS3FileOperations(fileOps);
+
+    firstPage = S3Context.create(new BenchmarkExchange("GET", "/bucket?list-type=2"));
+    prefixPage =
+        S3Context.create(
+            new BenchmarkExchange("GET", "/bucket?list-type=2&prefix=dir-7/&delimiter=/"));
+    page = fileOperations.getBucketListResult(firstPage, "bucket");
+  }
+
+  @Benchmark
+  public BucketListResult listFirstPage() throws Exception {
+    return fileOperations.getBucketListResult(firstPage, "bucket");
+  }
+
+  @Benchmark
+  public BucketListResult listPrefix() throws Exception {
+    return fileOperations.getBucketListResult(prefixPage, "bucket");
+  }
+
+  @Benchmark
+  public String pageToXml() {
+    return page.toXML();
+  }
+
+  private static String key(int i) {
+    return "dir-" + (i % 100) + "/object-" + i + ".bin";
+  }
+}
@@ -0,0 +1,92 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.io.FileOperations;
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.io.NioFileOperations;
+import dev.totis.tinys3.response.CompleteMultipartUploadResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Completing a multipart upload whose parts were uploaded beforehand. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBenchmark {
+
+  @Param({"memory", "disk"})
+  public String backend;
+
+  @Param({"10"})
+  public int parts;
+
+  @Param({"5242880"})
+  public int partSize;
+
+  private Path storageDir;
+  private DefaultS3FileOperations fileOperations;
+  private byte[] part;
+  private String uploadId;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    part = new byte[partSize];
+    new Random(42).nextBytes(part);
+    FileOperations fileOps;
+    if (backend.equals("disk")) {
+      storageDir = Files.createTempDirectory("tinys3-bench-");
+      fileOps = new NioFileOperations(storageDir.toString());
+    } else {
+      fileOps = new InMemoryFileOperations();
+    }
+    fileOperations = new DefaultS3FileOperations(fileOps);
+    fileOperations.createDirectory("bucket");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (storageDir != null) {
+      try (Stream<Path> paths = Files.walk(storageDir)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void uploadParts() throws Exception {
+    uploadId =
+        fileOperations.getInitiateMultipartUploadResult("bucket", "object").uploadId();
+    for (int i = 1; i <= parts; i++) {
+      fileOperations.handleUploadPart(
+          uploadId, Map.of("partNumber", String.valueOf(i)), new ByteArrayInputStream(part));
+    }
+  }
+
+  @Benchmark
+  public CompleteMultipartUploadResult complete() throws Exception {
+    return fileOperations.getCompleteMultipartUploadResult("bucket", "object", uploadId);
+  }
+}
@@ -0,0 +1,106 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.io.FileOperations;
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.io.NioFileOperations;
+import dev.totis.tinys3.io.SlabAllocator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** PUT and GET through {@link DefaultS3FileOperations} on each storage backend. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectBenchmark {
+
+  @Param({"memory", "offheap", "disk"})
+  public String backend;
+
+  @Param({"1024", "1048576"})
+  public int size;
+
+  private Path storageDir;
+  private DefaultS3FileOperations fileOperations;
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws Exception {
+    body = new byte[size];
+    new Random(42).nextBytes(body);
+
+    FileOperations fileOps;
+    switch (backend) {
+      case "disk" -> {
+        storageDir = Files.createTempDirectory("tinys3-bench-");
+        fileOps = new NioFileOperations(storageDir.toString());
+      }
+      case "offheap" -> fileOps = new InMemoryFileOperations(new SlabAllocator());
+      default -> fileOps = new InMemoryFileOperations();
+    }
+    fileOperations = new DefaultS3FileOperations(fileOps);
+    fileOperations.createDirectory("bucket");
+    fileOperations.handlePutObject("bucket", "existing", new ByteArrayInputStream(body));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (storageDir != null) {
+      try (Stream<Path> paths = Files.walk(storageDir)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  @Benchmark
+  public String put() throws Exception {
+    return fileOperations.handlePutObject("bucket", "object", new ByteArrayInputStream(body));
+  }
+
+  /** A key per thread, so concurrent PUTs never contend for the same object. */
+  @State(Scope.Thread)
+  public static class ThreadKey {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    final String key = "object-" + THREADS.incrementAndGet();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String putDistinctKeys(ThreadKey thread) throws Exception {
+    return fileOperations.handlePutObject("bucket", thread.key, new ByteArrayInputStream(body));
+  }
+
+  @Benchmark
+  public int get() throws Exception {
+    BenchmarkExchange exchange =
+        new BenchmarkExchange("GET", "/bucket/existing")
+            .responseBody(OutputStream.nullOutputStream());
+    fileOperations.getObject(exchange, "bucket", "existing");
+    return exchange.getResponseCode();
+  }
+}
@@ -0,0 +1,58 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.S3Context;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of turning a raw request into an {@link S3Context} with its resolved operation. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+  @Param({
+    "GET /bucket/dir/object.txt",
+    "PUT /bucket/dir/object.txt",
+    "GET /bucket?list-type=2&prefix=dir/&delimiter=/&max-keys=1000",
+    "PUT /bucket/object?partNumber=3&uploadId=5d8d7c1e-6c5a-4a43-9d2c-2f0c1e7d9a10",
+    "POST /bucket/object?uploads",
+    "GET /"
+  })
+  public String request;
+
+  private BenchmarkExchange exchange;
+
+  @Setup
+  public void setUp() {
+    int space = request.indexOf(' ');
+    exchange =
+        new BenchmarkExchange(request.substring(0, space), request.substring(space + 1))
+            .header("Host", "localhost:8000")
+            .header("User-Agent", "aws-sdk-java/2.20.0")
+            .header("X-amz-date", "20250101T000000Z")
+            .header("X-amz-content-sha256", "UNSIGNED-PAYLOAD")
+            .header(
+                "Authorization",
+                "AWS4-HMAC-SHA256 Credential=access/20250101/us-east-1/s3/aws4_request, "
+                    + "SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=0");
+  }
+
+  @Benchmark
+  public Object route() throws IOException {
+    return S3Context.create(exchange).getOperation();
+  }
+}
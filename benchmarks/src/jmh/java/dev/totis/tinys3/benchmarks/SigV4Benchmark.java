@@ -0,0 +1,62 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.S3Context;
+import dev.totis.tinys3.auth.Credentials;
+import dev.totis.tinys3.auth.DefaultAuthenticator;
+import dev.totis.tinys3.auth.PresignedUrlCache;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** SigV4 verification in {@link DefaultAuthenticator} for header signed and presigned requests. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigV4Benchmark {
+  private static final Credentials CREDENTIALS =
+      new Credentials("benchmark", "benchmark-secret", "us-east-1");
+
+  @Param({"0", "10000"})
+  public int presignedUrlCacheSize;
+
+  private DefaultAuthenticator authenticator;
+  private BenchmarkExchange signedGet;
+  private BenchmarkExchange presignedGet;
+
+  @Setup
+  public void setUp() throws Exception {
+    authenticator =
+        new DefaultAuthenticator(
+            Map.of(CREDENTIALS.accessKey(), CREDENTIALS),
+            new PresignedUrlCache(presignedUrlCacheSize));
+    signedGet = SigV4Signer.signed(CREDENTIALS, "GET", "/bucket?list-type=2&prefix=dir/");
+    presignedGet = SigV4Signer.presigned(CREDENTIALS, "GET", "/bucket/dir/object.txt", 3600);
+
+    if (!verifySigned() || !verifyPresigned()) {
+      throw new IllegalStateException("Benchmark requests do not verify");
+    }
+  }
+
+  @Benchmark
+  public boolean verifySigned() throws Exception {
+    return authenticator.authenticateRequest(S3Context.create(signedGet));
+  }
+
+  @Benchmark
+  public boolean verifyPresigned() throws Exception {
+    return authenticator.authenticateRequest(S3Context.create(presignedGet));
+  }
+}
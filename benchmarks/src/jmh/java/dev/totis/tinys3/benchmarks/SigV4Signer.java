@@ -0,0 +1,86 @@
+package dev.totis.tinys3.benchmarks;
+
+import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.auth.Credentials;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Signs requests the way an SDK client would, so benchmarks exercise real verification. */
+public final class SigV4Signer {
+  public static final String HOST = "localhost:8000";
+
+  private SigV4Signer() {}
+
+  /** Signs with an {@code Authorization} header and {@code UNSIGNED-PAYLOAD}. */
+  public static BenchmarkExchange signed(Credentials credentials, String method, String uri)
+      throws Exception {
+    String date = S3Utils.AMZ_DATE_FORMATTER.format(Instant.now());
+    String scope = S3Utils.getCredentialScope(date, credentials);
+    int queryStart = uri.indexOf('?');
+    String path = queryStart < 0 ? uri : uri.substring(0, queryStart);
+    String query = queryStart < 0 ? "" : uri.substring(queryStart + 1);
+
+    String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+    String canonicalRequest =
+        method
+            + "\n"
+            + path
+            + "\n"
+            + S3Utils.canonicalQuery(query)
+            + "\nhost:"
+            + HOST
+            + "\nx-amz-content-sha256:UNSIGNED-PAYLOAD\nx-amz-date:"
+            + date
+            + "\n\n"
+            + signedHeaders
+            + "\nUNSIGNED-PAYLOAD";
+    String stringToSign = S3Utils.createStringToSign(canonicalRequest, date, credentials);
+    String signature = S3Utils.calculateSignature(stringToSign, date, credentials);
+
+    return new BenchmarkExchange(method, uri)
+        .header("Host", HOST)
+        .header("X-amz-date", date)
+        .header("X-amz-content-sha256", "UNSIGNED-PAYLOAD")
+        .header(
+            "Authorization",
+            "AWS4-HMAC-SHA256 Credential="
+                + credentials.accessKey()
+                + "/"
+                + scope
+                + ", SignedHeaders="
+                + signedHeaders
+                + ", Signature="
+                + signature);
+  }
+
+  /** Builds a presigned URL request for {@code path}, valid for {@code expires} seconds. */
+  public static BenchmarkExchange presigned(
+      Credentials credentials, String method, String path, long expires) throws Exception {
+    String date = S3Utils.AMZ_DATE_FORMATTER.format(Instant.now());
+    Map<String, String> params = new TreeMap<>();
+    params.put("X-Amz-Algorithm", "AWS4-HMAC-SHA256");
+    params.put(
+        "X-Amz-Credential",
+        credentials.accessKey() + "/" + S3Utils.getCredentialScope(date, credentials));
+    params.put("X-Amz-Date", date);
+    params.put("X-Amz-Expires", String.valueOf(expires));
+    params.put("X-Amz-SignedHeaders", "host");
+
+    StringBuilder query = new StringBuilder();
+    params.forEach(
+        (key, value) -> {
+          if (!query.isEmpty()) {
+            query.append('&');
+          }
+          query.append(S3Utils.urlEncode(key)).append('=').append(S3Utils.urlEncode(value));
+        });
+    String canonicalRequest =
+        method + "\n" + path + "\n" + query + "\nhost:" + HOST + "\n\nhost\nUNSIGNED-PAYLOAD";
+    String stringToSign = S3Utils.createStringToSign(canonicalRequest, date, credentials);
+    String signature = S3Utils.calculateSignature(stringToSign, date, credentials);
+
+    return new BenchmarkExchange(method, path + "?" + query + "&X-Amz-Signature=" + signature)
+        .header("Host", HOST);
+  }
+}
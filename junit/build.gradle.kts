@@ -0,0 +1,17 @@
+plugins {
+    java
+    `java-library`
+}
+
+dependencies {
+    api(project(":tiny-s3-lib"))
+    api(libs.junit.jupiter.api)
+
+    testImplementation(libs.junit.jupiter)
+    testImplementation("io.minio:minio:8.5.17")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+tasks.named<Test>("test") {
+    useJUnitPlatform()
+}
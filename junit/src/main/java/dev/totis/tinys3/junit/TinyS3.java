@@ -0,0 +1,7 @@
+package dev.totis.tinys3.junit;
+
+import dev.totis.tinys3.auth.Credentials;
+import java.net.URI;
+
+/** Where a test reaches the server, and the bucket that belongs to it alone. */
+public record TinyS3(URI endpoint, Credentials credentials, String bucket) {}
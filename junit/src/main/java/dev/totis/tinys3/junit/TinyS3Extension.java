@@ -0,0 +1,104 @@
+package dev.totis.tinys3.junit;
+
+import dev.totis.tinys3.S3Server;
+import dev.totis.tinys3.auth.Credentials;
+import dev.totis.tinys3.io.StorageSnapshot;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
+
+/**
+ * Starts one in-memory {@link S3Server} per JVM on a free port, shared by every test class using
+ * the extension. Each test gets a fresh bucket and can have a {@link TinyS3}, the {@link
+ * Credentials} or the {@link S3Server} injected.
+ *
+ * <p>After each test the server is restored to the snapshot taken when it started, dropping
+ * whatever the test created. When tests run in parallel only the test's own bucket is deleted, so
+ * other tests running at the same time keep theirs.
+ */
+public class TinyS3Extension implements BeforeEachCallback, AfterEachCallback, ParameterResolver {
+  public static final Credentials CREDENTIALS =
+      new Credentials("tinys3", "tinys3-secret", "us-east-1");
+
+  private static final ExtensionContext.Namespace NAMESPACE =
+      ExtensionContext.Namespace.create(TinyS3Extension.class);
+  private static final String PARALLEL = "junit.jupiter.execution.parallel.enabled";
+  private static final AtomicLong BUCKETS = new AtomicLong();
+
+  @Override
+  public void beforeEach(ExtensionContext context) {
+    SharedServer shared = sharedServer(context);
+    String bucket = "test-" + BUCKETS.incrementAndGet();
+    shared.server.createBucket(bucket);
+    context.getStore(NAMESPACE).put(TinyS3.class, new TinyS3(shared.endpoint, CREDENTIALS, bucket));
+  }
+
+  @Override
+  public void afterEach(ExtensionContext context) {
+    TinyS3 s3 = context.getStore(NAMESPACE).remove(TinyS3.class, TinyS3.class);
+    SharedServer shared = sharedServer(context);
+    boolean parallel =
+        context.getConfigurationParameter(PARALLEL).map(Boolean::parseBoolean).orElse(false);
+    if (parallel) {
+      shared.server.deleteBucket(s3.bucket());
+    } else {
+      shared.server.restore(shared.baseline);
+    }
+  }
+
+  @Override
+  public boolean supportsParameter(ParameterContext parameter, ExtensionContext context) {
+    Class<?> type = parameter.getParameter().getType();
+    return type == TinyS3.class || type == Credentials.class || type == S3Server.class;
+  }
+
+  @Override
+  public Object resolveParameter(ParameterContext parameter, ExtensionContext context) {
+    Class<?> type = parameter.getParameter().getType();
+    if (type == Credentials.class) {
+      return CREDENTIALS;
+    }
+    if (type == S3Server.class) {
+      return sharedServer(context).server;
+    }
+    TinyS3 s3 = context.getStore(NAMESPACE).get(TinyS3.class, TinyS3.class);
+    if (s3 == null) {
+      throw new ParameterResolutionException(
+          "TinyS3 can only be injected into test methods and their @BeforeEach/@AfterEach");
+    }
+    return s3;
+  }
+
+  private static SharedServer sharedServer(ExtensionContext context) {
+    return context
+        .getRoot()
+        .getStore(NAMESPACE)
+        .getOrComputeIfAbsent(SharedServer.class, type -> new SharedServer(), SharedServer.class);
+  }
+
+  /** Lives in the root store, so JUnit stops it once every test has run. */
+  private static final class SharedServer implements ExtensionContext.Store.CloseableResource {
+    private final S3Server server;
+    private final URI endpoint;
+    private final StorageSnapshot baseline;
+
+    SharedServer() {
+      server =
+          new S3Server.Builder().withPort(0).withInMemory().withCredentials(CREDENTIALS).build();
+      server.start();
+      endpoint = URI.create("http://localhost:" + server.getPort());
+      baseline = server.snapshot();
+    }
+
+    @Override
+    public void close() {
+      server.stop();
+      baseline.close();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package dev.totis.tinys3.junit;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Runs the annotated tests against the shared TinyS3 server, see {@link TinyS3Extension}. */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@ExtendWith(TinyS3Extension.class)
+public @interface TinyS3Test {}
@@ -0,0 +1,60 @@
+package dev.totis.tinys3.junit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.S3Server;
+import dev.totis.tinys3.auth.Credentials;
+import io.minio.BucketExistsArgs;
+import io.minio.MakeBucketArgs;
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.StatObjectArgs;
+import io.minio.StatObjectResponse;
+import io.minio.messages.Bucket;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+@TinyS3Test
+public class TinyS3ExtensionTest {
+
+  @Test
+  void givesEachTestItsOwnBucket(TinyS3 s3) throws Exception {
+    MinioClient client = client(s3);
+    assertTrue(client.bucketExists(BucketExistsArgs.builder().bucket(s3.bucket()).build()));
+
+    byte[] body = "hello".getBytes();
+    client.putObject(
+        PutObjectArgs.builder()
+            .bucket(s3.bucket())
+            .object("key")
+            .stream(new ByteArrayInputStream(body), body.length, -1)
+            .build());
+    client.makeBucket(MakeBucketArgs.builder().bucket("created-by-test").build());
+
+    StatObjectResponse stat =
+        client.statObject(StatObjectArgs.builder().bucket(s3.bucket()).object("key").build());
+    assertEquals(body.length, stat.size());
+  }
+
+  @Test
+  void startsFromAnEmptyServer(TinyS3 s3) throws Exception {
+    List<Bucket> buckets = client(s3).listBuckets();
+
+    assertEquals(List.of(s3.bucket()), buckets.stream().map(Bucket::name).toList());
+  }
+
+  @Test
+  void injectsTheServerAndCredentials(S3Server server, Credentials credentials, TinyS3 s3) {
+    assertEquals(TinyS3Extension.CREDENTIALS, credentials);
+    assertEquals(server.getPort(), s3.endpoint().getPort());
+  }
+
+  private static MinioClient client(TinyS3 s3) {
+    return MinioClient.builder()
+        .endpoint(s3.endpoint().toString())
+        .region(s3.credentials().region())
+        .credentials(s3.credentials().accessKey(), s3.credentials().secretKey())
+        .build();
+  }
+}
@@ -50,7 +50,12 @@ public class BucketUploadPostHandler {
       }
 
       String etag =
-          fileOperations.handlePutObject(bucketName, formData.fileName(), formData.fileData());
+          fileOperations.handlePutObject(
+              bucketName,
+              formData.fileName(),
+              formData.fileData() == null
+                  ? InputStream.nullInputStream()
+                  : new ByteArrayInputStream(formData.fileData()));
       s3Context.sendResponse(
           200,
           new PostUploadResult(bucketName, formData.fileName(), etag).toXML(),
@@ -9,10 +9,18 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CanonicalRequest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CanonicalRequest.class);
 
   public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+  public static final String STREAMING_SIGNED_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+  public static final String STREAMING_SIGNED_PAYLOAD_TRAILER =
+      "STREAMING-AWS4-HMAC-SHA256-PAYLOAD-TRAILER";
+  public static final String STREAMING_UNSIGNED_PAYLOAD_TRAILER =
+      "STREAMING-UNSIGNED-PAYLOAD-TRAILER";
 
   public static final Set<String> SIGNED_HEADERS =
       new HashSet<>(Arrays.asList("host", "x-amz-date", "x-amz-security-token"));
@@ -138,7 +146,6 @@ public class CanonicalRequest {
       if ("Accept-encoding".equalsIgnoreCase(headerName)) {
         // Only include if it's identity
         if ("identity".equals(value)) {
-          System.out.println("Header is equal to identity");
           canonicalHeaders
               .append(headerName.toLowerCase())
               .append(":")
@@ -150,10 +157,8 @@ public class CanonicalRequest {
               .append(":")
               .append("identity")
               .append("\n");
-          System.out.println("Found cloudflare header");
         } else {
-          System.out.println(
-              "Header is not equal to identity " + headers.get("Cf-ray") + " " + value);
+          LOGGER.debug("Dropping non identity Accept-Encoding from canonical headers: {}", value);
         }
         continue;
       }
@@ -165,6 +170,12 @@ public class CanonicalRequest {
     String payloadHash;
     if (isUnsignedPayload(headers)) {
       payloadHash = UNSIGNED_PAYLOAD;
+    } else if (isStreamingPayload(headers.get("X-amz-content-sha256"))) {
+      // The chunks carry their own signatures, the seed request signs the literal marker
+      payloadHash = headers.get("X-amz-content-sha256");
+    } else if (isPayloadHash(headers.get("X-amz-content-sha256"))) {
+      // Signed as claimed, the body itself is verified while it streams to storage
+      payloadHash = headers.get("X-amz-content-sha256");
     } else if (payload != null && payload.length > 0) {
       MessageDigest digest = MessageDigest.getInstance("SHA-256");
       payloadHash = bytesToHex(digest.digest(payload));
@@ -187,8 +198,23 @@ public class CanonicalRequest {
   }
 
   private static boolean isUnsignedPayload(Map<String, String> headers) {
-    String unsignedPayload = headers.get("X-amz-content-sha256");
-    return unsignedPayload.equals(UNSIGNED_PAYLOAD);
+    return UNSIGNED_PAYLOAD.equals(headers.get("X-amz-content-sha256"));
+  }
+
+  public static boolean isStreamingPayload(String contentSha256) {
+    return contentSha256 != null && contentSha256.startsWith("STREAMING-");
+  }
+
+  public static boolean isPayloadHash(String contentSha256) {
+    if (contentSha256 == null || contentSha256.length() != 64) {
+      return false;
+    }
+    for (int i = 0; i < contentSha256.length(); i++) {
+      if (Character.digit(contentSha256.charAt(i), 16) == -1) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private static Map<String, String> parseQueryString(String query) {
@@ -5,18 +5,26 @@ import dev.totis.tinys3.io.FileEntry;
 import dev.totis.tinys3.io.FileOperations;
 import dev.totis.tinys3.io.PartInfo;
 import dev.totis.tinys3.io.StorageException;
+import dev.totis.tinys3.jfr.StorageEvent;
 import dev.totis.tinys3.response.*;
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Collectors;
 
 public class DefaultS3FileOperations implements S3FileOperations {
+  private static final String LAYER = "s3";
+
   private final FileOperations fileOps;
-  private final Map<String, List<PartInfo>> multipartUploads = new ConcurrentHashMap<>();
+  // The parts of each upload by part number, added to while the upload is in the map
+  private final Map<String, ConcurrentSkipListMap<Integer, PartInfo>> multipartUploads =
+      new ConcurrentHashMap<>();
 
   public DefaultS3FileOperations(FileOperations fileOps) {
     this.fileOps = fileOps;
@@ -26,7 +34,7 @@ public class DefaultS3FileOperations implements S3FileOperations {
   public InitiateMultipartUploadResult getInitiateMultipartUploadResult(
       String bucketName, String key) {
     String uploadId = UUID.randomUUID().toString();
-    multipartUploads.put(uploadId, new ArrayList<>());
+    multipartUploads.put(uploadId, new ConcurrentSkipListMap<>());
     return new InitiateMultipartUploadResult(bucketName, key, uploadId);
   }
 
@@ -42,40 +50,83 @@ public class DefaultS3FileOperations implements S3FileOperations {
   }
 
   @Override
-  public String handleUploadPart(String uploadId, Map<String, String> queryParams, byte[] payload)
+  public String handleUploadPart(
+      String uploadId, Map<String, String> queryParams, InputStream payload)
       throws StorageException {
     int partNumber = Integer.parseInt(queryParams.get("partNumber"));
-    String tempDir = fileOps.createTempDirectory("multipart-");
-    String tempFilePath = tempDir + "/part-" + partNumber;
-
-    fileOps.writeTempFile(tempFilePath, payload);
-
-    Path tempPath = Path.of(tempFilePath);
-    String eTag = S3Utils.calculateETag(tempPath, false, List.of());
-    multipartUploads.get(uploadId).add(new PartInfo(partNumber, eTag, tempPath.toString()));
-    return eTag;
+    StorageEvent event = StorageEvent.start(LAYER, "uploadPart", null, uploadId);
+    try {
+      String tempDir = fileOps.createTempDirectory("multipart-");
+      String tempFilePath = tempDir + "/part-" + partNumber;
+
+      // Hashed while it is written, the part is never read back
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      fileOps.writeTempFile(tempFilePath, new DigestInputStream(payload, md));
+
+      String eTag = "\"" + Base64.getEncoder().encodeToString(md.digest()) + "\"";
+      PartInfo part = new PartInfo(partNumber, eTag, tempFilePath);
+      // Atomic with the removal by completion or abort, so the part is either joined or refused
+      PartInfo[] replaced = new PartInfo[1];
+      if (multipartUploads.computeIfPresent(
+              uploadId,
+              (id, parts) -> {
+                replaced[0] = parts.put(partNumber, part);
+                return parts;
+              })
+          == null) {
+        fileOps.deleteTempFile(tempFilePath);
+        return null;
+      }
+      // A part uploaded again replaces the earlier one
+      if (replaced[0] != null) {
+        fileOps.deleteTempFile(replaced[0].tempPath());
+      }
+      return eTag;
+    } catch (NoSuchAlgorithmException e) {
+      throw new StorageException("Failed to hash part " + partNumber + " of " + uploadId, e);
+    } finally {
+      event.commit();
+    }
   }
 
   @Override
   public CompleteMultipartUploadResult getCompleteMultipartUploadResult(
       String bucketName, String key, String uploadId) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "completeMultipartUpload", bucketName, key);
+    long size = 0;
+    try {
+      CompleteMultipartUploadResult result = completeMultipartUpload(bucketName, key, uploadId);
+      size = result == null ? 0 : result.size();
+      return result;
+    } finally {
+      event.commit(size);
+    }
+  }
+
+  private CompleteMultipartUploadResult completeMultipartUpload(
+      String bucketName, String key, String uploadId) throws StorageException {
     String finalPath = getObjectPath(bucketName, key);
     fileOps.createParentDirectories(finalPath);
 
-    List<PartInfo> parts = multipartUploads.get(uploadId);
+    // Claimed by this call, so a concurrent completion of the same upload cannot join its parts
+    ConcurrentSkipListMap<Integer, PartInfo> claimed = multipartUploads.remove(uploadId);
+    if (claimed == null) {
+      return null;
+    }
+    List<PartInfo> parts = List.copyOf(claimed.values());
     List<String> eTags = parts.stream().map(PartInfo::eTag).toList();
-    parts.sort(Comparator.comparingInt(PartInfo::partNumber));
-
-    // For now delete the existing file
-    fileOps.delete(finalPath);
 
+    // Replaces any previous object in one step, readers never see a partial one
+    try {
+      fileOps.concatTempFiles(finalPath, parts.stream().map(PartInfo::tempPath).toList());
+    } catch (StorageException e) {
+      multipartUploads.put(uploadId, claimed);
+      throw e;
+    }
     for (PartInfo part : parts) {
-      byte[] partData = fileOps.readTempFile(part.tempPath());
-      fileOps.appendToFile(finalPath, partData);
       fileOps.deleteTempFile(part.tempPath());
     }
 
-    multipartUploads.remove(uploadId);
     Path objectPath = Path.of(finalPath);
     return new CompleteMultipartUploadResult(
         bucketName,
@@ -88,14 +139,24 @@ public class DefaultS3FileOperations implements S3FileOperations {
 
   @Override
   public void handleAbortMultipartUpload(String uploadId) throws StorageException {
-    List<PartInfo> parts = multipartUploads.remove(uploadId);
+    ConcurrentSkipListMap<Integer, PartInfo> parts = multipartUploads.remove(uploadId);
     if (parts != null) {
-      for (PartInfo part : parts) {
+      for (PartInfo part : parts.values()) {
         fileOps.delete(part.tempPath());
       }
     }
   }
 
+  /**
+   * Aborts every upload in progress, for when the storage holding their parts was replaced. Parts
+   * arriving later are refused as for any aborted upload.
+   */
+  public void abortMultipartUploads() throws StorageException {
+    for (String uploadId : List.copyOf(multipartUploads.keySet())) {
+      handleAbortMultipartUpload(uploadId);
+    }
+  }
+
   @Override
   public boolean bucketExists(String bucketName) {
     return fileOps.exists(bucketName);
@@ -120,11 +181,16 @@ public class DefaultS3FileOperations implements S3FileOperations {
     int maxKeys = Integer.parseInt(queryParams.getOrDefault("max-keys", "1000"));
     String continuationToken = queryParams.get(isV2 ? "continuation-token" : "marker");
 
-    FileEntry[] allEntries = fileOps.list(bucketName);
+    StorageEvent event = StorageEvent.start(LAYER, "list", bucketName, prefix);
+    FileEntry[] allEntries;
+    try {
+      allEntries = fileOps.list(bucketName, prefix);
+    } finally {
+      event.commit();
+    }
     List<FileEntry> allObjects =
         Arrays.stream(allEntries)
             // .filter(entry -> !entry.isDirectory())
-            .filter(entry -> entry.path().startsWith(prefix))
             .sorted(Comparator.comparing(FileEntry::path))
             .toList();
 
@@ -196,21 +262,46 @@ public class DefaultS3FileOperations implements S3FileOperations {
   }
 
   @Override
-  public String handlePutObject(String bucketName, String key, byte[] payload)
+  public String handlePutObject(String bucketName, String key, InputStream payload)
+      throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "putObject", bucketName, key);
+    try {
+      return putObject(bucketName, key, payload);
+    } finally {
+      event.commit();
+    }
+  }
+
+  private String putObject(String bucketName, String key, InputStream payload)
       throws StorageException {
     String objectPath = getObjectPath(bucketName, key);
     fileOps.createParentDirectories(objectPath);
-    if (payload != null && payload.length > 0) {
-      fileOps.writeFile(objectPath, payload);
-    } else {
-      fileOps.createDirectory(objectPath);
+    try {
+      // The ETag is computed in the same pass that writes the body, it is never read back
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      // Peek a single byte so empty bodies still become directory markers
+      PushbackInputStream body = new PushbackInputStream(new DigestInputStream(payload, md));
+      int first = body.read();
+      if (first != -1) {
+        body.unread(first);
+        fileOps.writeFile(objectPath, body);
+        return "\"" + Base64.getEncoder().encodeToString(md.digest()) + "\"";
+      }
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new StorageException("Failed to read payload for: " + objectPath, e);
     }
+    fileOps.createDirectory(objectPath);
     return calculateETag(bucketName, key, false, List.of());
   }
 
   @Override
   public void handleDeleteObject(String bucketName, String key) throws StorageException {
-    fileOps.delete(getObjectPath(bucketName, key));
+    StorageEvent event = StorageEvent.start(LAYER, "deleteObject", bucketName, key);
+    try {
+      fileOps.delete(getObjectPath(bucketName, key));
+    } finally {
+      event.commit();
+    }
   }
 
   @Override
@@ -222,21 +313,22 @@ public class DefaultS3FileOperations implements S3FileOperations {
   public void getObject(S3HttpExchange exchange, String bucketName, String key)
       throws StorageException {
 
+    StorageEvent event = StorageEvent.start(LAYER, "getObject", bucketName, key);
     String objectPath = getObjectPath(bucketName, key);
-    long contentLength = fileOps.getSize(objectPath);
+    long contentLength = 0;
 
-    try (InputStream is = fileOps.readFileStream(objectPath);
-        OutputStream os = exchange.getResponseBody()) {
-      exchange.getResponseHeaders().addHeader("Content-Type", "application/octet-stream");
-      exchange.sendResponseHeaders(200, contentLength);
-
-      byte[] buffer = new byte[8192];
-      int bytesRead;
-      while ((bytesRead = is.read(buffer)) != -1) {
-        os.write(buffer, 0, bytesRead);
+    try {
+      contentLength = fileOps.getSize(objectPath);
+      try (InputStream is = fileOps.readFileStream(objectPath);
+          OutputStream os = exchange.getResponseBody()) {
+        exchange.getResponseHeaders().addHeader("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, contentLength);
+        is.transferTo(os);
+      } catch (IOException e) {
+        throw new StorageException("Failed to write response", e);
       }
-    } catch (IOException e) {
-      throw new StorageException("Failed to write response", e);
+    } finally {
+      event.commit(contentLength);
     }
   }
 
@@ -288,10 +380,15 @@ public class DefaultS3FileOperations implements S3FileOperations {
   public void copyObject(
       String sourceBucketName, String sourceKey, String destBucketName, String destKey)
       throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "copyObject", destBucketName, destKey);
     String sourcePath = getObjectPath(sourceBucketName, sourceKey);
     String destPath = getObjectPath(destBucketName, destKey);
 
-    fileOps.createParentDirectories(destPath);
-    fileOps.copy(sourcePath, destPath);
+    try {
+      fileOps.createParentDirectories(destPath);
+      fileOps.copy(sourcePath, destPath);
+    } finally {
+      event.commit();
+    }
   }
 }
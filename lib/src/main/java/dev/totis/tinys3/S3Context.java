@@ -1,11 +1,11 @@
 package dev.totis.tinys3;
 
-import static dev.totis.tinys3.S3Utils.copyPayload;
-import static dev.totis.tinys3.S3Utils.createErrorResponse;
-
 import dev.totis.tinys3.http.S3HttpExchange;
 import dev.totis.tinys3.http.S3HttpHeaders;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -13,16 +13,18 @@ import java.util.Objects;
 public class S3Context {
 
   private final Map<String, String> headers = new HashMap<>();
-  private Map<String, String> queriesParams = new HashMap<>();
-  private Map<String, String> requestParams = new HashMap<>();
+  private Map<String, String> queryParams = new HashMap<>();
+  private S3Operation operation;
   private String contentType;
   private String path;
   private String method;
   private String query;
   private S3HttpExchange httpExchange;
+  private InputStream payloadStream;
   private byte[] payload;
   private String bucketName;
   private String objectKey;
+  private String errorCode;
 
   public static S3Context create(S3HttpExchange exchange) throws IOException {
     S3Context s3Context = new S3Context();
@@ -37,12 +39,28 @@ public class S3Context {
     s3Context.path = exchange.getRequestURI().getPath();
     s3Context.query = Objects.requireNonNullElse(exchange.getRequestURI().getQuery(), "");
     s3Context.httpExchange = exchange;
-    s3Context.queriesParams = parseQueryString(s3Context.query);
-    s3Context.requestParams = parseQueryString(s3Context.query);
-
-    if (exchange.getRequestBody() != null) {
-      s3Context.payload = copyPayload(exchange);
+    s3Context.queryParams = parseQueryString(s3Context.query);
+    s3Context.payloadStream = exchange.getRequestBody();
+
+    String path = s3Context.path;
+    int bucketStart = path.startsWith("/") ? 1 : 0;
+    int bucketEnd = path.indexOf('/', bucketStart);
+    if (bucketEnd < 0) {
+      s3Context.bucketName = path.substring(bucketStart);
+      s3Context.objectKey = "";
+    } else {
+      s3Context.bucketName = path.substring(bucketStart, bucketEnd);
+      s3Context.objectKey = path.substring(bucketEnd + 1);
     }
+    s3Context.operation =
+        S3Operation.classify(
+            s3Context.method,
+            path,
+            s3Context.bucketName,
+            s3Context.objectKey,
+            s3Context.queryParams,
+            s3Context.contentType,
+            requestHeaders);
 
     return s3Context;
   }
@@ -51,10 +69,36 @@ public class S3Context {
     return headers;
   }
 
+  /**
+   * Returns the whole request body, reading it into memory on first use. Handlers that store the
+   * body should prefer {@link #getPayloadStream()} so large uploads are never buffered.
+   */
   public byte[] getPayload() {
+    if (payload == null && payloadStream != null) {
+      try {
+        payload = payloadStream.readAllBytes();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read request body", e);
+      }
+    }
     return payload;
   }
 
+  public InputStream getPayloadStream() {
+    if (payload != null) {
+      return new ByteArrayInputStream(payload);
+    }
+    return payloadStream;
+  }
+
+  /**
+   * Replaces the body stream, e.g. with a decoder for {@code aws-chunked} bodies. Must be called
+   * before anything reads the payload.
+   */
+  public void setPayloadStream(InputStream payloadStream) {
+    this.payloadStream = payloadStream;
+  }
+
   public String getContentType() {
     return contentType;
   }
@@ -75,19 +119,16 @@ public class S3Context {
     return httpExchange;
   }
 
+  public S3Operation getOperation() {
+    return operation;
+  }
+
   public boolean isPostBucketUpload() {
-    return contentType != null
-        && contentType.contains("multipart/form-data")
-        && method.equals("POST");
+    return operation == S3Operation.POST_OBJECT;
   }
 
   public boolean isFrontendTesting() {
-    String userAgent = httpExchange.getRequestHeaders().getFirst("User-Agent");
-    return userAgent != null
-        && userAgent.contains("Mozilla")
-        && method.equals("GET")
-        && !httpExchange.getRequestHeaders().containsHeader("X-amz-date")
-        && !isPreSignedUrl(httpExchange.getRequestURI().toString());
+    return operation == S3Operation.FRONTEND;
   }
 
   public boolean isPreSignedUrl(String requestUrl) {
@@ -95,15 +136,15 @@ public class S3Context {
   }
 
   public boolean isPreSignedUrlGeneration() {
-    return method.equals("POST") && query.contains("presigned-url");
+    return operation == S3Operation.GENERATE_PRESIGNED_URL;
   }
 
   public boolean isListBucketsRequest() {
-    return path.equals("/") && method.equals("GET");
+    return operation == S3Operation.LIST_BUCKETS;
   }
 
   public Map<String, String> getQueriesParams() {
-    return queriesParams;
+    return queryParams;
   }
 
   public void sendResponse(int code, String response, String contentType) throws IOException {
@@ -111,8 +152,13 @@ public class S3Context {
   }
 
   public void sendError(int code, String errorCode) throws IOException {
-    String response = createErrorResponse(errorCode);
-    sendResponse(code, response, "application/xml");
+    this.errorCode = errorCode;
+    S3Utils.sendError(httpExchange, code, errorCode);
+  }
+
+  /** The S3 error code sent for this request, or {@code null} if it succeeded. */
+  public String getErrorCode() {
+    return errorCode;
   }
 
   public String getBucketName() {
@@ -132,18 +178,28 @@ public class S3Context {
   }
 
   public Map<String, String> getRequestParams() {
-    return requestParams;
+    return queryParams;
   }
 
-  private static Map<String, String> parseQueryString(String query) {
+  /** Parameters without a value, like {@code ?uploads}, are kept with an empty value. */
+  static Map<String, String> parseQueryString(String query) {
     Map<String, String> params = new HashMap<>();
-    if (query != null) {
-      for (String param : query.split("&")) {
-        String[] parts = param.split("=", 2);
-        if (parts.length == 2) {
-          params.put(parts[0], parts[1]);
+    int start = 0;
+    int length = query.length();
+    while (start < length) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        int equals = query.indexOf('=', start);
+        if (equals < 0 || equals > end) {
+          params.put(query.substring(start, end), "");
+        } else {
+          params.put(query.substring(start, equals), query.substring(equals + 1, end));
         }
       }
+      start = end + 1;
     }
     return params;
   }
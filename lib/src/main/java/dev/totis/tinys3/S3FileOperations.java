@@ -6,6 +6,7 @@ import dev.totis.tinys3.response.BucketListResult;
 import dev.totis.tinys3.response.CompleteMultipartUploadResult;
 import dev.totis.tinys3.response.InitiateMultipartUploadResult;
 import dev.totis.tinys3.response.ListAllBucketsResult;
+import java.io.InputStream;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Map;
@@ -17,9 +18,11 @@ public interface S3FileOperations {
 
   boolean containsKey(String key);
 
-  String handleUploadPart(String uploadId, Map<String, String> queryParams, byte[] payload)
+  /** Returns the ETag of the part, or null if the upload was completed or aborted meanwhile. */
+  String handleUploadPart(String uploadId, Map<String, String> queryParams, InputStream payload)
       throws StorageException;
 
+  /** Returns null if the upload was completed or aborted meanwhile. */
   CompleteMultipartUploadResult getCompleteMultipartUploadResult(
       String bucketName, String key, String uploadId) throws StorageException;
 
@@ -34,7 +37,8 @@ public interface S3FileOperations {
 
   boolean objectNotExists(String bucketName, String key);
 
-  String handlePutObject(String bucketName, String key, byte[] payload) throws StorageException;
+  String handlePutObject(String bucketName, String key, InputStream payload)
+      throws StorageException;
 
   void handleDeleteObject(String bucketName, String key) throws StorageException;
 
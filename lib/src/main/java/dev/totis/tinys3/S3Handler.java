@@ -3,15 +3,18 @@ package dev.totis.tinys3;
 import static dev.totis.tinys3.S3Utils.*;
 
 import dev.totis.tinys3.auth.Credentials;
+import dev.totis.tinys3.auth.PayloadVerificationException;
 import dev.totis.tinys3.auth.S3Authenticator;
 import dev.totis.tinys3.frontend.BadFrontend;
 import dev.totis.tinys3.http.S3HttpExchange;
 import dev.totis.tinys3.http.S3HttpHeaders;
 import dev.totis.tinys3.io.StorageException;
+import dev.totis.tinys3.jfr.RequestEvent;
+import dev.totis.tinys3.metrics.MeteredExchange;
+import dev.totis.tinys3.metrics.S3Metrics;
 import dev.totis.tinys3.response.CopyObjectResult;
 import java.io.IOException;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
+import java.io.OutputStream;
 import java.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,82 +26,118 @@ public class S3Handler {
   private final S3Authenticator authenticator;
   private final S3FileOperations fileOperations;
   private final String baseURL;
+  private final S3Metrics metrics;
 
   public S3Handler(String baseURL, S3Authenticator authenticator, S3FileOperations fileOperations) {
+    this(baseURL, authenticator, fileOperations, new S3Metrics());
+  }
+
+  public S3Handler(
+      String baseURL,
+      S3Authenticator authenticator,
+      S3FileOperations fileOperations,
+      S3Metrics metrics) {
     this.baseURL = baseURL;
     this.authenticator = authenticator;
     this.fileOperations = fileOperations;
+    this.metrics = metrics;
   }
 
   public void handle(S3Context s3Context, S3HttpExchange exchange) throws IOException {
+    RequestEvent event = new RequestEvent();
+    event.begin();
     try {
-
-      if (s3Context.isFrontendTesting()) {
-        sendResponse(
-            exchange,
-            200,
-            BadFrontend.FRONTEND.replace("http://localhost:8000", baseURL),
-            "text/html");
-        return;
-      }
-      if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
-        sendResponse(exchange, 200, "", "");
-        return;
+      dispatch(s3Context, exchange);
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.operation = s3Context.getOperation().getApiName();
+        event.bucket = s3Context.getBucketName();
+        event.keyHash = s3Context.getObjectKey().hashCode();
+        if (exchange instanceof MeteredExchange metered) {
+          event.status = metered.getStatusCode();
+          event.bytesIn = metered.getBytesIn();
+          event.bytesOut = metered.getBytesOut();
+        }
+        event.commit();
       }
+    }
+  }
 
-      if (s3Context.isPostBucketUpload()) {
-        BucketUploadPostHandler policy = new BucketUploadPostHandler(authenticator, fileOperations);
-        policy.handle(s3Context);
+  private void dispatch(S3Context s3Context, S3HttpExchange exchange) throws IOException {
+    try {
+      S3Operation operation = s3Context.getOperation();
+      if (operation.isAnonymous()) {
+        handleAnonymousOperation(s3Context, operation);
         return;
       }
 
-      if (!authenticator.authenticateRequest(s3Context)) {
+      long authStart = System.nanoTime();
+      boolean authenticated = authenticator.authenticateRequest(s3Context);
+      metrics.recordAuthentication(operation, System.nanoTime() - authStart);
+      if (!authenticated) {
         s3Context.sendError(403, "XAmzContentSHA256Mismatch");
         return;
       }
 
-      String path = exchange.getRequestURI().getPath();
-      String method = exchange.getRequestMethod();
-      String query = Objects.requireNonNullElse(exchange.getRequestURI().getQuery(), "");
-
-      if (s3Context.isPreSignedUrlGeneration()) {
-        handlePreSignedUrlGeneration(s3Context);
-        return;
+      switch (operation) {
+        case GENERATE_PRESIGNED_URL -> handlePreSignedUrlGeneration(s3Context);
+        case LIST_BUCKETS -> handleListBuckets(s3Context, authenticator.getCredentials(exchange));
+        case CREATE_BUCKET -> handleCreateBucket(s3Context);
+        case HEAD_BUCKET, HEAD_OBJECT -> handleHeadObject(s3Context);
+        case LIST_OBJECTS, LIST_OBJECTS_V2 -> handleListObjects(s3Context);
+        case DELETE_BUCKET -> handleDeleteBucket(s3Context);
+        case DELETE_OBJECTS ->
+            new DeleteObjectsPostHandler(fileOperations).handleDeleteObjects(s3Context);
+        case GET_OBJECT -> handleGetObject(s3Context);
+        case PUT_OBJECT -> handlePutObject(s3Context);
+        case COPY_OBJECT -> handleCopyObject(s3Context);
+        case DELETE_OBJECT -> handleDeleteObject(s3Context);
+        case CREATE_MULTIPART_UPLOAD -> handleMultipartUpload(s3Context);
+        case UPLOAD_PART, COMPLETE_MULTIPART_UPLOAD, ABORT_MULTIPART_UPLOAD ->
+            handleMultipartOperation(s3Context, operation);
+        case INVALID_PATH -> s3Context.sendError(400, "InvalidRequest");
+        default -> s3Context.sendError(405, "MethodNotAllowed");
       }
 
-      if (s3Context.isListBucketsRequest()) {
-        handleListBuckets(s3Context, authenticator.getCredentials(exchange));
+    } catch (Exception e) {
+      PayloadVerificationException verificationError = findVerificationError(e);
+      if (verificationError != null) {
+        LOGGER.info("Rejected request body: {}", verificationError.getMessage());
+        // Drain what the client is still sending so it gets to read the error response
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        s3Context.sendError(verificationError.getStatusCode(), verificationError.getErrorCode());
         return;
       }
+      LOGGER.info("Could not process request", e);
+      s3Context.sendError(500, "InternalError");
+    }
+  }
 
-      String[] pathParts = path.split("/", 3);
-      String bucketName = pathParts.length > 1 ? pathParts[1] : "";
-      String objectKey = pathParts.length > 2 ? pathParts[2] : "";
-
-      if (!S3Utils.isValidPath(bucketName) || !S3Utils.isValidPath(objectKey)) {
-        s3Context.sendError(400, "InvalidRequest");
-      }
-
-      s3Context.setBucketName(bucketName);
-      s3Context.setObjectKey(objectKey);
+  private void handleAnonymousOperation(S3Context s3Context, S3Operation operation)
+      throws IOException {
+    S3HttpExchange exchange = s3Context.getHttpExchange();
+    switch (operation) {
+      case FRONTEND ->
+          sendResponse(
+              exchange,
+              200,
+              BadFrontend.FRONTEND.replace("http://localhost:8000", baseURL),
+              "text/html");
+      case OPTIONS -> sendResponse(exchange, 200, "", "");
+      case POST_OBJECT ->
+          new BucketUploadPostHandler(authenticator, fileOperations).handle(s3Context);
+      default -> throw new IllegalArgumentException("Not an anonymous operation: " + operation);
+    }
+  }
 
-      if (query.contains("uploads")) {
-        handleMultipartUpload(s3Context);
-        return;
-      } else if (query.contains("uploadId")) {
-        handleMultipartOperation(s3Context);
-        return;
-      } else if (objectKey.isEmpty()) {
-        handleBucketOperation(s3Context);
-        return;
+  private static PayloadVerificationException findVerificationError(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof PayloadVerificationException verificationError) {
+        return verificationError;
       }
-
-      handleObjectOperation(s3Context, bucketName, objectKey, method, s3Context.getPayload());
-
-    } catch (Exception e) {
-      LOGGER.info("Could not process request", e);
-      s3Context.sendError(500, "InternalError");
     }
+    return null;
   }
 
   private void handleMultipartUpload(S3Context s3Context) throws IOException {
@@ -108,19 +147,19 @@ public class S3Handler {
     s3Context.sendResponse(200, response.toXML(), "application/xml");
   }
 
-  private void handleMultipartOperation(S3Context s3Context) throws IOException, StorageException {
-    Map<String, String> queryParams = s3Context.getQueriesParams();
-    String uploadId = queryParams.get("uploadId");
+  private void handleMultipartOperation(S3Context s3Context, S3Operation operation)
+      throws IOException, StorageException {
+    String uploadId = s3Context.getQueriesParams().get("uploadId");
 
     if (!fileOperations.containsKey(uploadId)) {
       s3Context.sendError(404, "NoSuchUpload");
       return;
     }
 
-    switch (s3Context.getMethod()) {
-      case "PUT" -> handleUploadPart(s3Context, uploadId);
-      case "POST" -> handleCompleteMultipartUpload(s3Context, uploadId);
-      case "DELETE" -> handleAbortMultipartUpload(s3Context, uploadId);
+    switch (operation) {
+      case UPLOAD_PART -> handleUploadPart(s3Context, uploadId);
+      case COMPLETE_MULTIPART_UPLOAD -> handleCompleteMultipartUpload(s3Context, uploadId);
+      default -> handleAbortMultipartUpload(s3Context, uploadId);
     }
   }
 
@@ -128,7 +167,11 @@ public class S3Handler {
       throws IOException, StorageException {
     String eTag =
         fileOperations.handleUploadPart(
-            uploadId, s3Context.getQueriesParams(), s3Context.getPayload());
+            uploadId, s3Context.getQueriesParams(), s3Context.getPayloadStream());
+    if (eTag == null) {
+      s3Context.sendError(404, "NoSuchUpload");
+      return;
+    }
     s3Context.getHttpExchange().getResponseHeaders().addHeader("ETag", "\"" + eTag + "\"");
     s3Context.sendResponse(200, "", "");
   }
@@ -139,6 +182,10 @@ public class S3Handler {
       var result =
           fileOperations.getCompleteMultipartUploadResult(
               s3Context.getBucketName(), s3Context.getObjectKey(), uploadId);
+      if (result == null) {
+        s3Context.sendError(404, "NoSuchUpload");
+        return;
+      }
       s3Context.sendResponse(200, result.toXML(), "application/xml");
     } catch (Exception e) {
       s3Context.sendError(500, "InternalError");
@@ -157,30 +204,6 @@ public class S3Handler {
     s3Context.sendResponse(200, result.toXML(), "application/xml");
   }
 
-  private void handleBucketOperation(S3Context s3Context) throws IOException, StorageException {
-    if ("delete".equals(s3Context.getQuery())) {
-      DeleteObjectsPostHandler handler = new DeleteObjectsPostHandler(fileOperations);
-      handler.handleDeleteObjects(s3Context);
-      return;
-    }
-    switch (s3Context.getMethod()) {
-      case "HEAD":
-        handleHeadObject(s3Context);
-        break;
-      case "GET":
-        handleListObjects(s3Context);
-        break;
-      case "PUT":
-        handleCreateBucket(s3Context);
-        break;
-      case "DELETE":
-        handleDeleteBucket(s3Context);
-        break;
-      default:
-        s3Context.sendError(405, "MethodNotAllowed");
-    }
-  }
-
   private void handleHeadObject(S3Context s3Context) throws IOException, StorageException {
     String bucketName = s3Context.getBucketName();
     String objectKey = s3Context.getObjectKey();
@@ -199,12 +222,7 @@ public class S3Handler {
     responseHeaders.addHeader(
         "Content-Length", String.valueOf(fileOperations.getSize(bucketName, objectKey)));
     var lastModified = fileOperations.getLastModifiedTime(bucketName, objectKey);
-    String lastModifiedStr =
-        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
-            .withZone(ZoneOffset.UTC)
-            .withLocale(Locale.US)
-            .format(lastModified.toInstant());
-    responseHeaders.addHeader("Last-Modified", lastModifiedStr);
+    responseHeaders.addHeader("Last-Modified", formatHttpDate(lastModified));
     responseHeaders.addHeader(
         "ETag",
         "\"" + fileOperations.calculateETag(bucketName, objectKey, false, List.of()) + "\"");
@@ -250,34 +268,9 @@ public class S3Handler {
     s3Context.sendResponse(204, "", "application/xml");
   }
 
-  private void handleObjectOperation(
-      S3Context s3Context, String bucketName, String key, String method, byte[] payload)
-      throws IOException, StorageException {
-
-    switch (method) {
-      case "GET":
-        handleGetObject(s3Context);
-        break;
-      case "HEAD":
-        handleHeadObject(s3Context);
-        break;
-      case "PUT":
-        if (s3Context.getHttpExchange().getResponseHeaders().containsHeader("x-amz-copy-source")) {
-          handleCopyObject(s3Context, bucketName, key);
-        } else {
-          handlePutObject(s3Context);
-        }
-        break;
-      case "DELETE":
-        handleDeleteObject(s3Context);
-        break;
-      default:
-        s3Context.sendError(405, "MethodNotAllowed");
-    }
-  }
-
-  private void handleCopyObject(S3Context s3Context, String destBucketName, String destKey)
-      throws IOException, StorageException {
+  private void handleCopyObject(S3Context s3Context) throws IOException, StorageException {
+    String destBucketName = s3Context.getBucketName();
+    String destKey = s3Context.getObjectKey();
     String copySource =
         s3Context.getHttpExchange().getRequestHeaders().getFirst("x-amz-copy-source");
     if (copySource == null) {
@@ -326,13 +319,13 @@ public class S3Handler {
   private void handlePutObject(S3Context s3Context) throws IOException, StorageException {
     String bucketName = s3Context.getBucketName();
     String objectKey = s3Context.getObjectKey();
-    byte[] payload = s3Context.getPayload();
     if (!fileOperations.bucketExists(bucketName)) {
       s3Context.sendError(404, "NoSuchBucket");
       return;
     }
 
-    String eTag = fileOperations.handlePutObject(bucketName, objectKey, payload);
+    String eTag =
+        fileOperations.handlePutObject(bucketName, objectKey, s3Context.getPayloadStream());
     s3Context.getHttpExchange().getResponseHeaders().addHeader("ETag", eTag);
     s3Context.sendResponse(200, "", "application/xml");
   }
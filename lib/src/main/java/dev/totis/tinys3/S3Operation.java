@@ -0,0 +1,125 @@
+package dev.totis.tinys3;
+
+import dev.totis.tinys3.http.S3HttpHeaders;
+import java.util.Map;
+
+/**
+ * The operation a request maps to. {@link S3Context} resolves it once from the method, path, query
+ * parameters and a couple of headers, so {@link S3Handler} can dispatch with a single switch.
+ */
+public enum S3Operation {
+  FRONTEND("Frontend"),
+  OPTIONS("Options"),
+  POST_OBJECT("PostObject"),
+  GENERATE_PRESIGNED_URL("GeneratePresignedUrl"),
+  LIST_BUCKETS("ListBuckets"),
+  CREATE_BUCKET("CreateBucket"),
+  HEAD_BUCKET("HeadBucket"),
+  LIST_OBJECTS("ListObjects"),
+  LIST_OBJECTS_V2("ListObjectsV2"),
+  DELETE_BUCKET("DeleteBucket"),
+  DELETE_OBJECTS("DeleteObjects"),
+  GET_OBJECT("GetObject"),
+  HEAD_OBJECT("HeadObject"),
+  PUT_OBJECT("PutObject"),
+  COPY_OBJECT("CopyObject"),
+  DELETE_OBJECT("DeleteObject"),
+  CREATE_MULTIPART_UPLOAD("CreateMultipartUpload"),
+  UPLOAD_PART("UploadPart"),
+  COMPLETE_MULTIPART_UPLOAD("CompleteMultipartUpload"),
+  ABORT_MULTIPART_UPLOAD("AbortMultipartUpload"),
+  INVALID_PATH("InvalidPath"),
+  METHOD_NOT_ALLOWED("MethodNotAllowed");
+
+  private final String apiName;
+
+  S3Operation(String apiName) {
+    this.apiName = apiName;
+  }
+
+  /** The S3 API action name, e.g. {@code PutObject}, used in metrics and logs. */
+  public String getApiName() {
+    return apiName;
+  }
+
+  /** Whether the operation is answered without authenticating the request. */
+  public boolean isAnonymous() {
+    return this == FRONTEND || this == OPTIONS || this == POST_OBJECT;
+  }
+
+  static S3Operation classify(
+      String method,
+      String path,
+      String bucketName,
+      String objectKey,
+      Map<String, String> queryParams,
+      String contentType,
+      S3HttpHeaders headers) {
+    switch (method) {
+      case "GET" -> {
+        if (isBrowser(headers) && !queryParams.containsKey("X-Amz-Algorithm")) {
+          return FRONTEND;
+        }
+      }
+      case "OPTIONS" -> {
+        return OPTIONS;
+      }
+      case "POST" -> {
+        if (contentType != null && contentType.contains("multipart/form-data")) {
+          return POST_OBJECT;
+        }
+        if (queryParams.containsKey("presigned-url")) {
+          return GENERATE_PRESIGNED_URL;
+        }
+      }
+      default -> {}
+    }
+
+    if (path.equals("/") && method.equals("GET")) {
+      return LIST_BUCKETS;
+    }
+    if (!S3Utils.isValidPath(bucketName) || !S3Utils.isValidPath(objectKey)) {
+      return INVALID_PATH;
+    }
+
+    if (queryParams.containsKey("uploads")) {
+      return CREATE_MULTIPART_UPLOAD;
+    }
+    if (queryParams.containsKey("uploadId")) {
+      return switch (method) {
+        case "PUT" -> UPLOAD_PART;
+        case "POST" -> COMPLETE_MULTIPART_UPLOAD;
+        case "DELETE" -> ABORT_MULTIPART_UPLOAD;
+        default -> METHOD_NOT_ALLOWED;
+      };
+    }
+
+    if (objectKey.isEmpty()) {
+      if (queryParams.size() == 1 && queryParams.containsKey("delete")) {
+        return DELETE_OBJECTS;
+      }
+      return switch (method) {
+        case "HEAD" -> HEAD_BUCKET;
+        case "GET" -> "2".equals(queryParams.get("list-type")) ? LIST_OBJECTS_V2 : LIST_OBJECTS;
+        case "PUT" -> CREATE_BUCKET;
+        case "DELETE" -> DELETE_BUCKET;
+        default -> METHOD_NOT_ALLOWED;
+      };
+    }
+
+    return switch (method) {
+      case "GET" -> GET_OBJECT;
+      case "HEAD" -> HEAD_OBJECT;
+      case "PUT" -> headers.containsHeader("x-amz-copy-source") ? COPY_OBJECT : PUT_OBJECT;
+      case "DELETE" -> DELETE_OBJECT;
+      default -> METHOD_NOT_ALLOWED;
+    };
+  }
+
+  private static boolean isBrowser(S3HttpHeaders headers) {
+    String userAgent = headers.getFirst("User-Agent");
+    return userAgent != null
+        && userAgent.contains("Mozilla")
+        && !headers.containsHeader("X-amz-date");
+  }
+}
@@ -1,31 +1,124 @@
 package dev.totis.tinys3;
 
 import com.sun.net.httpserver.HttpServer;
+import dev.totis.tinys3.admin.AdminHandler;
+import dev.totis.tinys3.archive.ArchiveFormat;
+import dev.totis.tinys3.archive.ArchiveImporter;
+import dev.totis.tinys3.archive.BucketExporter;
 import dev.totis.tinys3.auth.Credentials;
 import dev.totis.tinys3.auth.DefaultAuthenticator;
+import dev.totis.tinys3.auth.PresignedUrlCache;
 import dev.totis.tinys3.http.HttpExchangeAdapter;
-import dev.totis.tinys3.http.S3HttpExchange;
+import dev.totis.tinys3.io.ContentStore;
+import dev.totis.tinys3.io.Durability;
+import dev.totis.tinys3.io.FileOperations;
 import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.io.IndexedFileOperations;
+import dev.totis.tinys3.io.MemoryBudget;
+import dev.totis.tinys3.io.MetadataIndex;
 import dev.totis.tinys3.io.NioFileOperations;
+import dev.totis.tinys3.io.PackedFileOperations;
+import dev.totis.tinys3.io.ShardedFileOperations;
+import dev.totis.tinys3.io.SlabAllocator;
+import dev.totis.tinys3.io.StorageException;
+import dev.totis.tinys3.io.StorageSnapshot;
+import dev.totis.tinys3.log.AccessLog;
+import dev.totis.tinys3.metrics.MeteredExchange;
+import dev.totis.tinys3.metrics.MeteredFileOperations;
+import dev.totis.tinys3.metrics.RequestProfile;
+import dev.totis.tinys3.metrics.S3Metrics;
+import dev.totis.tinys3.metrics.SlowRequestLog;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class S3Server {
   private static final Logger logger = LoggerFactory.getLogger(S3Server.class);
+  private static final Duration STOP_TIMEOUT = Duration.ofSeconds(30);
   private final HttpServer server;
   private final ExecutorService executor;
+  private final S3Metrics metrics;
+  private final InMemoryFileOperations inMemoryStorage;
+  private final DefaultS3FileOperations fileOperations;
+  private final List<Closeable> resources;
 
-  private S3Server(HttpServer server, ExecutorService executor) {
+  private S3Server(
+      HttpServer server,
+      ExecutorService executor,
+      S3Metrics metrics,
+      InMemoryFileOperations inMemoryStorage,
+      DefaultS3FileOperations fileOperations,
+      List<Closeable> resources) {
     this.server = server;
     this.executor = executor;
+    this.metrics = metrics;
+    this.inMemoryStorage = inMemoryStorage;
+    this.fileOperations = fileOperations;
+    this.resources = resources;
+  }
+
+  public S3Metrics getMetrics() {
+    return metrics;
+  }
+
+  /** The port the server listens on, useful after asking for port 0. */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /** Creates a bucket in an in-memory server without going through the S3 API. */
+  public void createBucket(String bucketName) {
+    try {
+      inMemoryStorage().createDirectory(bucketName);
+    } catch (StorageException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  /** Deletes a bucket of an in-memory server together with everything in it. */
+  public void deleteBucket(String bucketName) {
+    inMemoryStorage().deleteRecursively(bucketName);
+  }
+
+  /**
+   * Freezes the buckets and objects of an in-memory server, sharing their bodies. Restoring it
+   * later with {@link #restore(StorageSnapshot)} brings the server back to this state.
+   */
+  public StorageSnapshot snapshot() {
+    return inMemoryStorage().snapshot();
+  }
+
+  public void restore(StorageSnapshot snapshot) {
+    inMemoryStorage().restore(snapshot);
+    // Their parts were swapped out with the rest of the storage
+    try {
+      fileOperations.abortMultipartUploads();
+    } catch (StorageException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  private InMemoryFileOperations inMemoryStorage() {
+    if (inMemoryStorage == null) {
+      throw new IllegalStateException("Only supported with in-memory storage");
+    }
+    return inMemoryStorage;
   }
 
   public void start() {
@@ -37,15 +130,47 @@ public class S3Server {
     logger.info("Stopping server");
     server.stop(0);
     executor.shutdown();
+    // Requests still running write through the resources, so they are closed only once those end
+    try {
+      if (!executor.awaitTermination(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+        logger.warn("Requests still running after {}, closing anyway", STOP_TIMEOUT);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Closeable resource : resources) {
+      try {
+        resource.close();
+      } catch (IOException e) {
+        logger.warn("Could not close {}", resource, e);
+      }
+    }
   }
 
   public static class Builder {
     private String host;
     private int port = 8000;
     private boolean inMemory = false;
+    private boolean offHeap = false;
+    private long memoryLimit = 0;
+    private MemoryBudget.Overflow memoryOverflow = MemoryBudget.Overflow.SPILL;
+    private boolean deduplication = false;
+    private final List<Preload> preloads = new ArrayList<>();
     private final Map<String, Credentials> credentialsMap = new HashMap<>();
     private String storageDir = "storage";
+    private boolean packed = false;
+    private boolean metadataIndex = false;
+    private boolean sharded = false;
+    private Durability durability = Durability.NONE;
+    private Duration commitWindow = NioFileOperations.DEFAULT_COMMIT_WINDOW;
     private ExecutorService customExecutor = null;
+    private int presignedUrlCacheSize = PresignedUrlCache.DEFAULT_MAX_ENTRIES;
+    private boolean adminEnabled = true;
+    private Duration slowRequestThreshold = SlowRequestLog.DEFAULT_THRESHOLD;
+    private int slowRequestLogSize = SlowRequestLog.DEFAULT_MAX_ENTRIES;
+    private Path accessLogFile;
+    private long accessLogMaxFileSize = AccessLog.DEFAULT_MAX_FILE_SIZE;
+    private int accessLogMaxFiles = AccessLog.DEFAULT_MAX_FILES;
 
     public Builder withHost(String host) {
       this.host = host;
@@ -62,6 +187,48 @@ public class S3Server {
       return this;
     }
 
+    /** Keeps objects in memory like {@link #withInMemory()}, with bodies outside the Java heap. */
+    public Builder withOffHeapStorage() {
+      this.inMemory = true;
+      this.offHeap = true;
+      return this;
+    }
+
+    /**
+     * Keeps at most {@code capacityBytes} of object data in memory, moving the least recently used
+     * objects past that to a temp directory. Implies {@link #withInMemory()}.
+     */
+    public Builder withMemoryLimit(long capacityBytes) {
+      return withMemoryLimit(capacityBytes, MemoryBudget.Overflow.SPILL);
+    }
+
+    /** Like {@link #withMemoryLimit(long)}, with {@code overflow} deciding what happens past it. */
+    public Builder withMemoryLimit(long capacityBytes, MemoryBudget.Overflow overflow) {
+      this.inMemory = true;
+      this.memoryLimit = capacityBytes;
+      this.memoryOverflow = overflow;
+      return this;
+    }
+
+    /**
+     * Stores identical object bodies once, however many keys they are written under. Implies {@link
+     * #withInMemory()}.
+     */
+    public Builder withDeduplication() {
+      this.inMemory = true;
+      this.deduplication = true;
+      return this;
+    }
+
+    /**
+     * Loads every file of a tar, tar.gz or zip {@code archive} into {@code bucketName} while the
+     * server is built, creating the bucket if needed. Archives are loaded in parallel.
+     */
+    public Builder withPreload(String bucketName, Path archive) {
+      this.preloads.add(new Preload(bucketName, archive));
+      return this;
+    }
+
     public Builder withCredentials(Credentials credentials) {
       this.credentialsMap.put(credentials.accessKey(), credentials);
       return this;
@@ -72,11 +239,93 @@ public class S3Server {
       return this;
     }
 
+    /**
+     * Packs small objects of the storage directory into large segment files instead of a file per
+     * object, see {@link PackedFileOperations}. The layout differs from the default one, so a
+     * directory should always be opened the same way.
+     */
+    public Builder withPackedStorage() {
+      this.packed = true;
+      return this;
+    }
+
+    /**
+     * Keeps the metadata of the storage directory in an index under {@code .index}, made durable by
+     * a write-ahead log, so listings and HEAD requests do not touch the file system. See {@link
+     * IndexedFileOperations}. Ignored with in-memory or packed storage, which index by themselves.
+     */
+    public Builder withMetadataIndex() {
+      this.metadataIndex = true;
+      return this;
+    }
+
+    /**
+     * Spreads the objects of each bucket over hashed directories with encoded names, see {@link
+     * ShardedFileOperations}, for buckets of millions of keys or keys too long for a file name.
+     * Implies {@link #withMetadataIndex()}. Only an empty storage directory can become sharded.
+     */
+    public Builder withShardedLayout() {
+      this.sharded = true;
+      this.metadataIndex = true;
+      return this;
+    }
+
+    /**
+     * Forces objects written to the storage directory to disk before acknowledging them, see
+     * {@link Durability}. Not applied to in-memory or packed storage.
+     */
+    public Builder withDurability(Durability durability) {
+      this.durability = durability;
+      return this;
+    }
+
+    /** Like {@link #withDurability(Durability)}, with the time a group commit waits for writers. */
+    public Builder withDurability(Durability durability, Duration commitWindow) {
+      this.durability = durability;
+      this.commitWindow = commitWindow;
+      return this;
+    }
+
     public Builder withCustomExecutor(ExecutorService executor) {
       this.customExecutor = executor;
       return this;
     }
 
+    public Builder withPresignedUrlCacheSize(int presignedUrlCacheSize) {
+      this.presignedUrlCacheSize = presignedUrlCacheSize;
+      return this;
+    }
+
+    /** Serves metrics and other operational endpoints under {@code /_admin}. On by default. */
+    public Builder withAdminEnabled(boolean adminEnabled) {
+      this.adminEnabled = adminEnabled;
+      return this;
+    }
+
+    /**
+     * Keeps the last {@code maxEntries} requests slower than {@code threshold}, served at {@code
+     * /_admin/slow-requests}. A size of 0 turns the log off.
+     */
+    public Builder withSlowRequestLog(Duration threshold, int maxEntries) {
+      this.slowRequestThreshold = threshold;
+      this.slowRequestLogSize = maxEntries;
+      return this;
+    }
+
+    /** Writes an S3 style access log line per request to {@code file}. Off by default. */
+    public Builder withAccessLog(Path file) {
+      this.accessLogFile = file;
+      return this;
+    }
+
+    /** Like {@link #withAccessLog(Path)}, rotating after {@code maxFileSize} bytes. */
+    public Builder withAccessLog(Path file, long maxFileSize, int maxFiles) {
+      this.accessLogFile = file;
+      this.accessLogMaxFileSize = maxFileSize;
+      this.accessLogMaxFiles = maxFiles;
+      return this;
+    }
+
     public S3Server build() {
       try {
         if (!inMemory) {
@@ -88,25 +337,277 @@ public class S3Server {
             customExecutor != null ? customExecutor : Executors.newVirtualThreadPerTaskExecutor();
         server.setExecutor(executor);
 
-        var fileOperations =
-            new DefaultS3FileOperations(
-                inMemory ? new InMemoryFileOperations() : new NioFileOperations(storageDir));
+        S3Metrics metrics = new S3Metrics();
+        var slowRequestLog = new SlowRequestLog(slowRequestThreshold, slowRequestLogSize);
+        List<Closeable> resources = new ArrayList<>();
+        MemoryBudget budget = memoryLimit > 0 ? memoryBudget(metrics) : null;
+        ContentStore contentStore = null;
+        if (deduplication) {
+          contentStore = contentStore(metrics);
+          resources.add(contentStore);
+        }
+        InMemoryFileOperations inMemoryStorage = null;
+        FileOperations storage;
+        if (offHeap) {
+          SlabAllocator allocator = new SlabAllocator();
+          metrics.registerGauge(
+              "tinys3_offheap_reserved_bytes",
+              "Direct memory reserved for object data.",
+              allocator::getReservedBytes);
+          metrics.registerGauge(
+              "tinys3_offheap_used_bytes",
+              "Direct memory holding object data.",
+              allocator::getUsedBytes);
+          inMemoryStorage = new InMemoryFileOperations(allocator, budget, contentStore);
+          storage = inMemoryStorage;
+        } else if (inMemory) {
+          inMemoryStorage = new InMemoryFileOperations(null, budget, contentStore);
+          storage = inMemoryStorage;
+        } else if (packed) {
+          PackedFileOperations packedStorage = new PackedFileOperations(storageDir);
+          resources.add(packedStorage);
+          registerPackedMetrics(metrics, packedStorage);
+          storage = packedStorage;
+        } else if (metadataIndex) {
+          MetadataIndex index =
+              new MetadataIndex(
+                  Paths.get(storageDir, ".index"),
+                  MetadataIndex.DEFAULT_CHECKPOINT_INTERVAL,
+                  durability);
+          resources.add(index);
+          registerIndexMetrics(metrics, index);
+          FileOperations disk = diskStorage(metrics);
+          if (sharded) {
+            disk = new ShardedFileOperations(disk, index);
+          }
+          storage = new IndexedFileOperations(disk, index);
+        } else {
+          storage = diskStorage(metrics);
+        }
+        var meteredStorage = new MeteredFileOperations(storage, metrics);
+        var fileOperations = new DefaultS3FileOperations(meteredStorage);
+
+        var importer =
+            new ArchiveImporter(fileOperations, Runtime.getRuntime().availableProcessors());
+        preload(importer);
+
+        var presignedUrlCache = new PresignedUrlCache(presignedUrlCacheSize);
+        metrics.registerCounter(
+            "tinys3_presigned_url_cache_hits_total",
+            "Presigned URLs served from the verification cache.",
+            presignedUrlCache::getHits);
+        metrics.registerCounter(
+            "tinys3_presigned_url_cache_misses_total",
+            "Presigned URLs that had to be verified.",
+            presignedUrlCache::getMisses);
+        var authenticator = new DefaultAuthenticator(credentialsMap, presignedUrlCache);
+        var handler = new S3Handler(host, authenticator, fileOperations, metrics);
 
-        var handler = new S3Handler(host, new DefaultAuthenticator(credentialsMap), fileOperations);
+        AccessLog accessLog = null;
+        if (accessLogFile != null) {
+          accessLog = new AccessLog(accessLogFile, accessLogMaxFileSize, accessLogMaxFiles);
+          resources.add(accessLog);
+          metrics.registerCounter(
+              "tinys3_access_log_lines_total", "Access log lines written.", accessLog::getWritten);
+          metrics.registerCounter(
+              "tinys3_access_log_dropped_total",
+              "Access log lines dropped because the writer fell behind.",
+              accessLog::getDropped);
+        }
+        AccessLog requestLog = accessLog;
 
         S3HttpServerAdapter adapter =
             () ->
                 (e) -> {
-                  S3HttpExchange request = new HttpExchangeAdapter(e);
-                  handler.handle(S3Context.create(request), request);
+                  RequestProfile profile = RequestProfile.start();
+                  MeteredExchange request = new MeteredExchange(new HttpExchangeAdapter(e));
+                  S3Context context = S3Context.create(request);
+                  profile.parsed();
+                  try {
+                    handler.handle(context, request);
+                  } finally {
+                    profile.finish();
+                    metrics.recordRequest(
+                        context.getOperation(),
+                        request.getStatusCode(),
+                        context.getErrorCode(),
+                        request.getBytesIn(),
+                        request.getBytesOut(),
+                        profile.getDurationNanos());
+                    metrics.recordResources(context.getOperation(), profile);
+                    slowRequestLog.record(
+                        context.getOperation(),
+                        context.getMethod(),
+                        context.getPath(),
+                        request.getStatusCode(),
+                        profile);
+                    if (requestLog != null) {
+                      requestLog.record(accessLogEntry(context, request, profile));
+                    }
+                  }
                 };
 
         server.createContext("/", adapter.getHandler());
+        if (adminEnabled) {
+          var exporter = new BucketExporter(meteredStorage);
+          var admin =
+              new AdminHandler(metrics, slowRequestLog, authenticator, importer, exporter);
+          server.createContext(
+              AdminHandler.PATH + "/", e -> admin.handle(new HttpExchangeAdapter(e)));
+        }
 
-        return new S3Server(server, executor);
-      } catch (IOException e) {
+        return new S3Server(server, executor, metrics, inMemoryStorage, fileOperations, resources);
+      } catch (IOException | StorageException e) {
         throw new RuntimeException("Failed to initialize server", e);
       }
     }
+
+    private void preload(ArchiveImporter importer) throws IOException {
+      if (preloads.isEmpty()) {
+        return;
+      }
+      try (ExecutorService loaders = Executors.newVirtualThreadPerTaskExecutor()) {
+        List<Future<?>> loads = new ArrayList<>();
+        for (Preload preload : preloads) {
+          loads.add(loaders.submit(() -> preload.load(importer)));
+        }
+        for (Future<?> load : loads) {
+          load.get();
+        }
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to preload archives", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while preloading archives", e);
+      }
+    }
+
+    private record Preload(String bucketName, Path archive) {
+      Void load(ArchiveImporter importer) throws Exception {
+        long start = System.nanoTime();
+        ArchiveFormat format = ArchiveFormat.fromName(archive.getFileName().toString());
+        ArchiveImporter.Result result;
+        try (InputStream in = Files.newInputStream(archive)) {
+          result = importer.importArchive(bucketName, in, format);
+        }
+        logger.info(
+            "Preloaded {} objects ({} bytes) into {} from {} in {} ms",
+            result.objects(),
+            result.bytes(),
+            bucketName,
+            archive,
+            (System.nanoTime() - start) / 1_000_000);
+        return null;
+      }
+    }
+
+    private MemoryBudget memoryBudget(S3Metrics metrics) throws IOException {
+      Path spillDirectory = Files.createTempDirectory("tiny-s3-spill-");
+      spillDirectory.toFile().deleteOnExit();
+      MemoryBudget budget = new MemoryBudget(memoryLimit, memoryOverflow, spillDirectory);
+      metrics.registerGauge(
+          "tinys3_memory_resident_bytes",
+          "Object data held in memory under the memory limit.",
+          budget::getResidentBytes);
+      metrics.registerCounter(
+          "tinys3_memory_hits_total", "Object reads served from memory.", budget::getHits);
+      metrics.registerCounter(
+          "tinys3_memory_misses_total",
+          "Object reads served from the spill directory.",
+          budget::getMisses);
+      metrics.registerCounter(
+          "tinys3_memory_spills_total",
+          "Objects moved to the spill directory.",
+          budget::getSpills);
+      metrics.registerCounter(
+          "tinys3_memory_evictions_total",
+          "Objects dropped to stay within the memory limit.",
+          budget::getEvictions);
+      return budget;
+    }
+
+    private NioFileOperations diskStorage(S3Metrics metrics) {
+      NioFileOperations storage = new NioFileOperations(storageDir, durability, commitWindow);
+      if (durability != Durability.NONE) {
+        metrics.registerCounter(
+            "tinys3_disk_forces_total",
+            "Files and directories forced to disk.",
+            storage::getForces);
+      }
+      return storage;
+    }
+
+    private static void registerIndexMetrics(S3Metrics metrics, MetadataIndex index) {
+      metrics.registerGauge("tinys3_index_entries", "Paths in the metadata index.", index::size);
+      metrics.registerCounter(
+          "tinys3_index_log_records_total",
+          "Changes written to the metadata log.",
+          index::getRecords);
+      metrics.registerCounter(
+          "tinys3_index_log_forces_total",
+          "Forces of the metadata log, each covering one or more changes.",
+          index::getForces);
+      metrics.registerCounter(
+          "tinys3_index_checkpoints_total",
+          "Snapshots of the metadata index written.",
+          index::getCheckpoints);
+    }
+
+    private static void registerPackedMetrics(S3Metrics metrics, PackedFileOperations storage) {
+      metrics.registerGauge(
+          "tinys3_packed_entries", "Keys in the packed storage index.", storage::getEntries);
+      metrics.registerGauge(
+          "tinys3_packed_segments", "Segment files of packed storage.", storage::getSegments);
+      metrics.registerGauge(
+          "tinys3_packed_dead_bytes",
+          "Segment bytes of overwritten or deleted objects not compacted yet.",
+          storage::getDeadBytes);
+      metrics.registerCounter(
+          "tinys3_packed_compacted_segments_total",
+          "Segments rewritten to reclaim dead bytes.",
+          storage::getCompactedSegments);
+    }
+
+    private static ContentStore contentStore(S3Metrics metrics) {
+      ContentStore contentStore = new ContentStore();
+      metrics.registerGauge(
+          "tinys3_dedup_contents", "Distinct object bodies stored.", contentStore::getContents);
+      metrics.registerGauge(
+          "tinys3_dedup_stored_bytes",
+          "Bytes of distinct object bodies stored.",
+          contentStore::getStoredBytes);
+      metrics.registerCounter(
+          "tinys3_dedup_hits_total",
+          "Writes whose body was already stored.",
+          contentStore::getHits);
+      metrics.registerCounter(
+          "tinys3_dedup_saved_bytes_total",
+          "Bytes not stored again because the body was already stored.",
+          contentStore::getSavedBytes);
+      metrics.registerCounter(
+          "tinys3_dedup_reclaimed_total",
+          "Bodies freed after no key referred to them.",
+          contentStore::getReclaimed);
+      return contentStore;
+    }
+
+    private static AccessLog.Entry accessLogEntry(
+        S3Context context, MeteredExchange request, RequestProfile profile) {
+      InetSocketAddress remote = request.getRemoteAddress();
+      return new AccessLog.Entry(
+          System.currentTimeMillis(),
+          remote == null ? null : remote.getHostString(),
+          context.getMethod(),
+          request.getRequestURI().getRawPath(),
+          context.getOperation(),
+          context.getBucketName(),
+          context.getObjectKey(),
+          request.getStatusCode(),
+          context.getErrorCode(),
+          request.getBytesOut(),
+          request.getBytesIn(),
+          profile.getDurationNanos() / 1_000_000,
+          request.getRequestHeaders().getFirst("User-Agent"));
+    }
   }
 }
@@ -7,14 +7,17 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.stream.XMLOutputFactory;
@@ -26,6 +29,56 @@ public class S3Utils {
   public static final DateTimeFormatter LAST_MODIFIED_FORMATTER =
       DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
 
+  public static final DateTimeFormatter HTTP_DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+          .withZone(ZoneOffset.UTC);
+
+  public static final DateTimeFormatter AMZ_DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final String DEFAULT_ERROR_MESSAGE = "An error occurred";
+
+  private static final Map<String, String> ERROR_MESSAGES =
+      Map.ofEntries(
+          Map.entry("NoSuchBucket", "The specified bucket does not exist"),
+          Map.entry("BucketAlreadyExists", "The requested bucket name is not available"),
+          Map.entry("NoSuchKey", "The specified key does not exist"),
+          Map.entry(
+              "InvalidAccessKeyId", "The AWS access key Id provided does not exist in our records"),
+          Map.entry(
+              "SignatureDoesNotMatch",
+              "The request signature we calculated does not match the signature you provided"),
+          Map.entry(
+              "MethodNotAllowed", "The specified method is not allowed against this resource"),
+          Map.entry("InvalidRequest", "Invalid request parameters"),
+          Map.entry("InvalidArgument", "Invalid Argument"),
+          Map.entry("BucketNotEmpty", "The bucket you tried to delete is not empty"),
+          Map.entry("NoSuchUpload", "The specified multipart upload does not exist"),
+          Map.entry(
+              "IncompleteBody",
+              "You did not provide the number of bytes specified by the headers"),
+          Map.entry("BadDigest", "The checksum you specified did not match what we received"),
+          Map.entry("InvalidBucketName", "The specified bucket is not valid"),
+          Map.entry("MalformedArchive", "The archive could not be read"),
+          Map.entry(
+              "XAmzContentSHA256Mismatch",
+              "The provided 'x-amz-content-sha256' header does not match what was computed"));
+
+  // Error bodies never change, so they are encoded once and written as is
+  private static final Map<String, byte[]> ENCODED_ERROR_RESPONSES = new ConcurrentHashMap<>();
+
+  static {
+    for (String code : ERROR_MESSAGES.keySet()) {
+      ENCODED_ERROR_RESPONSES.put(code, encodeErrorResponse(code));
+    }
+  }
+
+  private static volatile HttpDate lastHttpDate = new HttpDate(Long.MIN_VALUE, "");
+
+  private record HttpDate(long epochSecond, String formatted) {}
+
   public static byte[] hmacSHA256(byte[] key, String data)
       throws NoSuchAlgorithmException, InvalidKeyException {
     Mac mac = Mac.getInstance("HmacSHA256");
@@ -44,11 +97,12 @@ public class S3Utils {
   }
 
   public static String bytesToHex(byte[] bytes) {
-    StringBuilder result = new StringBuilder();
-    for (byte b : bytes) {
-      result.append(String.format("%02x", b));
+    char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      result[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
     }
-    return result.toString();
+    return new String(result);
   }
 
   public static String createStringToSign(
@@ -62,7 +116,7 @@ public class S3Utils {
   }
 
   public static String getCredentialScope(String timestamp, Credentials credentials) {
-    return String.format("%s/%s/s3/aws4_request", timestamp.substring(0, 8), credentials.region());
+    return timestamp.substring(0, 8) + "/" + credentials.region() + "/s3/aws4_request";
   }
 
   public static String calculateSignature(
@@ -96,6 +150,30 @@ public class S3Utils {
     }
   }
 
+  /**
+   * The SigV4 canonical form of {@code query}, whose names and values are not encoded yet, as a
+   * client signing a request builds it.
+   */
+  public static String canonicalQuery(String query) {
+    if (query.isEmpty()) {
+      return "";
+    }
+    Map<String, String> params = new TreeMap<>();
+    for (String param : query.split("&")) {
+      String[] parts = param.split("=", 2);
+      params.put(parts[0], parts.length > 1 ? parts[1] : "");
+    }
+    StringBuilder canonical = new StringBuilder();
+    params.forEach(
+        (key, value) -> {
+          if (!canonical.isEmpty()) {
+            canonical.append('&');
+          }
+          canonical.append(urlEncode(key)).append('=').append(urlEncode(value));
+        });
+    return canonical.toString();
+  }
+
   public static String urlDecode(String value) {
     try {
       return URLDecoder.decode(value, StandardCharsets.UTF_8);
@@ -106,7 +184,12 @@ public class S3Utils {
 
   public static void sendResponse(
       S3HttpExchange exchange, int code, String response, String contentType) throws IOException {
-    byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+    sendResponse(exchange, code, response.getBytes(StandardCharsets.UTF_8), contentType);
+  }
+
+  public static void sendResponse(
+      S3HttpExchange exchange, int code, byte[] responseBytes, String contentType)
+      throws IOException {
     exchange.getResponseHeaders().addHeader("Content-Type", contentType);
     if ("HEAD".equals(exchange.getRequestMethod())) {
       // For HEAD requests, we send the content length but no body
@@ -122,34 +205,40 @@ public class S3Utils {
 
   public static void sendError(S3HttpExchange exchange, int code, String errorCode)
       throws IOException {
-    String response = createErrorResponse(errorCode);
+    byte[] response =
+        ENCODED_ERROR_RESPONSES.computeIfAbsent(errorCode, S3Utils::encodeErrorResponse);
     sendResponse(exchange, code, response, "application/xml");
   }
 
   public static String createErrorResponse(String errorCode) {
-    return String.format(
-        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-            + "<Error><Code>%s</Code><Message>%s</Message></Error>",
-        errorCode, getErrorMessage(errorCode));
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>"
+        + errorCode
+        + "</Code><Message>"
+        + getErrorMessage(errorCode)
+        + "</Message></Error>";
+  }
+
+  private static byte[] encodeErrorResponse(String errorCode) {
+    return createErrorResponse(errorCode).getBytes(StandardCharsets.UTF_8);
   }
 
   public static String getErrorMessage(String errorCode) {
-    Map<String, String> errorMessages = new HashMap<>();
-    errorMessages.put("NoSuchBucket", "The specified bucket does not exist");
-    errorMessages.put("BucketAlreadyExists", "The requested bucket name is not available");
-    errorMessages.put("NoSuchKey", "The specified key does not exist");
-    errorMessages.put(
-        "InvalidAccessKeyId", "The AWS access key Id provided does not exist in our records");
-    errorMessages.put(
-        "SignatureDoesNotMatch",
-        "The request signature we calculated does not match the signature you provided");
-    errorMessages.put(
-        "MethodNotAllowed", "The specified method is not allowed against this resource");
-    errorMessages.put("InvalidRequest", "Invalid request parameters");
-    errorMessages.put("BucketNotEmpty", "The bucket you tried to delete is not empty");
-    errorMessages.put("NoSuchUpload", "The specified multipart upload does not exist");
-
-    return errorMessages.getOrDefault(errorCode, "An error occurred");
+    return ERROR_MESSAGES.getOrDefault(errorCode, DEFAULT_ERROR_MESSAGE);
+  }
+
+  /**
+   * Formats an HTTP date such as {@code Last-Modified}. Objects written in the same second share
+   * the previous result, so repeated HEADs do not run the formatter at all.
+   */
+  public static String formatHttpDate(FileTime time) {
+    long epochSecond = time.to(TimeUnit.SECONDS);
+    HttpDate cached = lastHttpDate;
+    if (cached.epochSecond() == epochSecond) {
+      return cached.formatted();
+    }
+    String formatted = HTTP_DATE_FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+    lastHttpDate = new HttpDate(epochSecond, formatted);
+    return formatted;
   }
 
   public static Map<String, String> parseRequestParameters(S3HttpExchange exchange)
@@ -170,25 +259,21 @@ public class S3Utils {
   }
 
   public static boolean verifyExpirationDate(String date, String expires) {
+    // Check if URL has expired
+    return System.currentTimeMillis() > getExpirationTime(date, expires);
+  }
+
+  public static long getExpirationTime(String date, String expires) {
     try {
       // AWS uses ISO 8601 format: yyyyMMdd'T'HHmmss'Z'
-      SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
-      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      Date signedDate = dateFormat.parse(date);
+      long signedAt = Instant.from(AMZ_DATE_FORMATTER.parse(date)).toEpochMilli();
 
       // Calculate expiration time
       long expiresIn = Long.parseLong(expires);
-      long expirationTime = signedDate.getTime() + (expiresIn * 1000);
-      long currentTime = System.currentTimeMillis();
-
-      // Check if URL has expired
-      if (currentTime > expirationTime) {
-        return true;
-      }
-    } catch (ParseException e) {
-      return true;
+      return signedAt + (expiresIn * 1000);
+    } catch (DateTimeParseException e) {
+      return Long.MIN_VALUE;
     }
-    return false;
   }
 
   public static XMLStreamWriter createXMLStreamWriter(Writer writer) {
@@ -222,19 +307,6 @@ public class S3Utils {
     }
   }
 
-  public static byte[] copyPayload(S3HttpExchange exchange) throws IOException {
-    byte[] payload;
-    InputStream inputStream = exchange.getRequestBody();
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    int read = 0;
-    byte[] buff = new byte[1024];
-    while ((read = inputStream.read(buff)) != -1) {
-      bos.write(buff, 0, read);
-    }
-    payload = bos.toByteArray();
-    return payload;
-  }
-
   public static boolean isValidPath(String path) {
     if (path == null || path.isEmpty()) {
       return true;
@@ -0,0 +1,206 @@
+package dev.totis.tinys3.admin;
+
+import static dev.totis.tinys3.S3Utils.sendError;
+import static dev.totis.tinys3.S3Utils.sendResponse;
+
+import dev.totis.tinys3.S3Context;
+import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.archive.ArchiveFormat;
+import dev.totis.tinys3.archive.ArchiveImporter;
+import dev.totis.tinys3.archive.BucketExporter;
+import dev.totis.tinys3.auth.PayloadVerificationException;
+import dev.totis.tinys3.auth.S3Authenticator;
+import dev.totis.tinys3.http.S3HttpExchange;
+import dev.totis.tinys3.io.StorageException;
+import dev.totis.tinys3.jfr.FlightRecording;
+import dev.totis.tinys3.metrics.S3Metrics;
+import dev.totis.tinys3.metrics.SlowRequestLog;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+/**
+ * Operational endpoints served under {@value #PATH}. Bucket names cannot start with an underscore,
+ * so the prefix never shadows an S3 request.
+ *
+ * <p>Metrics are open to any scraper. Flight recordings and the slow request log contain request
+ * details, and ingest and export read and write objects, so their endpoints require a request
+ * signed with the server credentials, just like S3 calls.
+ */
+public class AdminHandler {
+  public static final String PATH = "/_admin";
+
+  private final S3Metrics metrics;
+  private final SlowRequestLog slowRequestLog;
+  private final S3Authenticator authenticator;
+  private final ArchiveImporter importer;
+  private final BucketExporter exporter;
+  private final FlightRecording flightRecording = new FlightRecording();
+
+  public AdminHandler(
+      S3Metrics metrics,
+      SlowRequestLog slowRequestLog,
+      S3Authenticator authenticator,
+      ArchiveImporter importer,
+      BucketExporter exporter) {
+    this.metrics = metrics;
+    this.slowRequestLog = slowRequestLog;
+    this.authenticator = authenticator;
+    this.importer = importer;
+    this.exporter = exporter;
+  }
+
+  public void handle(S3HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String method = exchange.getRequestMethod();
+
+    String endpoint = path.substring(PATH.length());
+    if (endpoint.equals("/metrics")) {
+      if (!method.equals("GET")) {
+        sendError(exchange, 405, "MethodNotAllowed");
+        return;
+      }
+      sendResponse(exchange, 200, metrics.scrape(), S3Metrics.contentType());
+      return;
+    }
+
+    S3Context context = S3Context.create(exchange);
+    if (!authenticator.authenticateRequest(context)) {
+      context.sendError(403, "SignatureDoesNotMatch");
+      return;
+    }
+
+    switch (method + " " + endpoint) {
+      case "POST /jfr/start" -> handleStartRecording(context);
+      case "GET /jfr/dump" -> sendRecording(context, flightRecording.dump());
+      case "POST /jfr/stop" -> sendRecording(context, flightRecording.stop());
+      case "GET /slow-requests" ->
+          sendResponse(exchange, 200, slowRequestLog.toText(), "text/plain; charset=utf-8");
+      case "POST /ingest" -> handleIngest(context);
+      case "GET /export" -> handleExport(context);
+      default -> context.sendError(404, "InvalidRequest");
+    }
+  }
+
+  private void handleStartRecording(S3Context context) throws IOException {
+    String settings = context.getQueriesParams().getOrDefault("settings", "default");
+    if (!settings.equals("default") && !settings.equals("profile")) {
+      context.sendError(400, "InvalidRequest");
+      return;
+    }
+    try {
+      if (!flightRecording.start(settings)) {
+        context.sendError(409, "InvalidRequest");
+        return;
+      }
+    } catch (ParseException e) {
+      throw new IOException("Invalid JFR settings: " + settings, e);
+    }
+    sendResponse(context.getHttpExchange(), 200, "", "text/plain");
+  }
+
+  /** Loads the archive in the request body into {@code bucket}, see {@link ArchiveImporter}. */
+  private void handleIngest(S3Context context) throws IOException {
+    String bucketName = context.getQueriesParams().get("bucket");
+    String format = context.getQueriesParams().getOrDefault("format", "tar");
+    if (!isValidBucketName(bucketName)) {
+      context.sendError(400, "InvalidBucketName");
+      return;
+    }
+    ArchiveFormat archiveFormat;
+    try {
+      archiveFormat = ArchiveFormat.fromName(format);
+    } catch (IllegalArgumentException e) {
+      context.sendError(400, "InvalidRequest");
+      return;
+    }
+    ArchiveImporter.Result result;
+    try {
+      result = importer.importArchive(bucketName, context.getPayloadStream(), archiveFormat);
+    } catch (IOException | StorageException e) {
+      // Drain what the client is still sending so it gets to read the error response
+      context.getHttpExchange().getRequestBody().transferTo(OutputStream.nullOutputStream());
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof PayloadVerificationException verificationError) {
+          context.sendError(verificationError.getStatusCode(), verificationError.getErrorCode());
+          return;
+        }
+      }
+      if (e instanceof StorageException) {
+        throw new IOException("Failed to ingest into " + bucketName, e);
+      }
+      context.sendError(400, "MalformedArchive");
+      return;
+    }
+    String body =
+        "objects=" + result.objects() + " bytes=" + result.bytes() + " skipped=" + result.skipped();
+    sendResponse(context.getHttpExchange(), 200, body + "\n", "text/plain");
+  }
+
+  /**
+   * Streams the objects of {@code bucket} under {@code prefix} as a tar archive, see {@link
+   * BucketExporter}. A failure halfway through cuts the response short instead of ending the
+   * archive, so the client cannot take a partial export for a complete one.
+   */
+  private void handleExport(S3Context context) throws IOException {
+    String bucketName = context.getQueriesParams().get("bucket");
+    String prefix = context.getQueriesParams().getOrDefault("prefix", "");
+    if (!isValidBucketName(bucketName)) {
+      context.sendError(400, "InvalidBucketName");
+      return;
+    }
+    if (!S3Utils.isValidPath(prefix)) {
+      context.sendError(400, "InvalidRequest");
+      return;
+    }
+    if (!exporter.bucketExists(bucketName)) {
+      context.sendError(404, "NoSuchBucket");
+      return;
+    }
+    try (BucketExporter.Export export = exporter.open(bucketName, prefix)) {
+      S3HttpExchange exchange = context.getHttpExchange();
+      exchange.getResponseHeaders().addHeader("Content-Type", "application/x-tar");
+      exchange
+          .getResponseHeaders()
+          .addHeader("Content-Disposition", "attachment; filename=\"" + bucketName + ".tar\"");
+      exchange.sendResponseHeaders(200, 0);
+      // Closed only once the archive is complete: on a failure the exception reaches the server,
+      // which drops the connection without the last chunk, so a truncated tar is never taken as
+      // the whole bucket.
+      OutputStream out = exchange.getResponseBody();
+      export.writeTo(out);
+      out.close();
+    } catch (StorageException e) {
+      throw new IOException("Failed to export " + bucketName, e);
+    }
+  }
+
+  private static boolean isValidBucketName(String bucketName) {
+    return bucketName != null
+        && !bucketName.isEmpty()
+        && !bucketName.contains("/")
+        && S3Utils.isValidPath(bucketName);
+  }
+
+  private static void sendRecording(S3Context context, Path recording) throws IOException {
+    if (recording == null) {
+      context.sendError(409, "InvalidRequest");
+      return;
+    }
+    S3HttpExchange exchange = context.getHttpExchange();
+    try {
+      exchange.getResponseHeaders().addHeader("Content-Type", "application/octet-stream");
+      exchange
+          .getResponseHeaders()
+          .addHeader("Content-Disposition", "attachment; filename=\"tiny-s3.jfr\"");
+      exchange.sendResponseHeaders(200, Files.size(recording));
+      try (OutputStream os = exchange.getResponseBody()) {
+        Files.copy(recording, os);
+      }
+    } finally {
+      Files.deleteIfExists(recording);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package dev.totis.tinys3.archive;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public enum ArchiveFormat {
+  TAR,
+  TAR_GZ,
+  ZIP;
+
+  /** The format for a file name or extension such as {@code fixtures.tar.gz} or {@code zip}. */
+  public static ArchiveFormat fromName(String name) {
+    String lower = name.toLowerCase(Locale.ROOT);
+    if (lower.endsWith("tar.gz") || lower.endsWith("tgz")) {
+      return TAR_GZ;
+    }
+    if (lower.endsWith("tar")) {
+      return TAR;
+    }
+    if (lower.endsWith("zip")) {
+      return ZIP;
+    }
+    throw new IllegalArgumentException("Not a tar, tar.gz or zip archive: " + name);
+  }
+
+  ArchiveReader open(InputStream in) throws IOException {
+    return switch (this) {
+      case TAR -> new TarReader(new BufferedInputStream(in, 64 * 1024));
+      case TAR_GZ -> new TarReader(new BufferedInputStream(new GZIPInputStream(in, 64 * 1024)));
+      case ZIP -> zipReader(new ZipInputStream(new BufferedInputStream(in, 64 * 1024)));
+    };
+  }
+
+  private static ArchiveReader zipReader(ZipInputStream zip) {
+    // Entry bodies are handed to streams that close what they read to the end
+    InputStream body =
+        new FilterInputStream(zip) {
+          @Override
+          public void close() {}
+        };
+    return () -> {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (!entry.isDirectory()) {
+          return new ArchiveReader.Entry(entry.getName(), entry.getSize(), body);
+        }
+      }
+      return null;
+    };
+  }
+}
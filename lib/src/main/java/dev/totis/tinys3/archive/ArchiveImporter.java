@@ -0,0 +1,128 @@
+package dev.totis.tinys3.archive;
+
+import dev.totis.tinys3.S3FileOperations;
+import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.io.StorageException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads every file of an archive into a bucket as an object keyed by its path in the archive.
+ *
+ * <p>The archive is read in a single pass. Small files are buffered and written by up to {@code
+ * parallelism} threads while reading goes on, larger ones are streamed straight into storage. Each
+ * object goes through the same write as PutObject, so its ETag is computed while it is stored.
+ * Since writes overlap, a path listed twice in the same archive may end up with either copy.
+ */
+public class ArchiveImporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveImporter.class);
+
+  /** Files up to this size are buffered and written in parallel. */
+  static final int MAX_BUFFERED_SIZE = 1024 * 1024;
+
+  private final S3FileOperations fileOperations;
+  private final int parallelism;
+
+  public ArchiveImporter(S3FileOperations fileOperations, int parallelism) {
+    this.fileOperations = fileOperations;
+    this.parallelism = parallelism;
+  }
+
+  public record Result(long objects, long bytes, long skipped) {}
+
+  /** Imports {@code archive} into {@code bucketName}, creating the bucket if needed. */
+  public Result importArchive(String bucketName, InputStream archive, ArchiveFormat format)
+      throws IOException, StorageException {
+    createBucket(bucketName);
+    ArchiveReader reader = format.open(archive);
+    Semaphore slots = new Semaphore(parallelism);
+    AtomicReference<StorageException> failure = new AtomicReference<>();
+    LongAdder objects = new LongAdder();
+    LongAdder bytes = new LongAdder();
+    long skipped = 0;
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      ArchiveReader.Entry entry;
+      while (failure.get() == null && (entry = reader.next()) != null) {
+        String key = toKey(entry.name());
+        if (key == null) {
+          LOGGER.warn("Skipping archive entry with an invalid key: {}", entry.name());
+          skipped++;
+          continue;
+        }
+
+        byte[] head = entry.body().readNBytes(MAX_BUFFERED_SIZE + 1);
+        if (head.length <= MAX_BUFFERED_SIZE) {
+          acquire(slots);
+          executor.execute(
+              () -> {
+                try {
+                  fileOperations.handlePutObject(bucketName, key, new ByteArrayInputStream(head));
+                  objects.increment();
+                  bytes.add(head.length);
+                } catch (StorageException e) {
+                  failure.compareAndSet(null, e);
+                } finally {
+                  slots.release();
+                }
+              });
+        } else {
+          InputStream body = new SequenceInputStream(new ByteArrayInputStream(head), entry.body());
+          fileOperations.handlePutObject(bucketName, key, body);
+          objects.increment();
+          bytes.add(fileOperations.getSize(bucketName, key));
+        }
+      }
+    }
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return new Result(objects.sum(), bytes.sum(), skipped);
+  }
+
+  private void createBucket(String bucketName) throws StorageException {
+    if (fileOperations.bucketExists(bucketName)) {
+      return;
+    }
+    try {
+      fileOperations.createDirectory(bucketName);
+    } catch (StorageException e) {
+      // Another archive for the same bucket may have created it meanwhile
+      if (!fileOperations.bucketExists(bucketName)) {
+        throw e;
+      }
+    }
+  }
+
+  private static void acquire(Semaphore slots) throws InterruptedIOException {
+    try {
+      slots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while importing an archive");
+    }
+  }
+
+  /** The object key for an entry name, or null if it cannot be one. */
+  static String toKey(String name) {
+    String key = name;
+    while (key.startsWith("./") || key.startsWith("/")) {
+      key = key.substring(key.indexOf('/') + 1);
+    }
+    if (key.isEmpty() || key.endsWith("/") || !S3Utils.isValidPath(key)) {
+      return null;
+    }
+    return key;
+  }
+}
@@ -0,0 +1,17 @@
+package dev.totis.tinys3.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Reads the regular files of an archive one after the other. */
+interface ArchiveReader {
+
+  /**
+   * Moves to the next file, skipping what is left of the current one. Returns null at the end of
+   * the archive.
+   */
+  Entry next() throws IOException;
+
+  /** A file in the archive. The size is -1 when the archive does not record it up front. */
+  record Entry(String name, long size, InputStream body) {}
+}
@@ -0,0 +1,95 @@
+package dev.totis.tinys3.archive;
+
+import dev.totis.tinys3.io.FileEntry;
+import dev.totis.tinys3.io.FileOperations;
+import dev.totis.tinys3.io.StorageException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the objects of a bucket as a tar archive, keyed by their path in the archive so that
+ * {@link ArchiveImporter} can load it back.
+ *
+ * <p>The listing is consumed while the archive is written and bodies are copied straight from
+ * storage, so memory use does not grow with the bucket. Modification times keep their millisecond
+ * precision in pax headers. Objects deleted while the export runs are left out, an object that
+ * shrinks while it is written fails the export.
+ */
+public class BucketExporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BucketExporter.class);
+
+  private final FileOperations fileOps;
+
+  public BucketExporter(FileOperations fileOps) {
+    this.fileOps = fileOps;
+  }
+
+  public boolean bucketExists(String bucketName) {
+    return fileOps.exists(bucketName);
+  }
+
+  /** Writes the objects of {@code bucketName} under {@code prefix} and returns how many. */
+  public long export(String bucketName, String prefix, OutputStream out)
+      throws IOException, StorageException {
+    try (Export export = open(bucketName, prefix)) {
+      return export.writeTo(out);
+    }
+  }
+
+  /**
+   * Starts listing {@code bucketName} under {@code prefix}, so that a listing that cannot start
+   * fails before anything is written.
+   */
+  public Export open(String bucketName, String prefix) throws StorageException {
+    return new Export(bucketName, fileOps.stream(bucketName, prefix));
+  }
+
+  /** An export whose listing is open, written once by {@link #writeTo}. */
+  public final class Export implements Closeable {
+    private final String bucketName;
+    private final Stream<FileEntry> entries;
+
+    private Export(String bucketName, Stream<FileEntry> entries) {
+      this.bucketName = bucketName;
+      this.entries = entries;
+    }
+
+    /** Writes the archive and returns how many objects it holds. */
+    public long writeTo(OutputStream out) throws IOException {
+      TarWriter tar = new TarWriter(out);
+      long objects = 0;
+      Iterator<FileEntry> iterator = entries.iterator();
+      while (iterator.hasNext()) {
+        FileEntry entry = iterator.next();
+        if (entry.isDirectory()) {
+          continue;
+        }
+        String path = fileOps.getObjectPath(bucketName, entry.path());
+        InputStream body;
+        try {
+          body = fileOps.readFileStream(path);
+        } catch (StorageException e) {
+          LOGGER.debug("Skipping {}, deleted while exporting", path, e);
+          continue;
+        }
+        try (body) {
+          tar.write(entry.path(), entry.size(), entry.lastModified(), body);
+        }
+        objects++;
+      }
+      tar.finish();
+      return objects;
+    }
+
+    @Override
+    public void close() {
+      entries.close();
+    }
+  }
+}
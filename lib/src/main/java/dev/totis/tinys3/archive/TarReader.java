@@ -0,0 +1,163 @@
+package dev.totis.tinys3.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads ustar archives, including the GNU long name and pax path extensions that tar uses for
+ * names longer than 100 characters. Links, devices and directories are skipped.
+ */
+final class TarReader implements ArchiveReader {
+  static final int BLOCK_SIZE = 512;
+
+  private final InputStream in;
+  private final byte[] header = new byte[BLOCK_SIZE];
+  private EntryStream current;
+
+  TarReader(InputStream in) {
+    this.in = in;
+  }
+
+  @Override
+  public Entry next() throws IOException {
+    String longName = null;
+    while (true) {
+      if (current != null) {
+        current.skipToEnd();
+        current = null;
+      }
+      if (!readHeader()) {
+        return null;
+      }
+      char type = (char) header[156];
+      long size = parseSize();
+      String name = longName != null ? longName : headerName();
+      longName = null;
+      current = new EntryStream(size);
+
+      switch (type) {
+        case '0', '\0', '7' -> {
+          return new Entry(name, size, current);
+        }
+        case 'L' -> longName = trimName(current.readAllBytes());
+        case 'x' -> longName = paxPath(current.readAllBytes());
+        default -> {
+          // Directories, links, devices and global pax headers carry no object
+        }
+      }
+    }
+  }
+
+  private boolean readHeader() throws IOException {
+    int read = in.readNBytes(header, 0, BLOCK_SIZE);
+    if (read == 0) {
+      return false;
+    }
+    if (read < BLOCK_SIZE) {
+      throw new EOFException("Truncated tar header");
+    }
+    for (byte b : header) {
+      if (b != 0) {
+        return true;
+      }
+    }
+    // A zero block marks the end of the archive
+    return false;
+  }
+
+  private String headerName() {
+    String name = field(0, 100);
+    boolean ustar = field(257, 5).equals("ustar");
+    String prefix = ustar ? field(345, 155) : "";
+    return prefix.isEmpty() ? name : prefix + "/" + name;
+  }
+
+  private long parseSize() throws IOException {
+    if ((header[124] & 0x80) != 0) {
+      // Base-256, used by GNU tar for entries of 8 GiB and more
+      long size = header[124] & 0x7f;
+      for (int i = 125; i < 136; i++) {
+        size = (size << 8) | (header[i] & 0xff);
+      }
+      return size;
+    }
+    String octal = field(124, 12).trim();
+    try {
+      return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid tar entry size: " + octal, e);
+    }
+  }
+
+  private String field(int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static String trimName(byte[] data) {
+    int end = data.length;
+    while (end > 0 && data[end - 1] == 0) {
+      end--;
+    }
+    return new String(data, 0, end, StandardCharsets.UTF_8);
+  }
+
+  /** The path record of a pax header, made of "length key=value\n" records. */
+  private static String paxPath(byte[] data) {
+    String records = new String(data, StandardCharsets.UTF_8);
+    for (String record : records.split("\n")) {
+      int space = record.indexOf(' ');
+      if (space > 0 && record.startsWith("path=", space + 1)) {
+        return record.substring(space + 1 + "path=".length());
+      }
+    }
+    return null;
+  }
+
+  /** The body of the current entry, followed by padding up to the next block. */
+  private final class EntryStream extends InputStream {
+    private long remaining;
+    private final long padding;
+
+    EntryStream(long size) {
+      this.remaining = size;
+      this.padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Truncated tar entry");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+      if (read == -1) {
+        throw new EOFException("Truncated tar entry");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    void skipToEnd() throws IOException {
+      in.skipNBytes(remaining + padding);
+      remaining = 0;
+    }
+  }
+}
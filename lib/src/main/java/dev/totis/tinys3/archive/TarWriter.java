@@ -0,0 +1,138 @@
+package dev.totis.tinys3.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes ustar archives. Names that do not fit the header, sizes of 8 GiB and more and sub-second
+ * modification times go into a pax header in front of the entry, which {@link TarReader} and any
+ * POSIX tar understand.
+ */
+final class TarWriter {
+  private static final int BLOCK_SIZE = TarReader.BLOCK_SIZE;
+  private static final int NAME_LENGTH = 100;
+  private static final long MAX_OCTAL_SIZE = 077777777777L;
+  private static final byte[] PADDING = new byte[BLOCK_SIZE * 2];
+  private static final byte[] USTAR = ("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII);
+  // Only readers without pax support ever show this name
+  private static final byte[] PAX_HEADER_NAME = "PaxHeader".getBytes(StandardCharsets.US_ASCII);
+
+  private final OutputStream out;
+  private final byte[] header = new byte[BLOCK_SIZE];
+
+  TarWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /** Writes a file of exactly {@code size} bytes, read from {@code body}. */
+  void write(String name, long size, long lastModifiedMillis, InputStream body)
+      throws IOException {
+    byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+    boolean asciiName = encodedName.length == name.length();
+    StringBuilder pax = new StringBuilder();
+    if (encodedName.length > NAME_LENGTH || !asciiName) {
+      appendRecord(pax, "path", name);
+    }
+    if (size > MAX_OCTAL_SIZE) {
+      appendRecord(pax, "size", Long.toString(size));
+    }
+    if (lastModifiedMillis > 0 && lastModifiedMillis % 1000 != 0) {
+      long seconds = lastModifiedMillis / 1000;
+      appendRecord(pax, "mtime", String.format("%d.%03d", seconds, lastModifiedMillis % 1000));
+    }
+    if (!pax.isEmpty()) {
+      byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+      writeHeader(PAX_HEADER_NAME, records.length, lastModifiedMillis, 'x');
+      out.write(records);
+      pad(records.length);
+    }
+
+    writeHeader(encodedName, size, lastModifiedMillis, '0');
+    long copied = copy(body, size);
+    if (copied < size) {
+      throw new EOFException("Object " + name + " is shorter than its listed size of " + size);
+    }
+    pad(size);
+  }
+
+  /** Writes the two zero blocks that end the archive. */
+  void finish() throws IOException {
+    out.write(PADDING);
+    out.flush();
+  }
+
+  private void writeHeader(byte[] name, long size, long lastModifiedMillis, char type)
+      throws IOException {
+    Arrays.fill(header, (byte) 0);
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+    putOctal(100, 8, 0644);
+    putOctal(108, 8, 0);
+    putOctal(116, 8, 0);
+    if (size > MAX_OCTAL_SIZE) {
+      // Base-256 for readers that ignore the pax size
+      header[124] = (byte) 0x80;
+      for (int i = 135; i > 124; i--, size >>>= 8) {
+        header[i] = (byte) size;
+      }
+    } else {
+      putOctal(124, 12, size);
+    }
+    putOctal(136, 12, Math.max(0, lastModifiedMillis / 1000));
+    header[156] = (byte) type;
+    System.arraycopy(USTAR, 0, header, 257, USTAR.length);
+
+    // The checksum is computed with its own field filled with spaces
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    putOctal(148, 7, checksum);
+    out.write(header);
+  }
+
+  private long copy(InputStream body, long size) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(size, 1))];
+    long copied = 0;
+    while (copied < size) {
+      int read = body.read(buffer, 0, (int) Math.min(buffer.length, size - copied));
+      if (read == -1) {
+        break;
+      }
+      out.write(buffer, 0, read);
+      copied += read;
+    }
+    return copied;
+  }
+
+  private void pad(long size) throws IOException {
+    out.write(PADDING, 0, (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE));
+  }
+
+  private void putOctal(int offset, int length, long value) {
+    String digits = Long.toOctalString(value);
+    // Right aligned and zero padded, leaving the last byte of the field as terminator
+    int start = offset + length - 1 - digits.length();
+    for (int i = offset; i < start; i++) {
+      header[i] = '0';
+    }
+    for (int i = 0; i < digits.length(); i++) {
+      header[start + i] = (byte) digits.charAt(i);
+    }
+    header[offset + length - 1] = 0;
+  }
+
+  /** Appends a "length key=value\n" record, where the length counts the whole record. */
+  private static void appendRecord(StringBuilder pax, String key, String value) {
+    int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+    int total = length + Integer.toString(length).length();
+    if (Integer.toString(total).length() != Integer.toString(length).length()) {
+      total++;
+    }
+    pax.append(total).append(' ').append(key).append('=').append(value).append('\n');
+  }
+}
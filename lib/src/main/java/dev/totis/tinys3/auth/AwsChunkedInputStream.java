@@ -0,0 +1,371 @@
+package dev.totis.tinys3.auth;
+
+import static dev.totis.tinys3.S3Utils.bytesToHex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decodes an {@code aws-chunked} request body on the fly, handing out only the payload bytes.
+ *
+ * <p>Each chunk looks like {@code <hex-size>[;chunk-signature=<sig>]\r\n<data>\r\n} and the body
+ * ends with a zero sized chunk, optionally followed by trailing headers. When a signing context is
+ * given every chunk signature is checked against the rolling signature chain seeded by the request
+ * signature, and a signed trailer is checked as well. Trailing checksums announced through {@code
+ * x-amz-trailer} are computed over the decoded bytes and compared once the trailer arrives.
+ *
+ * <p>Only a single read buffer worth of data is ever held, so memory stays constant regardless of
+ * the object size. Any verification failure surfaces as a {@link PayloadVerificationException}.
+ */
+public class AwsChunkedInputStream extends InputStream {
+  private static final String EMPTY_SHA256 =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+  private static final String CHUNK_SIGNATURE = "chunk-signature=";
+  private static final String TRAILER_SIGNATURE = "x-amz-trailer-signature";
+  private static final int MAX_LINE_LENGTH = 4096;
+
+  /** Everything needed to continue the signature chain started by the seed signature. */
+  public record ChunkSigningContext(
+      byte[] signingKey, String timestamp, String scope, String seedSignature) {}
+
+  private final InputStream in;
+  private final ChunkSigningContext signing;
+  private final String trailerName;
+  private final long decodedContentLength;
+  private final TrailingChecksum checksum;
+  private final MessageDigest chunkDigest;
+  private final Mac mac;
+  private final byte[] single = new byte[1];
+  // A request error found before the body was read, thrown on the first read
+  private PayloadVerificationException pendingError;
+
+  private String previousSignature;
+  private String chunkSignature;
+  private long chunkRemaining;
+  private long decodedBytes;
+  private boolean finished;
+
+  /**
+   * @param in the raw request body, chunk framing included
+   * @param signing signing context, or {@code null} for {@code STREAMING-UNSIGNED-PAYLOAD-TRAILER}
+   * @param trailerName value of the {@code x-amz-trailer} header, or {@code null}
+   * @param decodedContentLength value of {@code x-amz-decoded-content-length}, or -1 if unknown
+   */
+  public AwsChunkedInputStream(
+      InputStream in, ChunkSigningContext signing, String trailerName, long decodedContentLength)
+      throws GeneralSecurityException {
+    this.in = in;
+    this.signing = signing;
+    this.trailerName = trailerName == null ? null : trailerName.trim().toLowerCase(Locale.ROOT);
+    this.decodedContentLength = decodedContentLength;
+    this.checksum = this.trailerName == null ? null : TrailingChecksum.forTrailer(this.trailerName);
+    if (signing != null) {
+      this.chunkDigest = MessageDigest.getInstance("SHA-256");
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(signing.signingKey(), "HmacSHA256"));
+      this.previousSignature = signing.seedSignature();
+    } else {
+      this.chunkDigest = null;
+      this.mac = null;
+    }
+  }
+
+  /**
+   * Like the constructor, with the raw {@code x-amz-decoded-content-length} header or {@code
+   * null}. A value that is not a non-negative number fails the first read with {@code
+   * InvalidArgument}.
+   */
+  public static AwsChunkedInputStream withDecodedLengthHeader(
+      InputStream in, ChunkSigningContext signing, String trailerName, String decodedLength)
+      throws GeneralSecurityException {
+    long length = -1;
+    if (decodedLength != null) {
+      try {
+        length = Long.parseLong(decodedLength.trim());
+      } catch (NumberFormatException e) {
+        length = Long.MIN_VALUE;
+      }
+    }
+    AwsChunkedInputStream stream =
+        new AwsChunkedInputStream(in, signing, trailerName, Math.max(length, -1));
+    if (decodedLength != null && length < 0) {
+      stream.pendingError =
+          new PayloadVerificationException(
+              400, "InvalidArgument", "Invalid x-amz-decoded-content-length: " + decodedLength);
+    }
+    return stream;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int n = read(single, 0, 1);
+    return n == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    if (pendingError != null) {
+      throw pendingError;
+    }
+    if (finished) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+
+    if (chunkRemaining == 0) {
+      readChunkHeader();
+      if (chunkRemaining == 0) {
+        readFinalChunk();
+        return -1;
+      }
+    }
+
+    int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+    if (n == -1) {
+      throw new PayloadVerificationException(
+          400, "IncompleteBody", "Request body ended in the middle of a chunk");
+    }
+    chunkRemaining -= n;
+    decodedBytes += n;
+    if (chunkDigest != null) {
+      chunkDigest.update(b, off, n);
+    }
+    if (checksum != null) {
+      checksum.update(b, off, n);
+    }
+
+    if (chunkRemaining == 0) {
+      String terminator = readLine();
+      if (terminator == null || !terminator.isEmpty()) {
+        throw new PayloadVerificationException(400, "IncompleteBody", "Malformed chunk terminator");
+      }
+      verifyChunkSignature();
+    }
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private void readChunkHeader() throws IOException {
+    String header = readLine();
+    if (header == null) {
+      throw new PayloadVerificationException(
+          400, "IncompleteBody", "Request body ended before the final chunk");
+    }
+
+    int extension = header.indexOf(';');
+    String size = extension >= 0 ? header.substring(0, extension) : header;
+    try {
+      chunkRemaining = Long.parseLong(size.trim(), 16);
+    } catch (NumberFormatException e) {
+      throw new PayloadVerificationException(400, "InvalidRequest", "Invalid chunk size: " + size);
+    }
+    if (chunkRemaining < 0) {
+      throw new PayloadVerificationException(400, "InvalidRequest", "Invalid chunk size: " + size);
+    }
+
+    chunkSignature = null;
+    if (extension >= 0) {
+      String ext = header.substring(extension + 1).trim();
+      if (ext.startsWith(CHUNK_SIGNATURE)) {
+        chunkSignature = ext.substring(CHUNK_SIGNATURE.length());
+      }
+    }
+    if (signing != null && chunkSignature == null) {
+      throw new PayloadVerificationException(
+          403, "SignatureDoesNotMatch", "Chunk is missing its signature");
+    }
+  }
+
+  private void readFinalChunk() throws IOException {
+    verifyChunkSignature();
+
+    Map<String, String> trailers = new TreeMap<>();
+    String line;
+    while ((line = readLine()) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw new PayloadVerificationException(400, "InvalidRequest", "Malformed trailer: " + line);
+      }
+      trailers.put(
+          line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+          line.substring(colon + 1).trim());
+    }
+
+    if (trailerName != null) {
+      verifyTrailers(trailers);
+    }
+
+    if (decodedContentLength >= 0 && decodedBytes != decodedContentLength) {
+      throw new PayloadVerificationException(
+          400,
+          "IncompleteBody",
+          "Decoded " + decodedBytes + " bytes but expected " + decodedContentLength);
+    }
+    finished = true;
+  }
+
+  private void verifyChunkSignature() throws PayloadVerificationException {
+    if (signing == null) {
+      return;
+    }
+    String stringToSign =
+        "AWS4-HMAC-SHA256-PAYLOAD\n"
+            + signing.timestamp()
+            + "\n"
+            + signing.scope()
+            + "\n"
+            + previousSignature
+            + "\n"
+            + EMPTY_SHA256
+            + "\n"
+            + bytesToHex(chunkDigest.digest());
+    previousSignature = checkSignature(stringToSign, chunkSignature, "Chunk signature mismatch");
+  }
+
+  private void verifyTrailers(Map<String, String> trailers) throws PayloadVerificationException {
+    if (signing != null) {
+      StringBuilder canonicalTrailers = new StringBuilder();
+      trailers.forEach(
+          (name, value) -> {
+            if (!name.equals(TRAILER_SIGNATURE)) {
+              canonicalTrailers.append(name).append(':').append(value).append('\n');
+            }
+          });
+      String stringToSign =
+          "AWS4-HMAC-SHA256-TRAILER\n"
+              + signing.timestamp()
+              + "\n"
+              + signing.scope()
+              + "\n"
+              + previousSignature
+              + "\n"
+              + sha256Hex(canonicalTrailers.toString());
+      previousSignature =
+          checkSignature(
+              stringToSign, trailers.get(TRAILER_SIGNATURE), "Trailer signature mismatch");
+    }
+
+    String provided = trailers.get(trailerName);
+    if (provided == null) {
+      throw new PayloadVerificationException(
+          400, "InvalidRequest", "Missing announced trailer: " + trailerName);
+    }
+    if (checksum != null && !checksum.value().equals(provided)) {
+      throw new PayloadVerificationException(
+          400, "BadDigest", "The " + trailerName + " you specified did not match");
+    }
+  }
+
+  private String checkSignature(String stringToSign, String provided, String message)
+      throws PayloadVerificationException {
+    String expected = bytesToHex(mac.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+    if (provided == null
+        || !MessageDigest.isEqual(
+            expected.getBytes(StandardCharsets.US_ASCII),
+            provided.getBytes(StandardCharsets.US_ASCII))) {
+      throw new PayloadVerificationException(403, "SignatureDoesNotMatch", message);
+    }
+    return expected;
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+          length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+      }
+      if (line.size() >= MAX_LINE_LENGTH) {
+        throw new PayloadVerificationException(400, "InvalidRequest", "Chunk header too long");
+      }
+      line.write(b);
+    }
+    if (line.size() > 0) {
+      throw new PayloadVerificationException(
+          400, "IncompleteBody", "Request body ended in the middle of a line");
+    }
+    return null;
+  }
+
+  private static String sha256Hex(String value) {
+    try {
+      return bytesToHex(
+          MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("SHA-256 algorithm not found", e);
+    }
+  }
+
+  /** Checksum announced through {@code x-amz-trailer}, in the encoding S3 sends it back. */
+  private interface TrailingChecksum {
+    void update(byte[] b, int off, int len);
+
+    String value();
+
+    static TrailingChecksum forTrailer(String trailerName) throws GeneralSecurityException {
+      return switch (trailerName) {
+        case "x-amz-checksum-crc32" -> crc(new CRC32());
+        case "x-amz-checksum-crc32c" -> crc(new CRC32C());
+        case "x-amz-checksum-sha1" -> digest(MessageDigest.getInstance("SHA-1"));
+        case "x-amz-checksum-sha256" -> digest(MessageDigest.getInstance("SHA-256"));
+        default -> null;
+      };
+    }
+
+    private static TrailingChecksum crc(Checksum crc) {
+      return new TrailingChecksum() {
+        @Override
+        public void update(byte[] b, int off, int len) {
+          crc.update(b, off, len);
+        }
+
+        @Override
+        public String value() {
+          byte[] value = ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+          return Base64.getEncoder().encodeToString(value);
+        }
+      };
+    }
+
+    private static TrailingChecksum digest(MessageDigest digest) {
+      return new TrailingChecksum() {
+        @Override
+        public void update(byte[] b, int off, int len) {
+          digest.update(b, off, len);
+        }
+
+        @Override
+        public String value() {
+          return Base64.getEncoder().encodeToString(digest.digest());
+        }
+      };
+    }
+  }
+}
@@ -1,41 +1,77 @@
 package dev.totis.tinys3.auth;
 
-import static dev.totis.tinys3.CanonicalRequest.createCanonicalRequest;
-import static dev.totis.tinys3.CanonicalRequest.createPresignedCanonicalRequest;
+import static dev.totis.tinys3.CanonicalRequest.*;
 import static dev.totis.tinys3.S3Utils.*;
 import static dev.totis.tinys3.S3Utils.bytesToHex;
 
 import dev.totis.tinys3.S3Context;
 import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.auth.AwsChunkedInputStream.ChunkSigningContext;
 import dev.totis.tinys3.http.S3HttpExchange;
 import dev.totis.tinys3.http.S3HttpHeaders;
+import dev.totis.tinys3.jfr.AuthenticationEvent;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DefaultAuthenticator implements S3Authenticator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DefaultAuthenticator.class);
   private static final String AWS_ALGORITHM = "AWS4-HMAC-SHA256";
   private static final Pattern CREDENTIAL_PATTERN = Pattern.compile("Credential=([^/,]+)");
 
   private final Map<String, Credentials> credentials;
+  private final PresignedUrlCache presignedUrlCache;
 
   public DefaultAuthenticator(Map<String, Credentials> credentials) {
+    this(credentials, new PresignedUrlCache(PresignedUrlCache.DEFAULT_MAX_ENTRIES));
+  }
+
+  public DefaultAuthenticator(
+      Map<String, Credentials> credentials, PresignedUrlCache presignedUrlCache) {
     this.credentials = credentials;
+    this.presignedUrlCache = presignedUrlCache;
+  }
+
+  public PresignedUrlCache getPresignedUrlCache() {
+    return presignedUrlCache;
   }
 
   @Override
   public boolean authenticateRequest(S3Context context) {
+    AuthenticationEvent event = new AuthenticationEvent();
+    event.begin();
+    boolean authenticated = authenticate(context, event);
+    event.end();
+    if (event.shouldCommit()) {
+      event.operation = context.getOperation().getApiName();
+      event.bucket = context.getBucketName();
+      event.keyHash = context.getObjectKey().hashCode();
+      event.authenticated = authenticated;
+      event.commit();
+    }
+    return authenticated;
+  }
+
+  private boolean authenticate(S3Context context, AuthenticationEvent event) {
     try {
+      String requestURL = constructRequestURL(context.getHttpExchange());
+      event.presigned = context.isPreSignedUrl(requestURL);
+      if (event.presigned && presignedUrlCache.isVerified(context.getMethod(), requestURL)) {
+        event.cached = true;
+        return true;
+      }
+
       Optional<String> accessKey = extractAccessKey(context.getHttpExchange());
       if (accessKey.isEmpty()) {
         return false;
@@ -46,9 +82,9 @@ public class DefaultAuthenticator implements S3Authenticator {
         return false;
       }
 
-      return verifySignature(context, userCredentials);
+      return verifySignature(context, requestURL, userCredentials);
     } catch (Exception e) {
-      e.printStackTrace();
+      LOGGER.info("Could not verify request signature", e);
       return false;
     }
   }
@@ -59,7 +95,7 @@ public class DefaultAuthenticator implements S3Authenticator {
       Optional<String> accessKey = extractAccessKey(exchange);
       return accessKey.map(credentials::get).orElse(null);
     } catch (Exception e) {
-      e.printStackTrace();
+      LOGGER.info("Could not extract credentials", e);
       return null;
     }
   }
@@ -104,12 +140,11 @@ public class DefaultAuthenticator implements S3Authenticator {
     return AWS_ALGORITHM.equals(queryParams.get(key));
   }
 
-  private boolean verifySignature(S3Context s3Context, Credentials userCredentials)
-      throws Exception {
+  private boolean verifySignature(
+      S3Context s3Context, String requestURL, Credentials userCredentials) throws Exception {
     S3HttpHeaders headers = s3Context.getHttpExchange().getRequestHeaders();
     Map<String, String> headerMap = convertHeaders(headers);
 
-    String requestURL = constructRequestURL(s3Context.getHttpExchange());
     String dateHeader = headers.getFirst("X-Amz-Date");
     String authHeader = headers.getFirst("Authorization");
 
@@ -133,7 +168,7 @@ public class DefaultAuthenticator implements S3Authenticator {
         Objects.requireNonNullElse(
             exchange.getRequestHeaders().getFirst("X-Forwarded-Proto"), "http");
     String protocol = isHttps.equals("https") ? "https" : "http";
-    return (host != null) ? String.format("%s://%s%s", protocol, host, uri) : uri.toString();
+    return (host != null) ? protocol + "://" + host + uri : uri.toString();
   }
 
   public boolean verifyRequest(
@@ -169,21 +204,61 @@ public class DefaultAuthenticator implements S3Authenticator {
       return false;
     }
 
+    // The body is left on the wire for the handler to stream, only requests without a
+    // x-amz-content-sha256 header need it buffered up front to compute the hash
+    String contentSha256 = headers.get("X-amz-content-sha256");
+    byte[] payload = contentSha256 == null ? s3Context.getPayload() : null;
     String canonicalRequest =
-        createCanonicalRequest(
-            s3Context.getMethod(), requestUrl, headers, signedHeaders, s3Context.getPayload());
-    System.out.println("==== HEADERS ====");
-    System.out.println(headers);
-    System.out.println("========================");
-    System.out.println("==== CANONICAL REQUEST: ");
-    System.out.println(canonicalRequest);
-    System.out.println("========================");
+        createCanonicalRequest(s3Context.getMethod(), requestUrl, headers, signedHeaders, payload);
+    LOGGER.debug("Canonical request:\n{}", canonicalRequest);
     String stringToSign =
         createStringToSign(dateHeader, credentialDate, credentialRegion, canonicalRequest);
     byte[] signingKey = getSigningKey(credentialDate, userCredentials);
     String calculatedSignature = calculateSignature(stringToSign, signingKey);
 
-    return calculatedSignature.equals(providedSignature);
+    if (!calculatedSignature.equals(providedSignature)) {
+      return false;
+    }
+
+    if (isStreamingPayload(contentSha256)) {
+      String scope = credentialDate + "/" + credentialRegion + "/s3/aws4_request";
+      return decodeChunkedPayload(
+          s3Context,
+          headers,
+          contentSha256,
+          new ChunkSigningContext(signingKey, dateHeader, scope, providedSignature));
+    }
+    if (isPayloadHash(contentSha256)) {
+      s3Context.setPayloadStream(
+          new Sha256VerifyingInputStream(s3Context.getPayloadStream(), contentSha256));
+    }
+    return true;
+  }
+
+  private boolean decodeChunkedPayload(
+      S3Context s3Context,
+      Map<String, String> headers,
+      String contentSha256,
+      ChunkSigningContext signing)
+      throws GeneralSecurityException {
+    ChunkSigningContext chunkSigning;
+    switch (contentSha256) {
+      case STREAMING_SIGNED_PAYLOAD, STREAMING_SIGNED_PAYLOAD_TRAILER -> chunkSigning = signing;
+      case STREAMING_UNSIGNED_PAYLOAD_TRAILER -> chunkSigning = null;
+      default -> {
+        // SigV4a (ECDSA) chunk signatures are not supported
+        return false;
+      }
+    }
+
+    // A malformed length is answered with a 400 once the handler reads the body
+    s3Context.setPayloadStream(
+        AwsChunkedInputStream.withDecodedLengthHeader(
+            s3Context.getPayloadStream(),
+            chunkSigning,
+            headers.get("x-amz-trailer"),
+            headers.get("x-amz-decoded-content-length")));
+    return true;
   }
 
   public boolean verifyPreSignedUrl(String requestUrl, String method, Credentials userCredentials)
@@ -238,7 +313,11 @@ public class DefaultAuthenticator implements S3Authenticator {
     byte[] signingKey = getSigningKey(credentialDate, userCredentials);
     String calculatedSignature = calculateSignature(stringToSign, signingKey);
 
-    return calculatedSignature.equals(signature);
+    if (!calculatedSignature.equals(signature)) {
+      return false;
+    }
+    presignedUrlCache.put(method, requestUrl, getExpirationTime(date, expires));
+    return true;
   }
 
   private Map<String, String> parseQueryString(String query) {
@@ -264,10 +343,7 @@ public class DefaultAuthenticator implements S3Authenticator {
       long expiration,
       S3HttpHeaders requestHeaders)
       throws NoSuchAlgorithmException, InvalidKeyException {
-    String timestamp =
-        DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
-            .withZone(ZoneOffset.UTC)
-            .format(Instant.now());
+    String timestamp = AMZ_DATE_FORMATTER.format(Instant.now());
 
     Map<String, String> queryParams = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     queryParams.put("X-Amz-Algorithm", "AWS4-HMAC-SHA256");
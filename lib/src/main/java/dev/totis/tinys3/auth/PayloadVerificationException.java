@@ -0,0 +1,27 @@
+package dev.totis.tinys3.auth;
+
+import java.io.IOException;
+
+/**
+ * Raised while a request body is being consumed when it fails verification against what the
+ * client signed. Carries the S3 error to send back, since by the time it surfaces the request has
+ * already been authenticated and the storage layer is mid-write.
+ */
+public class PayloadVerificationException extends IOException {
+  private final int statusCode;
+  private final String errorCode;
+
+  public PayloadVerificationException(int statusCode, String errorCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+    this.errorCode = errorCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getErrorCode() {
+    return errorCode;
+  }
+}
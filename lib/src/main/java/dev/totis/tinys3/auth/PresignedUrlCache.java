@@ -0,0 +1,81 @@
+package dev.totis.tinys3.auth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers presigned URLs that already passed signature verification until they expire, so
+ * repeated hits on the same URL skip parsing and HMAC work entirely.
+ *
+ * <p>Entries are keyed by the method and the full request URL, which includes the signature and
+ * every input that went into it. When the cache is full, expired entries are purged first and
+ * arbitrary entries are dropped after that.
+ */
+public class PresignedUrlCache {
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  private final int maxEntries;
+  private final Map<String, Long> expirations = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public PresignedUrlCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  public boolean isVerified(String method, String requestUrl) {
+    if (maxEntries <= 0) {
+      return false;
+    }
+    String key = key(method, requestUrl);
+    Long expiresAt = expirations.get(key);
+    if (expiresAt != null && System.currentTimeMillis() <= expiresAt) {
+      hits.increment();
+      return true;
+    }
+    if (expiresAt != null) {
+      expirations.remove(key, expiresAt);
+    }
+    misses.increment();
+    return false;
+  }
+
+  public void put(String method, String requestUrl, long expiresAt) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    if (expirations.size() >= maxEntries) {
+      evict();
+    }
+    expirations.put(key(method, requestUrl), expiresAt);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int size() {
+    return expirations.size();
+  }
+
+  private void evict() {
+    long now = System.currentTimeMillis();
+    expirations.values().removeIf(expiresAt -> expiresAt < now);
+
+    Iterator<String> keys = expirations.keySet().iterator();
+    while (expirations.size() >= maxEntries && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  private static String key(String method, String requestUrl) {
+    return method + ' ' + requestUrl;
+  }
+}
@@ -0,0 +1,82 @@
+package dev.totis.tinys3.auth;
+
+import static dev.totis.tinys3.S3Utils.bytesToHex;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes the body as it is read and fails the final read when the digest does not match the
+ * {@code x-amz-content-sha256} the request was signed with. Consumers that only commit after a
+ * clean end of stream therefore never persist a body the client did not sign.
+ */
+public class Sha256VerifyingInputStream extends FilterInputStream {
+  private final MessageDigest digest;
+  private final String expectedHash;
+  private boolean verified;
+
+  public Sha256VerifyingInputStream(InputStream in, String expectedHash)
+      throws NoSuchAlgorithmException {
+    super(in);
+    this.digest = MessageDigest.getInstance("SHA-256");
+    this.expectedHash = expectedHash;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      verify();
+    } else {
+      digest.update((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = in.read(b, off, len);
+    if (n == -1) {
+      verify();
+    } else {
+      digest.update(b, off, n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    // Skipped bytes still have to be hashed
+    byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+    long skipped = 0;
+    while (skipped < n) {
+      int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+      if (read == -1) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void verify() throws PayloadVerificationException {
+    if (verified) {
+      return;
+    }
+    verified = true;
+    if (!bytesToHex(digest.digest()).equalsIgnoreCase(expectedHash)) {
+      throw new PayloadVerificationException(
+          400,
+          "XAmzContentSHA256Mismatch",
+          "The request body does not match x-amz-content-sha256 " + expectedHash);
+    }
+  }
+}
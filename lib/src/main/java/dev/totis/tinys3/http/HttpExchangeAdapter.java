@@ -4,6 +4,7 @@ import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 
 public class HttpExchangeAdapter implements S3HttpExchange {
@@ -35,6 +36,11 @@ public class HttpExchangeAdapter implements S3HttpExchange {
     return exchange.getRequestBody();
   }
 
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return exchange.getRemoteAddress();
+  }
+
   @Override
   public S3HttpHeaders getResponseHeaders() {
     return headersAdapter;
@@ -3,6 +3,7 @@ package dev.totis.tinys3.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 
 public interface S3HttpExchange {
@@ -15,6 +16,11 @@ public interface S3HttpExchange {
 
   InputStream getRequestBody();
 
+  /** The client address, or {@code null} when the transport does not know it. */
+  default InetSocketAddress getRemoteAddress() {
+    return null;
+  }
+
   // Response related methods
   S3HttpHeaders getResponseHeaders();
 
@@ -0,0 +1,158 @@
+package dev.totis.tinys3.io;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stores each distinct object body once, keyed by its SHA-256 and length, so keys written with the
+ * same content share one copy. The store keeps a reference on every content it knows, keys hold
+ * the others. A background task frees contents no key refers to anymore.
+ */
+public class ContentStore implements Closeable {
+  public static final Duration DEFAULT_RECLAIM_INTERVAL = Duration.ofSeconds(5);
+
+  private final ConcurrentHashMap<ContentId, SharedContent> contents = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService reclaimer;
+  private final LongAdder storedBytes = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder savedBytes = new LongAdder();
+  private final LongAdder reclaimed = new LongAdder();
+
+  public ContentStore() {
+    this(DEFAULT_RECLAIM_INTERVAL);
+  }
+
+  /** Frees unreferenced contents every {@code reclaimInterval}, or only on {@link #reclaim()}. */
+  public ContentStore(Duration reclaimInterval) {
+    if (reclaimInterval.isZero()) {
+      this.reclaimer = null;
+      return;
+    }
+    this.reclaimer =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("tiny-s3-content-reclaimer").daemon().factory());
+    long period = reclaimInterval.toMillis();
+    reclaimer.scheduleWithFixedDelay(this::reclaim, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** Distinct contents currently stored. */
+  public int getContents() {
+    return contents.size();
+  }
+
+  public long getStoredBytes() {
+    return storedBytes.sum();
+  }
+
+  /** Writes that found their content already stored. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** Bytes that writes did not have to keep because the content was already stored. */
+  public long getSavedBytes() {
+    return savedBytes.sum();
+  }
+
+  public long getReclaimed() {
+    return reclaimed.sum();
+  }
+
+  /**
+   * Returns the stored content equal to {@code content}, or stores it. Takes over the caller's
+   * reference on {@code content} and returns one on the result.
+   */
+  ObjectContent intern(String sha256, ObjectContent content) {
+    ContentId id = new ContentId(sha256, content.length());
+    while (true) {
+      SharedContent existing = contents.get(id);
+      if (existing != null) {
+        if (existing.retain()) {
+          content.release();
+          hits.increment();
+          savedBytes.add(id.length());
+          return existing;
+        }
+        // Freed by the reclaimer but not yet removed
+        contents.remove(id, existing);
+        continue;
+      }
+      SharedContent shared = new SharedContent(id, content);
+      if (contents.putIfAbsent(id, shared) == null) {
+        storedBytes.add(id.length());
+        shared.retain();
+        return shared;
+      }
+    }
+  }
+
+  /** Frees every content that only the store still refers to and returns how many. */
+  public int reclaim() {
+    int count = 0;
+    for (SharedContent content : contents.values()) {
+      if (content.releaseIfLast()) {
+        contents.remove(content.id, content);
+        storedBytes.add(-content.id.length());
+        count++;
+      }
+    }
+    reclaimed.add(count);
+    return count;
+  }
+
+  @Override
+  public void close() {
+    if (reclaimer != null) {
+      reclaimer.shutdownNow();
+    }
+  }
+
+  private record ContentId(String sha256, long length) {}
+
+  private static final class SharedContent extends ReferenceCountedContent {
+    private final ContentId id;
+    private final ObjectContent delegate;
+
+    SharedContent(ContentId id, ObjectContent delegate) {
+      this.id = id;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public long length() {
+      return delegate.length();
+    }
+
+    @Override
+    public long memoryBytes() {
+      return delegate.memoryBytes();
+    }
+
+    /** Not counting the reference of the store, which lets go once no key holds the content. */
+    @Override
+    public boolean isShared() {
+      return references() > 2;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return delegate.openStream();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+      return delegate.toByteArray();
+    }
+
+    @Override
+    void free() {
+      delegate.release();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package dev.totis.tinys3.io;
+
+/** When a write to disk storage is acknowledged, relative to reaching stable storage. */
+public enum Durability {
+  /** Once the object is in the page cache. A power loss can lose acknowledged writes. */
+  NONE,
+  /** Once the object and the directory entry naming it are forced, each write on its own. */
+  FSYNC,
+  /**
+   * Like {@link #FSYNC}, but writers arriving close together share the forcing of their
+   * directories, see {@link GroupSync}.
+   */
+  GROUP_COMMIT
+}
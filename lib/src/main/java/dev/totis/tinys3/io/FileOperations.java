@@ -2,6 +2,9 @@ package dev.totis.tinys3.io;
 
 import java.io.InputStream;
 import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
 
 public interface FileOperations {
   void createDirectory(String path) throws StorageException;
@@ -12,10 +15,52 @@ public interface FileOperations {
 
   void appendToFile(String path, byte[] data) throws StorageException;
 
+  /** Appends the content of the temp file {@code sourcePath} to {@code path}. */
+  default void appendTempFile(String path, String sourcePath) throws StorageException {
+    appendToFile(path, readTempFile(sourcePath));
+  }
+
+  /**
+   * Replaces {@code path} with the temp files {@code sourcePaths} joined in order, as when a
+   * multipart upload completes. Backends replace the object in one step, so readers see either
+   * the old or the new object; this default falls back to deleting and appending.
+   */
+  default void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    if (exists(path)) {
+      delete(path);
+    }
+    for (String sourcePath : sourcePaths) {
+      appendTempFile(path, sourcePath);
+    }
+  }
+
+  /**
+   * Writes {@code data} to a new temp file, which {@link #moveTempFile} can later put in place, and
+   * returns its path. Lets a caller read a body without holding the lock it publishes under.
+   */
+  default String stageTempFile(InputStream data) throws StorageException {
+    String path = createTempDirectory("staged-") + "/body";
+    writeTempFile(path, data);
+    return path;
+  }
+
+  /**
+   * Replaces {@code path} with the temp file {@code sourcePath}, which is gone afterwards. Backends
+   * on a file system rename a file from {@link #stageTempFile}; this default copies it.
+   */
+  default void moveTempFile(String path, String sourcePath) throws StorageException {
+    concatTempFiles(path, List.of(sourcePath));
+    deleteTempFile(sourcePath);
+  }
+
   void writeFile(String path, byte[] data) throws StorageException;
 
+  void writeFile(String path, InputStream data) throws StorageException;
+
   void writeTempFile(String path, byte[] data) throws StorageException;
 
+  void writeTempFile(String path, InputStream data) throws StorageException;
+
   byte[] readTempFile(String path) throws StorageException;
 
   InputStream readFileStream(String path) throws StorageException;
@@ -24,6 +69,21 @@ public interface FileOperations {
 
   FileEntry[] list(String bucketName) throws StorageException;
 
+  /** Lists the entries of {@code bucketName} whose path starts with {@code prefix}. */
+  default FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    return Arrays.stream(list(bucketName))
+        .filter(entry -> entry.path().startsWith(prefix))
+        .toArray(FileEntry[]::new);
+  }
+
+  /**
+   * Lists like {@link #list(String, String)}, in no particular order, producing entries as the
+   * stream is consumed where the backend allows it. The stream must be closed.
+   */
+  default Stream<FileEntry> stream(String bucketName, String prefix) throws StorageException {
+    return Arrays.stream(list(bucketName, prefix));
+  }
+
   long getSize(String path) throws StorageException;
 
   FileTime getLastModifiedTime(String path) throws StorageException;
@@ -0,0 +1,88 @@
+package dev.totis.tinys3.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Forces directories for many writers at once. The first writer to ask waits {@code window} for
+ * others to join, then forces every directory asked for so far, each one once, while later writers
+ * gather into the next batch. Everyone in a batch returns when it is forced, or fails with it.
+ */
+final class GroupSync {
+  private static final class Batch {
+    final Set<Path> directories = new HashSet<>();
+    boolean done;
+    IOException failure;
+  }
+
+  private final long windowNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition synced = lock.newCondition();
+  private final LongAdder forces = new LongAdder();
+  // Guarded by lock
+  private Batch open = new Batch();
+  private boolean syncing;
+
+  GroupSync(Duration window) {
+    this.windowNanos = window.toNanos();
+  }
+
+  /** Returns once {@code directory} was forced after this call started. */
+  void sync(Path directory) throws IOException {
+    lock.lock();
+    try {
+      Batch batch = open;
+      batch.directories.add(directory);
+      while (!batch.done) {
+        if (syncing) {
+          synced.awaitUninterruptibly();
+          continue;
+        }
+        // Nobody is forcing, so this batch is the open one and its caller leads it
+        syncing = true;
+        if (windowNanos > 0) {
+          lock.unlock();
+          try {
+            LockSupport.parkNanos(windowNanos);
+          } finally {
+            lock.lock();
+          }
+        }
+        Set<Path> directories = batch.directories;
+        open = new Batch();
+        lock.unlock();
+        IOException error = null;
+        try {
+          for (Path path : directories) {
+            StorageFiles.force(path);
+            forces.increment();
+          }
+        } catch (IOException e) {
+          error = e;
+        } finally {
+          lock.lock();
+        }
+        batch.failure = error;
+        batch.done = true;
+        syncing = false;
+        synced.signalAll();
+      }
+      if (batch.failure != null) {
+        throw new IOException("Failed to force " + directory, batch.failure);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long getForces() {
+    return forces.sum();
+  }
+}
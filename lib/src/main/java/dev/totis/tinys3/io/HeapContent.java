@@ -0,0 +1,47 @@
+package dev.totis.tinys3.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/** Content in a heap array, or a slice of one, left to the garbage collector. */
+final class HeapContent implements ObjectContent {
+  private final byte[] data;
+  private final int offset;
+  private final int length;
+
+  HeapContent(byte[] data) {
+    this(data, 0, data.length);
+  }
+
+  HeapContent(byte[] data, int offset, int length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public boolean retain() {
+    return true;
+  }
+
+  @Override
+  public void release() {}
+
+  @Override
+  public InputStream openStream() {
+    return new ByteArrayInputStream(data, offset, length);
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    return offset == 0 && length == data.length
+        ? data
+        : Arrays.copyOfRange(data, offset, offset + length);
+  }
+}
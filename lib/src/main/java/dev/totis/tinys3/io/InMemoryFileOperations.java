@@ -1,28 +1,88 @@
 package dev.totis.tinys3.io;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps every bucket, directory and object in one sorted map keyed by path, so listing a prefix,
+ * checking whether a directory is empty and enumerating buckets are range scans proportional to
+ * the result rather than to the number of stored keys.
+ *
+ * <p>With a {@link MemoryBudget}, cold object bodies move to disk or are dropped once the data in
+ * memory goes past its capacity. Their keys and metadata always stay in the map. With a {@link
+ * ContentStore}, keys written with identical bodies share a single copy.
+ */
 public class InMemoryFileOperations implements FileOperations {
-  private final Map<String, FileData> storage;
+  private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryFileOperations.class);
+  private static final String TEMP_PREFIX = "/temp-";
+  // The largest array the JVM allocates
+  private static final int MAX_HEAP_CONTENT = Integer.MAX_VALUE - 8;
 
-  private static class FileData {
-    byte[] content;
-    boolean isDirectory;
-    long lastModified;
+  private volatile ConcurrentSkipListMap<String, FileData> storage;
+  // Held shared by every change to storage and exclusively by restore, so no change lands in a map
+  // that restore already swapped out and released
+  private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private final SlabAllocator allocator;
+  private final MemoryBudget budget;
+  private final ContentStore contentStore;
 
-    FileData(byte[] content, boolean isDirectory) {
+  static final class FileData {
+    final ObjectContent content;
+    final boolean isDirectory;
+    final long lastModified;
+
+    FileData(ObjectContent content, boolean isDirectory) {
+      this(content, isDirectory, System.currentTimeMillis());
+    }
+
+    FileData(ObjectContent content, boolean isDirectory, long lastModified) {
       this.content = content;
       this.isDirectory = isDirectory;
-      this.lastModified = System.currentTimeMillis();
+      this.lastModified = lastModified;
+    }
+
+    long size() {
+      return isDirectory ? 0 : content.length();
     }
   }
 
   public InMemoryFileOperations() {
-    this.storage = new ConcurrentHashMap<>();
+    this(null, null);
+  }
+
+  /**
+   * Keeps object bodies in off-heap blocks from {@code allocator} instead of heap arrays, or on the
+   * heap when it is {@code null}.
+   */
+  public InMemoryFileOperations(SlabAllocator allocator) {
+    this(allocator, null);
+  }
+
+  /** Like {@link #InMemoryFileOperations(SlabAllocator)}, keeping object data within a budget. */
+  public InMemoryFileOperations(SlabAllocator allocator, MemoryBudget budget) {
+    this(allocator, budget, null);
+  }
+
+  /** Like {@link #InMemoryFileOperations(SlabAllocator, MemoryBudget)}, deduplicating bodies. */
+  public InMemoryFileOperations(
+      SlabAllocator allocator, MemoryBudget budget, ContentStore contentStore) {
+    this.storage = new ConcurrentSkipListMap<>();
+    this.allocator = allocator;
+    this.budget = budget;
+    this.contentStore = contentStore;
   }
 
   @Override
@@ -30,7 +90,7 @@ public class InMemoryFileOperations implements FileOperations {
     if (exists(path)) {
       throw new StorageException("Directory already exists: " + path);
     }
-    storage.put(path, new FileData(null, true));
+    change(() -> storage.put(path, new FileData(null, true)));
   }
 
   @Override
@@ -42,29 +102,71 @@ public class InMemoryFileOperations implements FileOperations {
   public void createParentDirectories(String path) throws StorageException {
     String parent = getParentPath(path);
     if (parent != null && !exists(parent)) {
-      createDirectory(parent);
+      // Concurrent writes to the same directory may race to create it
+      change(() -> storage.putIfAbsent(parent, new FileData(null, true)));
     }
   }
 
   @Override
   public void appendToFile(String path, byte[] data) throws StorageException {
+    append(path, content(data));
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    append(path, retainContent(sourcePath));
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    // The parts are linked, not copied, and replace the object in a single put
+    ObjectContent joined = null;
+    try {
+      for (String sourcePath : sourcePaths) {
+        ObjectContent part = retainContent(sourcePath);
+        joined = joined == null ? part : RopeContent.concat(joined, part);
+      }
+      if (joined == null) {
+        joined = content(new byte[0]);
+      }
+      createParentDirectories(path);
+    } catch (StorageException e) {
+      if (joined != null) {
+        joined.release();
+      }
+      throw e;
+    }
+    put(path, new FileData(joined, false));
+  }
+
+  /** Links {@code tail} after the current content, taking over the caller's reference on it. */
+  private void append(String path, ObjectContent tail) throws StorageException {
     FileData fileData = storage.get(path);
     if (fileData == null) {
-      writeFile(path, data);
-      storage.put(path, new FileData(data, false));
+      createParentDirectories(path);
+      put(path, new FileData(tail, false));
       return;
     }
-    byte[] existing = fileData.content;
-    byte[] newContent = new byte[data.length + existing.length];
-    System.arraycopy(existing, 0, newContent, 0, existing.length);
-    System.arraycopy(data, 0, newContent, existing.length, data.length);
-    storage.put(path, new FileData(newContent, fileData.isDirectory));
+    ObjectContent existing;
+    try {
+      existing = retainContent(path);
+    } catch (StorageException e) {
+      tail.release();
+      throw e;
+    }
+    put(path, new FileData(RopeContent.concat(existing, tail), false));
   }
 
   @Override
   public void writeFile(String path, byte[] data) throws StorageException {
     createParentDirectories(path);
-    storage.put(path, new FileData(data, false));
+    put(path, new FileData(content(data), false));
+  }
+
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    createParentDirectories(path);
+    put(path, new FileData(readContent(path, data), false));
   }
 
   @Override
@@ -73,53 +175,57 @@ public class InMemoryFileOperations implements FileOperations {
   }
 
   @Override
-  public byte[] readTempFile(String path) {
-    FileData fileData = storage.get(path);
-    return fileData == null ? null : fileData.content;
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    writeFile(path, data);
   }
 
   @Override
-  public InputStream readFileStream(String path) throws StorageException {
-    FileData data = storage.get(path);
-    if (data == null || data.isDirectory) {
-      throw new StorageException("File not found or is a directory: " + path);
+  public byte[] readTempFile(String path) throws StorageException {
+    if (!storage.containsKey(path)) {
+      return null;
+    }
+    ObjectContent content = retainForRead(path);
+    try {
+      return content.toByteArray();
+    } finally {
+      content.release();
     }
-    return new ByteArrayInputStream(data.content);
   }
 
   @Override
-  public void delete(String path) throws StorageException {
-    // If it's a directory, delete all children first
-    if (exists(path) && storage.get(path).isDirectory) {
-      List<String> children =
-          storage.keySet().stream().filter(key -> key.startsWith(path + "/")).toList();
-
-      if (!children.isEmpty() && isDirectoryNotEmpty(path)) {
-        throw new StorageException("Directory not empty: " + path);
-      }
+  public InputStream readFileStream(String path) throws StorageException {
+    return retainForRead(path).newInputStream();
+  }
 
-      children.forEach(storage::remove);
+  @Override
+  public void delete(String path) throws StorageException {
+    FileData data = storage.get(path);
+    if (data != null && data.isDirectory && hasChildren(path)) {
+      throw new StorageException("Directory not empty: " + path);
     }
-
-    storage.remove(path);
+    remove(path);
   }
 
   @Override
   public FileEntry[] list(String bucketName) throws StorageException {
-    String prefix = bucketName + "/";
-    return storage.entrySet().stream()
-        .filter(entry -> entry.getKey().startsWith(prefix))
+    return list(bucketName, "");
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    return stream(bucketName, prefix).toArray(FileEntry[]::new);
+  }
+
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) {
+    String bucketPrefix = bucketName + "/";
+    return withPrefix(bucketPrefix + prefix)
         .map(
             entry -> {
               FileData data = entry.getValue();
-              String objectName = entry.getKey().substring(prefix.length());
-              return new FileEntry(
-                  objectName,
-                  data.isDirectory,
-                  data.isDirectory ? 0 : data.content.length,
-                  data.lastModified);
-            })
-        .toArray(FileEntry[]::new);
+              String objectName = entry.getKey().substring(bucketPrefix.length());
+              return new FileEntry(objectName, data.isDirectory, data.size(), data.lastModified);
+            });
   }
 
   @Override
@@ -128,7 +234,7 @@ public class InMemoryFileOperations implements FileOperations {
     if (data == null) {
       throw new StorageException("Path does not exist: " + path);
     }
-    return data.isDirectory ? 0 : data.content.length;
+    return data.size();
   }
 
   @Override
@@ -148,12 +254,17 @@ public class InMemoryFileOperations implements FileOperations {
     }
 
     createParentDirectories(destinationPath);
-    storage.put(destinationPath, new FileData(sourceData.content, sourceData.isDirectory));
+    if (sourceData.isDirectory) {
+      put(destinationPath, new FileData(null, true));
+      return;
+    }
+    // Both keys share the same immutable content, each holding a reference
+    put(destinationPath, new FileData(retainContent(sourcePath), false));
   }
 
   @Override
   public String createTempDirectory(String prefix) throws StorageException {
-    String tempPath = "/temp-" + prefix + "-" + UUID.randomUUID();
+    String tempPath = TEMP_PREFIX + prefix + "-" + UUID.randomUUID();
     createDirectory(tempPath);
     return tempPath;
   }
@@ -164,9 +275,7 @@ public class InMemoryFileOperations implements FileOperations {
     if (data == null || !data.isDirectory) {
       throw new StorageException("Path does not exist or is not a directory: " + path);
     }
-
-    String prefix = path + "/";
-    return storage.keySet().stream().anyMatch(key -> key.startsWith(prefix));
+    return hasChildren(path);
   }
 
   @Override
@@ -179,30 +288,284 @@ public class InMemoryFileOperations implements FileOperations {
 
   @Override
   public FileEntry[] listBuckets() throws StorageException {
-    storage
-        .entrySet()
-        .forEach(
-            entry -> {
-              System.out.println(entry.getKey());
-            });
-    return storage.entrySet().stream()
-        .map(
-            entry -> {
-              FileData data = entry.getValue();
-              String bucketName = entry.getKey().replace("/", "");
+    return SortedPaths.listTopLevel(
+        storage,
+        (name, data) -> new FileEntry(name, data.isDirectory, data.size(), data.lastModified));
+  }
 
-              return new FileEntry(
-                  bucketName,
-                  data.isDirectory,
-                  data.isDirectory ? 0 : data.content.length,
-                  data.lastModified);
-            })
-        .toArray(FileEntry[]::new);
+  /** Deletes {@code path} and everything below it, with one range scan. */
+  public void deleteRecursively(String path) {
+    List<String> paths = withPrefix(path + "/").map(Map.Entry::getKey).toList();
+    paths.forEach(this::remove);
+    remove(path);
+  }
+
+  /** Freezes the current buckets and objects, leaving out in-flight multipart parts. */
+  public StorageSnapshot snapshot() {
+    SortedMap<String, FileData> entries = new TreeMap<>();
+    for (Map.Entry<String, FileData> entry : storage.entrySet()) {
+      FileData data = entry.getValue();
+      if (entry.getKey().startsWith(TEMP_PREFIX)) {
+        continue;
+      }
+      if (data.isDirectory || data.content.retain()) {
+        entries.put(entry.getKey(), data);
+      }
+    }
+    return new StorageSnapshot(entries);
+  }
+
+  /**
+   * Replaces everything stored with the content of {@code snapshot}, which stays usable. Requests
+   * running meanwhile see either the old or the restored state for each lookup, and changes wait
+   * for the swap, so each one lands either before it and is discarded, or after it.
+   */
+  public void restore(StorageSnapshot snapshot) {
+    ConcurrentSkipListMap<String, FileData> restored =
+        new ConcurrentSkipListMap<>(snapshot.retainEntries());
+    ConcurrentSkipListMap<String, FileData> previous;
+    swapLock.writeLock().lock();
+    try {
+      previous = storage;
+      storage = restored;
+      if (budget != null) {
+        budget.clear();
+        restored.forEach(
+            (path, data) -> {
+              if (!data.isDirectory) {
+                budget.add(path, data.content.memoryBytes());
+              }
+            });
+      }
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+    previous.values().forEach(InMemoryFileOperations::release);
+    if (budget != null) {
+      enforceBudget();
+    }
   }
 
   @Override
   public void deleteTempFile(String string) throws StorageException {
-    storage.remove(string);
+    remove(string);
+  }
+
+  private ObjectContent content(byte[] data) {
+    ObjectContent content =
+        allocator == null ? new HeapContent(data) : SlabContent.copyOf(allocator, data);
+    if (contentStore == null) {
+      return content;
+    }
+    String hash = HexFormat.of().formatHex(StorageFiles.sha256().digest(data));
+    return contentStore.intern(hash, content);
+  }
+
+  private ObjectContent readContent(String path, InputStream data) throws StorageException {
+    MessageDigest digest = contentStore == null ? null : StorageFiles.sha256();
+    InputStream in = digest == null ? data : new DigestInputStream(data, digest);
+    ObjectContent content;
+    try {
+      if (budget == null) {
+        content =
+            allocator == null
+                ? new HeapContent(in.readAllBytes())
+                : SlabContent.copyOf(allocator, in);
+      } else {
+        content = readWithinBudget(in);
+      }
+    } catch (IOException | UncheckedIOException e) {
+      throw new StorageException("Failed to write file: " + path, e);
+    }
+    if (digest == null) {
+      return content;
+    }
+    return contentStore.intern(HexFormat.of().formatHex(digest.digest()), content);
+  }
+
+  /**
+   * Reads at most the capacity of the budget into memory. A longer body could never stay there, so
+   * it goes on to the spill directory as it arrives, after the part read so far.
+   */
+  private ObjectContent readWithinBudget(InputStream in) throws IOException {
+    long capacity = budget.getCapacityBytes();
+    ObjectContent head =
+        allocator == null
+            ? new HeapContent(in.readNBytes((int) Math.min(capacity, MAX_HEAP_CONTENT)))
+            : SlabContent.copyOf(allocator, in, capacity);
+    int next = in.read();
+    if (next == -1) {
+      return head;
+    }
+    try {
+      InputStream rest =
+          new SequenceInputStream(
+              Collections.enumeration(
+                  List.of(
+                      head.openStream(),
+                      new ByteArrayInputStream(new byte[] {(byte) next}),
+                      in)));
+      SpilledContent spilled = SpilledContent.write(budget.getSpillDirectory(), rest);
+      budget.spilled();
+      return spilled;
+    } finally {
+      head.release();
+    }
+  }
+
+  /** Takes a reference on the current content of a file, retrying if it was just replaced. */
+  private ObjectContent retainContent(String path) throws StorageException {
+    while (true) {
+      FileData data = storage.get(path);
+      if (data == null || data.isDirectory) {
+        throw new StorageException("File not found or is a directory: " + path);
+      }
+      if (data.content.retain()) {
+        return data.content;
+      }
+    }
+  }
+
+  private boolean hasChildren(String path) {
+    return SortedPaths.hasChildren(storage, path);
+  }
+
+  private Stream<Map.Entry<String, FileData>> withPrefix(String prefix) {
+    return SortedPaths.withPrefix(storage, prefix);
+  }
+
+  /** Like {@link #retainContent(String)}, bringing a spilled object back into memory. */
+  private ObjectContent retainForRead(String path) throws StorageException {
+    ObjectContent content = retainContent(path);
+    if (budget == null || content.length() == 0) {
+      return content;
+    }
+    if (content.memoryBytes() == content.length()) {
+      budget.hit(path);
+      return content;
+    }
+    budget.miss();
+    return promote(path, content);
+  }
+
+  /** Swaps a spilled content the caller holds for a copy in memory, unless it was replaced. */
+  private ObjectContent promote(String path, ObjectContent spilled) throws StorageException {
+    FileData current = storage.get(path);
+    if (current == null
+        || current.content != spilled
+        || spilled.length() > budget.getCapacityBytes()) {
+      return spilled;
+    }
+    ObjectContent loaded;
+    try (InputStream in = spilled.openStream()) {
+      loaded = readContent(path, in);
+    } catch (IOException | UncheckedIOException | StorageException e) {
+      spilled.release();
+      throw new StorageException("Failed to read spilled object: " + path, e);
+    }
+    loaded.retain();
+    FileData promoted = new FileData(loaded, false, current.lastModified);
+    if (!change(() -> storage.replace(path, current, promoted))) {
+      loaded.release();
+      loaded.release();
+      return spilled;
+    }
+    // One reference was the map's, the other the caller's
+    spilled.release();
+    spilled.release();
+    budget.add(path, loaded.memoryBytes());
+    enforceBudget();
+    return loaded;
+  }
+
+  private void put(String path, FileData data) {
+    release(change(() -> storage.put(path, data)));
+    if (budget != null && !data.isDirectory) {
+      long bytes = data.content.memoryBytes();
+      if (bytes > budget.getCapacityBytes()) {
+        // Too big to ever fit, it would only push the whole working set out
+        budget.remove(path);
+        if (isMovable(path)) {
+          spill(path);
+        }
+      } else {
+        budget.add(path, bytes);
+        enforceBudget();
+      }
+    }
+  }
+
+  private void remove(String path) {
+    release(change(() -> storage.remove(path)));
+    if (budget != null) {
+      budget.remove(path);
+    }
+  }
+
+  private void enforceBudget() {
+    for (String path : budget.takeOverflow(this::isMovable)) {
+      if (budget.getOverflow() == MemoryBudget.Overflow.EVICT && !path.startsWith(TEMP_PREFIX)) {
+        evict(path);
+      } else {
+        spill(path);
+      }
+    }
+  }
+
+  /** Whether moving {@code path} out of memory would free its content. */
+  private boolean isMovable(String path) {
+    FileData data = storage.get(path);
+    return data == null || data.isDirectory || !data.content.isShared();
+  }
+
+  private void evict(String path) {
+    FileData data = storage.get(path);
+    if (data != null && !data.isDirectory && change(() -> storage.remove(path, data))) {
+      release(data);
+      budget.evicted();
+    }
+  }
+
+  private void spill(String path) {
+    FileData data = storage.get(path);
+    if (data == null
+        || data.isDirectory
+        || data.content.memoryBytes() == 0
+        || !data.content.retain()) {
+      return;
+    }
+    SpilledContent spilled;
+    try (InputStream in = data.content.openStream()) {
+      spilled = SpilledContent.write(budget.getSpillDirectory(), in);
+    } catch (IOException | UncheckedIOException e) {
+      LOGGER.warn("Could not spill {}, keeping it in memory", path, e);
+      budget.add(path, data.content.memoryBytes());
+      return;
+    } finally {
+      data.content.release();
+    }
+    FileData replacement = new FileData(spilled, false, data.lastModified);
+    if (change(() -> storage.replace(path, data, replacement))) {
+      data.content.release();
+      budget.spilled();
+    } else {
+      spilled.release();
+    }
+  }
+
+  private <T> T change(Supplier<T> change) {
+    swapLock.readLock().lock();
+    try {
+      return change.get();
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  private static void release(FileData data) {
+    if (data != null && data.content != null) {
+      data.content.release();
+    }
   }
 
   private String getParentPath(String path) {
@@ -0,0 +1,450 @@
+package dev.totis.tinys3.io;
+
+import dev.totis.tinys3.io.MetadataIndex.Entry;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the size and modification time of every object and directory of {@code delegate} in a
+ * {@link MetadataIndex}, so listings, HEAD and existence checks never touch the file system.
+ * Bodies are still read from and written to {@code delegate}, and each change is recorded in the
+ * index once it succeeded there. Both steps happen under a lock striped by path, so the index
+ * always ends up describing the last change that reached {@code delegate}.
+ *
+ * <p>An empty index is filled from a walk of {@code delegate} when it is opened. After that the
+ * index is the authority on what exists: files changed behind the server's back are not noticed
+ * until the index directory is deleted, which makes the next start walk again. The one exception is
+ * a run that stopped without closing the index, which may have changed a file without recording
+ * it. The next start then serves from the index right away while a background walk checks it
+ * against the files, correcting any entry that differs.
+ */
+public class IndexedFileOperations implements FileOperations {
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexedFileOperations.class);
+
+  private final FileOperations delegate;
+  private final MetadataIndex index;
+  private final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+  private final Thread reconciler;
+
+  public IndexedFileOperations(FileOperations delegate, MetadataIndex index)
+      throws StorageException {
+    this.delegate = delegate;
+    this.index = index;
+    if (index.isFresh()) {
+      rebuild();
+      this.reconciler = null;
+    } else if (!index.wasClosedCleanly()) {
+      this.reconciler =
+          Thread.ofPlatform().name("tiny-s3-index-reconciler").daemon().start(this::reconcile);
+    } else {
+      this.reconciler = null;
+    }
+  }
+
+  /** Waits for the check that follows an unclean shutdown, if one is running. */
+  void awaitReconciled() throws InterruptedException {
+    if (reconciler != null) {
+      reconciler.join();
+    }
+  }
+
+  /** Corrects the entries of files changed, and removes those of files deleted, but not logged. */
+  private void reconcile() {
+    long start = System.nanoTime();
+    long corrected = 0;
+    try {
+      for (FileEntry bucket : delegate.listBuckets()) {
+        corrected += verify(bucket.path(), true);
+        try (Stream<FileEntry> entries = delegate.stream(bucket.path(), "")) {
+          for (FileEntry entry : (Iterable<FileEntry>) entries::iterator) {
+            String path = bucket.path() + "/" + entry.path();
+            if (!toEntry(entry).equals(index.get(path))) {
+              corrected += verify(path, entry.isDirectory());
+            }
+          }
+        }
+      }
+      // Children first, so that a directory deleted with them is found empty
+      for (Map.Entry<String, Entry> entry : index.entries().descendingMap().entrySet()) {
+        if (!delegate.exists(entry.getKey())) {
+          corrected += verify(entry.getKey(), entry.getValue().directory());
+        }
+      }
+    } catch (StorageException | RuntimeException e) {
+      LOGGER.warn("Checking the index against the files failed", e);
+      return;
+    }
+    LOGGER.info(
+        "Checked the index against the files in {} ms, corrected {} entries",
+        (System.nanoTime() - start) / 1_000_000,
+        corrected);
+  }
+
+  /**
+   * Makes the entry of {@code path} match the file, under the lock of the path so that it cannot
+   * undo a change made meanwhile. Returns 1 when the entry had to change.
+   */
+  private int verify(String path, boolean directory) throws StorageException {
+    ReentrantLock lock = locks.get(path);
+    lock.lock();
+    try {
+      Entry current = index.get(path);
+      if (!delegate.exists(path)) {
+        // Directories of layouts that do not mirror the key hierarchy only exist in the index
+        if (current == null || (directory && SortedPaths.hasChildren(index.entries(), path))) {
+          return 0;
+        }
+        remove(path);
+        return 1;
+      }
+      if (directory) {
+        if (current != null && current.directory()) {
+          return 0;
+        }
+        record(path, new Entry(0, delegate.getLastModifiedTime(path).toMillis(), true));
+        return 1;
+      }
+      Entry actual =
+          new Entry(delegate.getSize(path), delegate.getLastModifiedTime(path).toMillis(), false);
+      if (actual.equals(current)) {
+        return 0;
+      }
+      record(path, actual);
+      return 1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void rebuild() throws StorageException {
+    long start = System.nanoTime();
+    for (FileEntry bucket : delegate.listBuckets()) {
+      index.load(bucket.path(), toEntry(bucket));
+      try (Stream<FileEntry> entries = delegate.stream(bucket.path(), "")) {
+        entries.forEach(entry -> index.load(bucket.path() + "/" + entry.path(), toEntry(entry)));
+      }
+    }
+    loadMissingParents();
+    try {
+      index.checkpoint();
+    } catch (IOException e) {
+      throw new StorageException("Failed to checkpoint the rebuilt index", e);
+    }
+    LOGGER.info(
+        "Indexed {} entries in {} ms", index.size(), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Adds the directories that only exist as part of deeper keys, which layouts that do not mirror
+   * the key hierarchy, like {@link ShardedFileOperations}, never list.
+   */
+  private void loadMissingParents() {
+    List<Map.Entry<String, Entry>> missing = new ArrayList<>();
+    String previous = "";
+    for (Map.Entry<String, Entry> entry : index.entries().entrySet()) {
+      String key = entry.getKey();
+      for (int slash = key.lastIndexOf('/'); slash > 0; slash = key.lastIndexOf('/', slash - 1)) {
+        String parent = key.substring(0, slash);
+        // Sorted keys put a parent right before its first child, a sibling shares its parents
+        if (isWithin(previous, parent) || index.get(parent) != null) {
+          break;
+        }
+        missing.add(Map.entry(parent, new Entry(0, entry.getValue().lastModified(), true)));
+      }
+      previous = key;
+    }
+    missing.forEach(entry -> index.load(entry.getKey(), entry.getValue()));
+  }
+
+  private static boolean isWithin(String path, String directory) {
+    return path.startsWith(directory)
+        && (path.length() == directory.length() || path.charAt(directory.length()) == '/');
+  }
+
+  private static Entry toEntry(FileEntry entry) {
+    return new Entry(entry.size(), entry.lastModified(), entry.isDirectory());
+  }
+
+  @Override
+  public void createDirectory(String path) throws StorageException {
+    if (isTempPath(path)) {
+      delegate.createDirectory(path);
+      return;
+    }
+    change(
+        path,
+        () -> {
+          delegate.createDirectory(path);
+          record(path, new Entry(0, System.currentTimeMillis(), true));
+        });
+  }
+
+  @Override
+  public boolean exists(String path) {
+    return index.get(path) != null;
+  }
+
+  @Override
+  public void createParentDirectories(String path) throws StorageException {
+    int slash = path.lastIndexOf('/');
+    if (slash <= 0 || index.get(path.substring(0, slash)) != null) {
+      return;
+    }
+    delegate.createParentDirectories(path);
+    for (int i = path.indexOf('/'); i > 0 && i <= slash; i = path.indexOf('/', i + 1)) {
+      String parent = path.substring(0, i);
+      if (index.get(parent) == null) {
+        record(parent, new Entry(0, System.currentTimeMillis(), true));
+      }
+    }
+  }
+
+  @Override
+  public void appendToFile(String path, byte[] data) throws StorageException {
+    change(
+        path,
+        () -> {
+          delegate.appendToFile(path, data);
+          recordFile(path);
+        });
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    change(
+        path,
+        () -> {
+          delegate.appendTempFile(path, sourcePath);
+          recordFile(path);
+        });
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    change(
+        path,
+        () -> {
+          delegate.concatTempFiles(path, sourcePaths);
+          recordFile(path);
+        });
+  }
+
+  @Override
+  public void writeFile(String path, byte[] data) throws StorageException {
+    change(
+        path,
+        () -> {
+          delegate.writeFile(path, data);
+          recordFile(path);
+        });
+  }
+
+  /** Reads the body before taking the lock, which then only covers the move and the record. */
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    String staged = delegate.stageTempFile(data);
+    try {
+      moveTempFile(path, staged);
+    } catch (StorageException e) {
+      try {
+        delegate.deleteTempFile(staged);
+      } catch (StorageException ignored) {
+        // Already moved into place
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public String stageTempFile(InputStream data) throws StorageException {
+    return delegate.stageTempFile(data);
+  }
+
+  @Override
+  public void moveTempFile(String path, String sourcePath) throws StorageException {
+    change(
+        path,
+        () -> {
+          delegate.moveTempFile(path, sourcePath);
+          recordFile(path);
+        });
+  }
+
+  @Override
+  public void writeTempFile(String path, byte[] data) throws StorageException {
+    delegate.writeTempFile(path, data);
+  }
+
+  @Override
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    delegate.writeTempFile(path, data);
+  }
+
+  @Override
+  public byte[] readTempFile(String path) throws StorageException {
+    return delegate.readTempFile(path);
+  }
+
+  @Override
+  public InputStream readFileStream(String path) throws StorageException {
+    return delegate.readFileStream(path);
+  }
+
+  @Override
+  public void delete(String path) throws StorageException {
+    if (isTempPath(path)) {
+      delegate.delete(path);
+      return;
+    }
+    change(
+        path,
+        () -> {
+          delegate.delete(path);
+          // Directories go with everything below them
+          List<String> removed = new ArrayList<>();
+          index.withPrefix(path + "/").forEach(entry -> removed.add(entry.getKey()));
+          removed.add(path);
+          for (String key : removed) {
+            remove(key);
+          }
+        });
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName) throws StorageException {
+    return list(bucketName, "");
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    return stream(bucketName, prefix).toArray(FileEntry[]::new);
+  }
+
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) {
+    String bucketPrefix = bucketName + "/";
+    return index
+        .withPrefix(bucketPrefix + prefix)
+        .map(
+            entry -> {
+              Entry value = entry.getValue();
+              String objectName = entry.getKey().substring(bucketPrefix.length());
+              return new FileEntry(
+                  objectName, value.directory(), value.size(), value.lastModified());
+            });
+  }
+
+  @Override
+  public long getSize(String path) throws StorageException {
+    return entry(path).size();
+  }
+
+  @Override
+  public FileTime getLastModifiedTime(String path) throws StorageException {
+    return FileTime.fromMillis(entry(path).lastModified());
+  }
+
+  private Entry entry(String path) throws StorageException {
+    Entry entry = index.get(path);
+    if (entry == null) {
+      throw new StorageException("Path does not exist: " + path);
+    }
+    return entry;
+  }
+
+  @Override
+  public void copy(String sourcePath, String destinationPath) throws StorageException {
+    change(
+        destinationPath,
+        () -> {
+          delegate.copy(sourcePath, destinationPath);
+          recordFile(destinationPath);
+        });
+  }
+
+  @Override
+  public String createTempDirectory(String prefix) throws StorageException {
+    return delegate.createTempDirectory(prefix);
+  }
+
+  @Override
+  public boolean isDirectoryNotEmpty(String path) throws StorageException {
+    Entry entry = index.get(path);
+    if (entry == null || !entry.directory()) {
+      throw new StorageException("Path does not exist or is not a directory: " + path);
+    }
+    return SortedPaths.hasChildren(index.entries(), path);
+  }
+
+  @Override
+  public String getObjectPath(String bucketName, String key) {
+    // Index keys never end with a slash, unlike the bucket path of the file system backend
+    if (key == null || key.isEmpty()) {
+      return bucketName;
+    }
+    return delegate.getObjectPath(bucketName, key);
+  }
+
+  @Override
+  public FileEntry[] listBuckets() throws StorageException {
+    return SortedPaths.listTopLevel(
+        index.entries(),
+        (name, entry) ->
+            new FileEntry(name, entry.directory(), entry.size(), entry.lastModified()));
+  }
+
+  @Override
+  public void deleteTempFile(String path) throws StorageException {
+    delegate.deleteTempFile(path);
+  }
+
+  private interface Change {
+    void apply() throws StorageException;
+  }
+
+  private void change(String path, Change change) throws StorageException {
+    ReentrantLock lock = locks.get(path);
+    lock.lock();
+    try {
+      change.apply();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records the size and time of a file {@code delegate} just wrote. */
+  private void recordFile(String path) throws StorageException {
+    long lastModified = delegate.getLastModifiedTime(path).toMillis();
+    record(path, new Entry(delegate.getSize(path), lastModified, false));
+  }
+
+  private void record(String path, Entry entry) throws StorageException {
+    try {
+      index.put(path, entry);
+    } catch (IOException e) {
+      throw new StorageException("Failed to record " + path + " in the index", e);
+    }
+  }
+
+  private void remove(String path) throws StorageException {
+    try {
+      index.remove(path);
+    } catch (IOException e) {
+      throw new StorageException("Failed to record the deletion of " + path, e);
+    }
+  }
+
+  private static boolean isTempPath(String path) {
+    // Not Paths, which rejects names the file system encoding cannot represent
+    return new File(path).isAbsolute();
+  }
+}
@@ -0,0 +1,142 @@
+package dev.totis.tinys3.io;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Caps how many bytes of object data {@link InMemoryFileOperations} keeps in memory. Objects are
+ * tracked in least recently used order, and once the total goes past the capacity the coldest ones
+ * are moved to the spill directory or dropped, depending on the {@link Overflow} policy.
+ *
+ * <p>In-flight multipart parts always spill, since dropping them would break the upload. Content
+ * shared by several keys is counted once per key. Off-heap and deduplicated content stays in
+ * memory while it is shared, since moving one key's copy out would not free it.
+ */
+public class MemoryBudget {
+  public enum Overflow {
+    /** Moves cold objects to files in the spill directory, reads bring them back in. */
+    SPILL,
+    /** Deletes cold objects, for caches that can afford to lose them. */
+    EVICT
+  }
+
+  private final long capacityBytes;
+  private final Overflow overflow;
+  private final Path spillDirectory;
+  private final LinkedHashMap<String, Long> resident = new LinkedHashMap<>(16, 0.75f, true);
+  private long residentBytes;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder spills = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public MemoryBudget(long capacityBytes, Overflow overflow, Path spillDirectory) {
+    if (capacityBytes <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacityBytes);
+    }
+    this.capacityBytes = capacityBytes;
+    this.overflow = overflow;
+    this.spillDirectory = spillDirectory;
+  }
+
+  public long getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  public Overflow getOverflow() {
+    return overflow;
+  }
+
+  public Path getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  /** Reads served from memory. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** Reads that had to go to the spill directory. */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getSpills() {
+    return spills.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** Records {@code bytes} of memory now held by {@code path}, replacing what it held before. */
+  synchronized void add(String path, long bytes) {
+    Long previous = bytes > 0 ? resident.put(path, bytes) : resident.remove(path);
+    residentBytes += bytes - (previous == null ? 0 : previous);
+  }
+
+  synchronized void remove(String path) {
+    Long previous = resident.remove(path);
+    if (previous != null) {
+      residentBytes -= previous;
+    }
+  }
+
+  synchronized void clear() {
+    resident.clear();
+    residentBytes = 0;
+  }
+
+  /** Marks {@code path} as recently used after a read from memory. */
+  void hit(String path) {
+    synchronized (this) {
+      resident.get(path);
+    }
+    hits.increment();
+  }
+
+  void miss() {
+    misses.increment();
+  }
+
+  void spilled() {
+    spills.increment();
+  }
+
+  void evicted() {
+    evictions.increment();
+  }
+
+  /**
+   * Stops tracking the least recently used paths that {@code movable} accepts until the rest fits
+   * the capacity and returns them coldest first. The caller moves them out of memory, or adds them
+   * back if that fails.
+   */
+  synchronized List<String> takeOverflow(Predicate<String> movable) {
+    if (residentBytes <= capacityBytes) {
+      return List.of();
+    }
+    List<String> victims = new ArrayList<>();
+    Iterator<Map.Entry<String, Long>> entries = resident.entrySet().iterator();
+    while (residentBytes > capacityBytes && entries.hasNext()) {
+      Map.Entry<String, Long> eldest = entries.next();
+      if (!movable.test(eldest.getKey())) {
+        continue;
+      }
+      victims.add(eldest.getKey());
+      residentBytes -= eldest.getValue();
+      entries.remove();
+    }
+    return victims;
+  }
+}
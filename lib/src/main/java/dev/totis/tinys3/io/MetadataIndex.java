@@ -0,0 +1,541 @@
+package dev.totis.tinys3.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sorted map of paths to their size and modification time, kept in memory and made durable by a
+ * write-ahead log.
+ *
+ * <p>Changes wait until their log record is forced to disk. Concurrent changes share one force:
+ * the first waiter writes every record buffered so far while the others wait for it, so the cost
+ * of a force is spread over all of them. A checkpoint writes the whole map to a sorted snapshot
+ * file and starts a new log, so opening the index reads the snapshot and replays only the changes
+ * made since.
+ *
+ * <p>With {@link Durability#NONE} the records are written but never forced, so the index is no more
+ * durable than the bodies it describes. A clean close leaves no log behind, so a log found when
+ * opening means the last run stopped without closing.
+ */
+public class MetadataIndex implements Closeable {
+  public static final Duration DEFAULT_CHECKPOINT_INTERVAL = Duration.ofMinutes(1);
+
+  /** A checkpoint is also taken once the log grows past this many bytes. */
+  static final long MAX_LOG_SIZE = 64L * 1024 * 1024;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetadataIndex.class);
+  private static final String SNAPSHOT_FILE = "index.snapshot";
+  private static final int SNAPSHOT_MAGIC = 0x54533349;
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  public record Entry(long size, long lastModified, boolean directory) {}
+
+  private final Path directory;
+  private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition forced = lock.newCondition();
+  private final ReentrantLock checkpointLock = new ReentrantLock();
+  private final ScheduledExecutorService checkpointer;
+  private final LongAdder records = new LongAdder();
+  private final LongAdder forces = new LongAdder();
+  private final LongAdder checkpoints = new LongAdder();
+  private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+  private final boolean fresh;
+  private final boolean forceLog;
+  private boolean closedCleanly = true;
+  private volatile boolean loaded;
+
+  // Guarded by lock
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private long appended;
+  private long durable;
+  private boolean forcing;
+  private IOException failure;
+  private FileChannel log;
+  private long logGeneration;
+  private long logSize;
+
+  /**
+   * Opens the index stored in {@code directory}, checkpointing every {@code checkpointInterval} or
+   * only on {@link #checkpoint()} when it is zero.
+   */
+  public MetadataIndex(Path directory, Duration checkpointInterval) throws IOException {
+    this(directory, checkpointInterval, Durability.FSYNC);
+  }
+
+  /** Like {@link #MetadataIndex(Path, Duration)}, not forcing the log with NONE durability. */
+  public MetadataIndex(Path directory, Duration checkpointInterval, Durability durability)
+      throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.forceLog = durability != Durability.NONE;
+    this.fresh = !load();
+    openLog(logGeneration + 1);
+
+    if (checkpointInterval.isZero()) {
+      this.checkpointer = null;
+      return;
+    }
+    this.checkpointer =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("tiny-s3-index-checkpointer").daemon().factory());
+    long period = checkpointInterval.toMillis();
+    checkpointer.scheduleWithFixedDelay(
+        this::checkpointQuietly, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** True when nothing was stored yet, so the caller has to fill the index from the data. */
+  public boolean isFresh() {
+    return fresh;
+  }
+
+  /**
+   * False when the last run stopped without closing the index, so changes that reached the data
+   * but not the log, or the other way around, may be missing from it.
+   */
+  public boolean wasClosedCleanly() {
+    return closedCleanly;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /** Changes logged since the index was opened. */
+  public long getRecords() {
+    return records.sum();
+  }
+
+  /** Forces of the log, each one making one or more records durable. Zero with NONE durability. */
+  public long getForces() {
+    return forces.sum();
+  }
+
+  public long getCheckpoints() {
+    return checkpoints.sum();
+  }
+
+  public Entry get(String path) {
+    return entries.get(path);
+  }
+
+  /** A read-only view of the entries, sorted by path. */
+  public NavigableMap<String, Entry> entries() {
+    return Collections.unmodifiableNavigableMap(entries);
+  }
+
+  /** The entries whose path starts with {@code prefix}, in order. */
+  public Stream<Map.Entry<String, Entry>> withPrefix(String prefix) {
+    return SortedPaths.withPrefix(entries, prefix);
+  }
+
+  /** Sets {@code path} to {@code entry} and returns once the change is durable. */
+  public void put(String path, Entry entry) throws IOException {
+    commit(path, entry);
+  }
+
+  /** Removes {@code path} and returns once the change is durable. */
+  public void remove(String path) throws IOException {
+    commit(path, null);
+  }
+
+  /** Adds entries read from the data itself, logging them with the next checkpoint only. */
+  public void load(String path, Entry entry) {
+    entries.put(path, entry);
+    loaded = true;
+  }
+
+  private void commit(String path, Entry entry) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    writeRecord(new DataOutputStream(record), path, entry);
+    CRC32 crc = new CRC32();
+    crc.update(record.toByteArray());
+
+    long sequence;
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw new IOException("The metadata log cannot be written", failure);
+      }
+      // Updated under the lock, so the order of the records is the order of the changes
+      if (entry == null) {
+        entries.remove(path);
+      } else {
+        entries.put(path, entry);
+      }
+      DataOutputStream out = new DataOutputStream(pending);
+      out.writeInt(record.size());
+      out.writeInt((int) crc.getValue());
+      record.writeTo(out);
+      sequence = ++appended;
+    } finally {
+      lock.unlock();
+    }
+    records.increment();
+    awaitDurable(sequence);
+  }
+
+  /** Waits until record {@code sequence} is forced, forcing the pending records if nobody is. */
+  private void awaitDurable(long sequence) throws IOException {
+    boolean checkpointNeeded = false;
+    lock.lock();
+    try {
+      while (durable < sequence) {
+        if (failure != null) {
+          throw new IOException("The metadata log cannot be written", failure);
+        }
+        if (forcing) {
+          forced.awaitUninterruptibly();
+          continue;
+        }
+        forcing = true;
+        byte[] batch = pending.toByteArray();
+        pending = new ByteArrayOutputStream();
+        long batchEnd = appended;
+        FileChannel channel = log;
+        lock.unlock();
+        IOException error = null;
+        try {
+          write(channel, batch);
+          if (forceLog) {
+            channel.force(false);
+            forces.increment();
+          }
+        } catch (IOException e) {
+          error = e;
+        } finally {
+          lock.lock();
+        }
+        forcing = false;
+        if (error != null) {
+          failure = error;
+        } else {
+          durable = batchEnd;
+          logSize += batch.length;
+          checkpointNeeded = logSize > MAX_LOG_SIZE;
+        }
+        forced.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (checkpointNeeded && checkpointer != null) {
+      scheduleCheckpoint();
+    }
+  }
+
+  /**
+   * Writes the entries to a new snapshot and drops the logs it covers. Changes made meanwhile go to
+   * a new log, which is replayed on top of the snapshot.
+   */
+  public void checkpoint() throws IOException {
+    checkpointLock.lock();
+    try {
+      long generation = rotateLog();
+      loaded = false;
+      Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+      try (FileChannel channel =
+          FileChannel.open(
+              temp,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        CheckedOutputStream checked =
+            new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024),
+                new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(generation);
+        // The map may change while it is written, the log from generation on repeats those changes
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          writeRecord(out, entry.getKey(), entry.getValue());
+        }
+        out.writeByte(0);
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+        channel.force(true);
+      }
+      StorageFiles.moveIntoPlace(temp, directory.resolve(SNAPSHOT_FILE));
+      // The logs are the only copy of their changes until the rename is durable
+      StorageFiles.force(directory);
+
+      for (long old : logGenerations()) {
+        if (old < generation) {
+          Files.deleteIfExists(logFile(old));
+        }
+      }
+      checkpoints.increment();
+      LOGGER.debug("Checkpointed {} index entries", entries.size());
+    } finally {
+      checkpointLock.unlock();
+    }
+  }
+
+  private void scheduleCheckpoint() {
+    if (checkpointScheduled.compareAndSet(false, true)) {
+      try {
+        checkpointer.execute(this::checkpointQuietly);
+      } catch (RejectedExecutionException e) {
+        // Closing, which checkpoints anyway
+      }
+    }
+  }
+
+  private void checkpointQuietly() {
+    checkpointScheduled.set(false);
+    try {
+      if (hasChanges()) {
+        checkpoint();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Index checkpoint failed", e);
+    }
+  }
+
+  /** Whether anything changed since the last checkpoint. */
+  private boolean hasChanges() {
+    lock.lock();
+    try {
+      return loaded || logSize > 0 || pending.size() > 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Makes the pending records durable in the current log and starts the next one. */
+  private long rotateLog() throws IOException {
+    lock.lock();
+    try {
+      while (forcing) {
+        forced.awaitUninterruptibly();
+      }
+      if (failure != null) {
+        throw new IOException("The metadata log cannot be written", failure);
+      }
+      write(log, pending.toByteArray());
+      log.force(false);
+      pending = new ByteArrayOutputStream();
+      durable = appended;
+      log.close();
+      openLog(logGeneration + 1);
+      forced.signalAll();
+      return logGeneration;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void openLog(long generation) throws IOException {
+    log =
+        FileChannel.open(
+            logFile(generation),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    logGeneration = generation;
+    logSize = log.size();
+    // Records forced to a log whose name was lost in a crash would be lost with it
+    StorageFiles.force(directory);
+  }
+
+  /** Reads the snapshot and the logs after it. Returns false when there was nothing to read. */
+  private boolean load() throws IOException {
+    List<Long> generations = logGenerations();
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    long from = generations.isEmpty() ? 0 : generations.get(0);
+    boolean found = !generations.isEmpty();
+    closedCleanly = generations.isEmpty();
+    // New logs always get a higher generation than any log or snapshot seen so far
+    logGeneration = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+    if (Files.exists(snapshot)) {
+      long covered = readSnapshot(snapshot);
+      if (covered < 0) {
+        LOGGER.warn("Ignoring corrupt index snapshot {}, rebuilding the index", snapshot);
+        entries.clear();
+        return false;
+      }
+      from = covered;
+      found = true;
+      logGeneration = Math.max(logGeneration, covered);
+    }
+    for (long generation : generations) {
+      if (generation >= from) {
+        replay(logFile(generation));
+      }
+    }
+    if (found) {
+      LOGGER.info("Loaded {} index entries from {}", entries.size(), directory);
+    }
+    return found;
+  }
+
+  /** Reads a snapshot, returning the first log generation it does not cover or -1 if corrupt. */
+  private long readSnapshot(Path snapshot) throws IOException {
+    CRC32 crc = new CRC32();
+    try (InputStream file = Files.newInputStream(snapshot)) {
+      CheckedInputStream checked =
+          new CheckedInputStream(new BufferedInputStream(file, 64 * 1024), crc);
+      DataInputStream in = new DataInputStream(checked);
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        return -1;
+      }
+      long generation = in.readLong();
+      while (in.readByte() != 0) {
+        String path = readPath(in);
+        entries.put(path, readEntry(in));
+      }
+      long expected = crc.getValue();
+      return in.readLong() == expected ? generation : -1;
+    } catch (EOFException e) {
+      return -1;
+    }
+  }
+
+  /** Applies the records of a log, cutting off a record torn by a crash at its end. */
+  private void replay(Path file) throws IOException {
+    long valid = 0;
+    try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+      DataInputStream in = new DataInputStream(stream);
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        long checksum = in.readInt() & 0xffffffffL;
+        byte[] body = in.readNBytes(length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (body.length < length || crc.getValue() != checksum) {
+          break;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = record.readByte();
+        String path = readPath(record);
+        if (op == DELETE) {
+          entries.remove(path);
+        } else {
+          entries.put(path, readEntry(record));
+        }
+        valid += 8 + length;
+      }
+    } catch (EOFException e) {
+      // Torn record header
+    }
+    if (valid < Files.size(file)) {
+      LOGGER.warn("Dropping a torn record at the end of {}", file);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.truncate(valid);
+      }
+    }
+  }
+
+  /** Writes a change, or an entry of the snapshot where the kind marks that more follow. */
+  private static void writeRecord(DataOutputStream out, String path, Entry entry)
+      throws IOException {
+    byte[] key = path.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(entry == null ? DELETE : PUT);
+    out.writeShort(key.length);
+    out.write(key);
+    if (entry != null) {
+      out.writeLong(entry.size());
+      out.writeLong(entry.lastModified());
+      out.writeBoolean(entry.directory());
+    }
+  }
+
+  private static String readPath(DataInputStream in) throws IOException {
+    byte[] key = new byte[in.readUnsignedShort()];
+    in.readFully(key);
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  private static Entry readEntry(DataInputStream in) throws IOException {
+    return new Entry(in.readLong(), in.readLong(), in.readBoolean());
+  }
+
+  private List<Long> logGenerations() throws IOException {
+    List<Long> generations = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.matches("wal-\\d{16}\\.log"))
+          .forEach(name -> generations.add(Long.parseLong(name.substring(4, 20))));
+    }
+    generations.sort(null);
+    return generations;
+  }
+
+  private Path logFile(long generation) {
+    return directory.resolve(String.format("wal-%016d.log", generation));
+  }
+
+  private static void write(FileChannel channel, byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /** Checkpoints if anything changed, so the next open reads a single snapshot. */
+  @Override
+  public void close() throws IOException {
+    if (checkpointer != null) {
+      checkpointer.shutdownNow();
+    }
+    if (hasChanges()) {
+      checkpoint();
+    }
+    lock.lock();
+    try {
+      log.close();
+      if (logSize == 0) {
+        // Nothing was logged since the checkpoint, the next open starts its own log
+        Files.deleteIfExists(logFile(logGeneration));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
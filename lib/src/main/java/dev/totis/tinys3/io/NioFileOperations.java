@@ -1,22 +1,64 @@
 package dev.totis.tinys3.io;
 
+import dev.totis.tinys3.jfr.StorageEvent;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
+/**
+ * Stores each object as a file below {@code storagePath}. Objects are written to a file in {@code
+ * .staging} and renamed over the previous version, so readers never block and only ever see whole
+ * objects. Appends change the file in place and are serialized per path.
+ *
+ * <p>With a {@link Durability} other than {@code NONE}, a staged file is forced before it is
+ * renamed, and the directory holding the new name is forced before the write returns.
+ */
 public class NioFileOperations implements FileOperations {
 
+  // Hidden from bucket listings, same filesystem as the objects so the final move is a rename
+  private static final String STAGING_DIRECTORY = ".staging";
+  private static final String LAYER = "nio";
+
+  /**
+   * How long the first writer of a group commit waits for others to join. Writers already batch up
+   * while a force is running, so by default nobody waits.
+   */
+  public static final Duration DEFAULT_COMMIT_WINDOW = Duration.ZERO;
+
   private final String storagePath;
+  private final StripedLocks appendLocks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+  private final Durability durability;
+  private final GroupSync groupSync;
+  private final LongAdder forces = new LongAdder();
 
   public NioFileOperations(String storagePath) {
+    this(storagePath, Durability.NONE, DEFAULT_COMMIT_WINDOW);
+  }
+
+  public NioFileOperations(String storagePath, Durability durability, Duration commitWindow) {
     this.storagePath = storagePath;
+    this.durability = durability;
+    this.groupSync = durability == Durability.GROUP_COMMIT ? new GroupSync(commitWindow) : null;
+  }
+
+  /** Files and directories forced so far. */
+  public long getForces() {
+    return forces.sum() + (groupSync == null ? 0 : groupSync.getForces());
   }
 
   @Override
   public void createDirectory(String path) throws StorageException {
     try {
-      Files.createDirectory(Paths.get(storagePath, path));
+      Path directory = Files.createDirectory(Paths.get(storagePath, path));
+      syncDirectory(directory.getParent());
     } catch (IOException e) {
       throw new StorageException("Failed to create directory: " + path, e);
     }
@@ -29,8 +71,27 @@ public class NioFileOperations implements FileOperations {
 
   @Override
   public void createParentDirectories(String path) throws StorageException {
+    Path parent = Paths.get(storagePath, path).getParent();
     try {
-      Files.createDirectories(Paths.get(storagePath, path).getParent());
+      if (durability == Durability.NONE) {
+        Files.createDirectories(parent);
+        return;
+      }
+      if (Files.isDirectory(parent)) {
+        return;
+      }
+      // Each new directory is only durable once named in a forced parent
+      Path missing = parent;
+      while (missing.getParent() != null && !Files.isDirectory(missing.getParent())) {
+        missing = missing.getParent();
+      }
+      Files.createDirectories(parent);
+      for (Path created = parent; ; created = created.getParent()) {
+        syncDirectory(created.getParent());
+        if (created.equals(missing)) {
+          break;
+        }
+      }
     } catch (IOException e) {
       throw new StorageException("Failed to create parent directories: " + path, e);
     }
@@ -38,20 +99,144 @@ public class NioFileOperations implements FileOperations {
 
   @Override
   public void appendToFile(String path, byte[] data) throws StorageException {
-    try (var fw = new FileOutputStream(Paths.get(storagePath, path).toFile(), true)) {
-      fw.write(data);
-      fw.flush();
+    StorageEvent event = StorageEvent.start(LAYER, "append", path);
+    ReentrantLock lock = appendLocks.get(path);
+    lock.lock();
+    Path file = Paths.get(storagePath, path);
+    try {
+      try (var fw = new FileOutputStream(file.toFile(), true)) {
+        fw.write(data);
+        fw.flush();
+        forceFile(fw.getChannel());
+      }
+      syncDirectory(file.getParent());
     } catch (IOException e) {
       throw new StorageException("Failed to append to file: " + path, e);
+    } finally {
+      lock.unlock();
+      event.commit(data.length);
+    }
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "append", path);
+    ReentrantLock lock = appendLocks.get(path);
+    long appended = 0;
+    Path file = Paths.get(storagePath, path);
+    lock.lock();
+    try {
+      try (FileChannel out =
+          FileChannel.open(
+              file,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND)) {
+        appended = transfer(Paths.get(sourcePath), out);
+        forceFile(out);
+      }
+      syncDirectory(file.getParent());
+    } catch (IOException e) {
+      throw new StorageException("Failed to append " + sourcePath + " to " + path, e);
+    } finally {
+      lock.unlock();
+      event.commit(appended);
+    }
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "concat", path);
+    Path staging = null;
+    long written = 0;
+    try {
+      staging = createStagingFile();
+      try (FileChannel out = FileChannel.open(staging, StandardOpenOption.WRITE)) {
+        for (String sourcePath : sourcePaths) {
+          written += transfer(Paths.get(sourcePath), out);
+        }
+      }
+      publish(staging, Paths.get(storagePath, path));
+    } catch (IOException e) {
+      deleteQuietly(staging);
+      throw new StorageException("Failed to join the parts of " + path, e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  /** Copies {@code source} to the end of {@code out}, without going through the heap. */
+  private static long transfer(Path source, FileChannel out) throws IOException {
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+      long size = in.size();
+      for (long position = 0; position < size; ) {
+        position += in.transferTo(position, size - position, out);
+      }
+      return size;
     }
   }
 
   @Override
   public void writeFile(String path, byte[] data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "write", path);
+    Path staging = null;
     try {
-      Files.write(Paths.get(storagePath, path), data);
+      staging = createStagingFile();
+      Files.write(staging, data);
+      publish(staging, Paths.get(storagePath, path));
     } catch (IOException e) {
+      deleteQuietly(staging);
       throw new StorageException("Failed to write file: " + path, e);
+    } finally {
+      event.commit(data.length);
+    }
+  }
+
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "write", path);
+    Path staging = null;
+    long written = 0;
+    try {
+      staging = createStagingFile();
+      written = Files.copy(data, staging, StandardCopyOption.REPLACE_EXISTING);
+      // Only a body that was read to the end, and so passed verification, replaces the object
+      publish(staging, Paths.get(storagePath, path));
+    } catch (IOException e) {
+      deleteQuietly(staging);
+      throw new StorageException("Failed to write file: " + path, e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  /** Stages in the same directory as {@link #writeFile}, so the move is a rename. */
+  @Override
+  public String stageTempFile(InputStream data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "stage", null, null);
+    Path staging = null;
+    long written = 0;
+    try {
+      staging = createStagingFile();
+      written = Files.copy(data, staging, StandardCopyOption.REPLACE_EXISTING);
+      return staging.toString();
+    } catch (IOException e) {
+      deleteQuietly(staging);
+      throw new StorageException("Failed to stage a file", e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  @Override
+  public void moveTempFile(String path, String sourcePath) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "move", path);
+    try {
+      publish(Paths.get(sourcePath), Paths.get(storagePath, path));
+    } catch (IOException e) {
+      throw new StorageException("Failed to move " + sourcePath + " to " + path, e);
+    } finally {
+      event.commit();
     }
   }
 
@@ -64,21 +249,95 @@ public class NioFileOperations implements FileOperations {
     }
   }
 
+  @Override
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    copyStream(Paths.get(path), path, data);
+  }
+
+  private void copyStream(Path target, String path, InputStream data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "writeTemp", path);
+    long written = 0;
+    try {
+      written = Files.copy(data, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // Never leave a half written part behind, e.g. when the body fails verification
+      deleteQuietly(target);
+      throw new StorageException("Failed to write file: " + path, e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  private Path createStagingFile() throws IOException {
+    Path stagingDirectory = Files.createDirectories(Paths.get(storagePath, STAGING_DIRECTORY));
+    return Files.createTempFile(stagingDirectory, "upload-", ".tmp");
+  }
+
+  /** Renames a staged file over {@code target}, durably unless the durability is {@code NONE}. */
+  private void publish(Path staging, Path target) throws IOException {
+    if (durability != Durability.NONE) {
+      try (FileChannel channel = FileChannel.open(staging, StandardOpenOption.WRITE)) {
+        forceFile(channel);
+      }
+    }
+    StorageFiles.moveIntoPlace(staging, target);
+    syncDirectory(target.getParent());
+  }
+
+  private void forceFile(FileChannel channel) throws IOException {
+    if (durability != Durability.NONE) {
+      channel.force(true);
+      forces.increment();
+    }
+  }
+
+  /** Makes the names in {@code directory} durable, which a forced file alone does not. */
+  private void syncDirectory(Path directory) throws IOException {
+    switch (durability) {
+      case FSYNC -> {
+        StorageFiles.force(directory);
+        forces.increment();
+      }
+      case GROUP_COMMIT -> groupSync.sync(directory);
+      case NONE -> {}
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    if (path == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException ignored) {
+      // best effort
+    }
+  }
+
   @Override
   public byte[] readTempFile(String path) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "readTemp", path);
+    byte[] data = null;
     try {
-      return Files.readAllBytes(Paths.get(path));
+      data = Files.readAllBytes(Paths.get(path));
+      return data;
     } catch (IOException e) {
       throw new StorageException("Failed to read file: " + path, e);
+    } finally {
+      event.commit(data == null ? 0 : data.length);
     }
   }
 
   @Override
   public InputStream readFileStream(String path) throws StorageException {
+    // Only covers opening the file, the reads happen while the response is written
+    StorageEvent event = StorageEvent.start(LAYER, "open", path);
     try {
       return Files.newInputStream(Paths.get(storagePath, path));
     } catch (IOException e) {
       throw new StorageException("Failed to create input stream for file: " + path, e);
+    } finally {
+      event.commit();
     }
   }
 
@@ -88,6 +347,7 @@ public class NioFileOperations implements FileOperations {
       throw new StorageException("Path cannot be null or empty");
     }
 
+    StorageEvent event = StorageEvent.start(LAYER, "delete", path);
     try {
       Path finalPath = Paths.get(storagePath, path).normalize();
       if (finalPath.toFile().isDirectory()) {
@@ -111,13 +371,17 @@ public class NioFileOperations implements FileOperations {
       } else {
         Files.delete(finalPath);
       }
+      syncDirectory(finalPath.getParent());
     } catch (IOException e) {
       throw new StorageException("Failed to delete " + path, e);
+    } finally {
+      event.commit();
     }
   }
 
   @Override
   public FileEntry[] list(String bucketName) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "list", bucketName, null);
     try {
       return Files.walk(Paths.get(storagePath, bucketName))
           .map(
@@ -138,6 +402,45 @@ public class NioFileOperations implements FileOperations {
           .toArray(FileEntry[]::new);
     } catch (IOException e) {
       throw new StorageException("Failed to list directory: " + storagePath, e);
+    } finally {
+      event.commit();
+    }
+  }
+
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) throws StorageException {
+    Path bucket = Paths.get(storagePath, bucketName).normalize();
+    // Walk only the directory that the prefix points into
+    int slash = prefix.lastIndexOf('/');
+    Path start = slash < 0 ? bucket : bucket.resolve(prefix.substring(0, slash)).normalize();
+    if (!start.startsWith(bucket) || !Files.isDirectory(start)) {
+      return Stream.empty();
+    }
+    try {
+      return Files.walk(start)
+          .filter(p -> !p.equals(bucket))
+          .map(p -> bucket.relativize(p).toString())
+          .filter(name -> name.startsWith(prefix))
+          .map(
+              name -> {
+                try {
+                  Path p = bucket.resolve(name);
+                  BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                  return new FileEntry(
+                      name,
+                      attrs.isDirectory(),
+                      attrs.isDirectory() ? 0 : attrs.size(),
+                      attrs.lastModifiedTime().toMillis());
+                } catch (NoSuchFileException e) {
+                  // Deleted since the walk saw it
+                  return null;
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              })
+          .filter(Objects::nonNull);
+    } catch (IOException e) {
+      throw new StorageException("Failed to list directory: " + start, e);
     }
   }
 
@@ -161,13 +464,17 @@ public class NioFileOperations implements FileOperations {
 
   @Override
   public void copy(String sourcePath, String destinationPath) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "copy", destinationPath);
+    Path staging = null;
     try {
-      Files.copy(
-          Paths.get(storagePath, sourcePath),
-          Paths.get(storagePath, destinationPath),
-          StandardCopyOption.REPLACE_EXISTING);
+      staging = createStagingFile();
+      Files.copy(Paths.get(storagePath, sourcePath), staging, StandardCopyOption.REPLACE_EXISTING);
+      publish(staging, Paths.get(storagePath, destinationPath));
     } catch (IOException e) {
+      deleteQuietly(staging);
       throw new StorageException("Failed to copy from " + sourcePath + " to " + destinationPath, e);
+    } finally {
+      event.commit();
     }
   }
 
@@ -198,6 +505,7 @@ public class NioFileOperations implements FileOperations {
   public FileEntry[] listBuckets() throws StorageException {
     try {
       return Files.list(Paths.get(storagePath))
+          .filter(p -> !p.getFileName().toString().startsWith("."))
           .map(
               p -> {
                 try {
@@ -0,0 +1,53 @@
+package dev.totis.tinys3.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Immutable body of an in-memory object. */
+interface ObjectContent {
+  long length();
+
+  /** Bytes of this content held in memory, on or off the heap. */
+  default long memoryBytes() {
+    return length();
+  }
+
+  /**
+   * Takes a reference for a reader. Returns false if the content was already freed, the caller
+   * should then look the object up again.
+   */
+  boolean retain();
+
+  /** Drops a reference, the last one gives the memory back. */
+  void release();
+
+  /**
+   * Whether anything besides the key it is stored under holds this content, like another key or a
+   * snapshot. Moving that key's copy out of memory would then not free it.
+   */
+  default boolean isShared() {
+    return false;
+  }
+
+  /** A stream over the content, only valid while the caller holds a reference. */
+  InputStream openStream();
+
+  byte[] toByteArray();
+
+  /** A stream over the content that releases one reference when closed. */
+  default InputStream newInputStream() {
+    return new FilterInputStream(openStream()) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          super.close();
+          release();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,977 @@
+package dev.totis.tinys3.io;
+
+import dev.totis.tinys3.jfr.StorageEvent;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk storage that packs small objects into large append-only segment files, so millions of
+ * small objects cost a handful of files instead of one inode and directory entry each. Objects
+ * larger than {@code maxInlineSize} are kept as plain files.
+ *
+ * <p>Every change, including deletes and directories, is appended to the active segment as a
+ * record. A segment that reaches {@code segmentSize} is sealed with a footer listing its records,
+ * so on startup the key index is rebuilt from footers and only the last segment is scanned. The
+ * index lives in memory and maps each key to where its body is.
+ *
+ * <p>Overwrites and deletes leave dead records behind. A background task rewrites the live
+ * records of sealed segments that are mostly dead into the active segment and deletes the old
+ * file.
+ */
+public class PackedFileOperations implements FileOperations, Closeable {
+  public static final int DEFAULT_MAX_INLINE_SIZE = 64 * 1024;
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  public static final Duration DEFAULT_COMPACTION_INTERVAL = Duration.ofSeconds(30);
+
+  /** Sealed segments with at least this share of dead bytes are compacted. */
+  static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackedFileOperations.class);
+  private static final String LAYER = "packed";
+  private static final String SEGMENTS_DIRECTORY = ".segments";
+  private static final String BLOBS_DIRECTORY = ".blobs";
+
+  private static final byte INLINE = 1;
+  private static final byte BLOB = 2;
+  private static final byte DIRECTORY = 3;
+  private static final byte TOMBSTONE = 4;
+
+  // kind, key length, size, last modified
+  private static final int HEADER_SIZE = 1 + 2 + 8 + 8;
+  // entry count, footer start, magic
+  private static final int TRAILER_SIZE = 4 + 8 + 4;
+  private static final int FOOTER_MAGIC = 0x54533346;
+
+  private final Path segmentsDirectory;
+  private final Path blobsDirectory;
+  private final int maxInlineSize;
+  private final long segmentSize;
+  private final ConcurrentSkipListMap<String, Slot> index = new ConcurrentSkipListMap<>();
+  private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+  // Serializes appends, so the order of records in the log is the order of index updates
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ScheduledExecutorService compactor;
+  private final LongAdder compactedSegments = new LongAdder();
+  private Segment active;
+
+  public PackedFileOperations(String storagePath) throws IOException {
+    this(
+        Paths.get(storagePath),
+        DEFAULT_MAX_INLINE_SIZE,
+        DEFAULT_SEGMENT_SIZE,
+        DEFAULT_COMPACTION_INTERVAL);
+  }
+
+  /**
+   * Opens the store under {@code root}, compacting every {@code compactionInterval} or only on
+   * {@link #compact()} when it is zero.
+   */
+  public PackedFileOperations(
+      Path root, int maxInlineSize, long segmentSize, Duration compactionInterval)
+      throws IOException {
+    this.segmentsDirectory = Files.createDirectories(root.resolve(SEGMENTS_DIRECTORY));
+    this.blobsDirectory = Files.createDirectories(root.resolve(BLOBS_DIRECTORY));
+    this.maxInlineSize = maxInlineSize;
+    this.segmentSize = segmentSize;
+    load();
+
+    if (compactionInterval.isZero()) {
+      this.compactor = null;
+      return;
+    }
+    this.compactor =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("tiny-s3-segment-compactor").daemon().factory());
+    long period = compactionInterval.toMillis();
+    compactor.scheduleWithFixedDelay(this::compactQuietly, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** Keys in the index, objects and directories alike. */
+  public int getEntries() {
+    return index.size();
+  }
+
+  public int getSegments() {
+    return segments.size();
+  }
+
+  /** Bytes taken by overwritten or deleted records that compaction has not reclaimed yet. */
+  public long getDeadBytes() {
+    return segments.values().stream().mapToLong(segment -> segment.deadBytes.get()).sum();
+  }
+
+  public long getCompactedSegments() {
+    return compactedSegments.sum();
+  }
+
+  @Override
+  public void createDirectory(String path) throws StorageException {
+    if (isTempPath(path)) {
+      createTempDirectories(path);
+      return;
+    }
+    writeLock.lock();
+    try {
+      if (index.containsKey(path)) {
+        throw new StorageException("Directory already exists: " + path);
+      }
+      publish(path, append(DIRECTORY, path, 0, now(), null));
+    } catch (IOException e) {
+      throw new StorageException("Failed to create directory: " + path, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    return index.containsKey(path);
+  }
+
+  @Override
+  public void createParentDirectories(String path) throws StorageException {
+    int slash = path.lastIndexOf('/');
+    if (slash <= 0 || index.containsKey(path.substring(0, slash))) {
+      return;
+    }
+    writeLock.lock();
+    try {
+      for (int i = path.indexOf('/'); i > 0 && i <= slash; i = path.indexOf('/', i + 1)) {
+        String parent = path.substring(0, i);
+        if (!index.containsKey(parent)) {
+          publish(parent, append(DIRECTORY, parent, 0, now(), null));
+        }
+      }
+    } catch (IOException e) {
+      throw new StorageException("Failed to create parent directories: " + path, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void appendToFile(String path, byte[] data) throws StorageException {
+    appendData(path, data.length, new ByteArrayInputStream(data));
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    try (InputStream data = Files.newInputStream(Paths.get(sourcePath))) {
+      appendData(path, Files.size(Paths.get(sourcePath)), data);
+    } catch (IOException e) {
+      throw new StorageException("Failed to append " + sourcePath + " to " + path, e);
+    }
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    // Opened one at a time, an upload may have thousands of parts
+    Iterator<String> remaining = sourcePaths.iterator();
+    Enumeration<InputStream> parts =
+        new Enumeration<>() {
+          @Override
+          public boolean hasMoreElements() {
+            return remaining.hasNext();
+          }
+
+          @Override
+          public InputStream nextElement() {
+            try {
+              return Files.newInputStream(Paths.get(remaining.next()));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        };
+    try (InputStream data = new SequenceInputStream(parts)) {
+      writeFile(path, data);
+    } catch (IOException | UncheckedIOException e) {
+      throw new StorageException("Failed to join the parts of " + path, e);
+    }
+  }
+
+  private void appendData(String path, long length, InputStream data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "append", path);
+    try {
+      Slot previous = index.get(path);
+      long size = previous == null || previous.kind == DIRECTORY ? 0 : previous.size;
+      if (size + length <= maxInlineSize) {
+        byte[] existing = size == 0 ? new byte[0] : readAllBytes(path);
+        putInline(path, concat(existing, data.readAllBytes()));
+        return;
+      }
+
+      // Too large to stay inline, grow the plain file instead
+      Path blob = blobPath(path);
+      if (previous == null || previous.kind != BLOB) {
+        Files.write(blob, size == 0 ? new byte[0] : readAllBytes(path));
+      }
+      try (OutputStream out = Files.newOutputStream(blob, StandardOpenOption.APPEND)) {
+        data.transferTo(out);
+      }
+      writeLock.lock();
+      try {
+        publish(path, append(BLOB, path, Files.size(blob), now(), null));
+      } finally {
+        writeLock.unlock();
+      }
+    } catch (IOException e) {
+      throw new StorageException("Failed to append to file: " + path, e);
+    } finally {
+      event.commit(length);
+    }
+  }
+
+  @Override
+  public void writeFile(String path, byte[] data) throws StorageException {
+    writeFile(path, new ByteArrayInputStream(data));
+  }
+
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "write", path);
+    long written = 0;
+    try {
+      byte[] head = data.readNBytes(maxInlineSize + 1);
+      if (head.length <= maxInlineSize) {
+        putInline(path, head);
+        written = head.length;
+      } else {
+        written = putBlob(path, new SequenceInputStream(new ByteArrayInputStream(head), data));
+      }
+    } catch (IOException e) {
+      throw new StorageException("Failed to write file: " + path, e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  private void putInline(String path, byte[] data) throws IOException {
+    writeLock.lock();
+    try {
+      Slot previous = publish(path, append(INLINE, path, data.length, now(), data));
+      if (previous != null && previous.kind == BLOB) {
+        Files.deleteIfExists(blobPath(path));
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /** Stores {@code data} as a plain file, only replacing the object once it is fully read. */
+  private long putBlob(String path, InputStream data) throws IOException {
+    Path staging = Files.createTempFile(blobsDirectory, "upload-", ".tmp");
+    try {
+      long size = Files.copy(data, staging, StandardCopyOption.REPLACE_EXISTING);
+      writeLock.lock();
+      try {
+        StorageFiles.moveIntoPlace(staging, blobPath(path));
+        publish(path, append(BLOB, path, size, now(), null));
+      } finally {
+        writeLock.unlock();
+      }
+      return size;
+    } finally {
+      Files.deleteIfExists(staging);
+    }
+  }
+
+  @Override
+  public void writeTempFile(String path, byte[] data) throws StorageException {
+    try {
+      Files.write(Paths.get(path), data);
+    } catch (IOException e) {
+      throw new StorageException("Failed to write file: " + path, e);
+    }
+  }
+
+  @Override
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    Path target = Paths.get(path);
+    StorageEvent event = StorageEvent.start(LAYER, "writeTemp", path);
+    long written = 0;
+    try {
+      written = Files.copy(data, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      try {
+        Files.deleteIfExists(target);
+      } catch (IOException ignored) {
+        // best effort
+      }
+      throw new StorageException("Failed to write file: " + path, e);
+    } finally {
+      event.commit(written);
+    }
+  }
+
+  @Override
+  public byte[] readTempFile(String path) throws StorageException {
+    try {
+      return isTempPath(path) ? Files.readAllBytes(Paths.get(path)) : readAllBytes(path);
+    } catch (IOException e) {
+      throw new StorageException("Failed to read file: " + path, e);
+    }
+  }
+
+  @Override
+  public InputStream readFileStream(String path) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "open", path);
+    try {
+      Slot slot = slot(path);
+      if (slot.kind == BLOB) {
+        return Files.newInputStream(blobPath(path));
+      }
+      return new ByteArrayInputStream(readAllBytes(path));
+    } catch (IOException e) {
+      throw new StorageException("Failed to create input stream for file: " + path, e);
+    } finally {
+      event.commit();
+    }
+  }
+
+  /** The body of the object at {@code path}, which is small unless it is a plain file. */
+  private byte[] readAllBytes(String path) throws IOException, StorageException {
+    while (true) {
+      Slot slot = slot(path);
+      if (slot.kind == BLOB) {
+        return Files.readAllBytes(blobPath(path));
+      }
+      if (slot.kind == DIRECTORY) {
+        return new byte[0];
+      }
+      Segment segment = segments.get(slot.segment);
+      if (segment == null) {
+        // Compacted since the lookup, the index points to the new copy by now
+        continue;
+      }
+      try {
+        return segment.read(slot.offset, (int) slot.size);
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // Compacted, or closed by another reader's interrupt and reopened on the next read
+        if (segment.retired && segments.get(slot.segment) == segment) {
+          throw new StorageException("Storage is closed", e);
+        }
+      }
+    }
+  }
+
+  private Slot slot(String path) throws StorageException {
+    Slot slot = index.get(path);
+    if (slot == null) {
+      throw new StorageException("Path does not exist: " + path);
+    }
+    return slot;
+  }
+
+  @Override
+  public void delete(String path) throws StorageException {
+    if (isTempPath(path)) {
+      deleteTempFile(path);
+      return;
+    }
+    StorageEvent event = StorageEvent.start(LAYER, "delete", path);
+    writeLock.lock();
+    try {
+      Slot slot = index.get(path);
+      if (slot == null) {
+        return;
+      }
+      if (slot.kind == DIRECTORY && hasChildren(path)) {
+        throw new StorageException("Directory not empty: " + path);
+      }
+      Slot tombstone = append(TOMBSTONE, path, 0, now(), null);
+      markDead(path, tombstone);
+      publish(path, null);
+      if (slot.kind == BLOB) {
+        Files.deleteIfExists(blobPath(path));
+      }
+    } catch (IOException e) {
+      throw new StorageException("Failed to delete " + path, e);
+    } finally {
+      writeLock.unlock();
+      event.commit();
+    }
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName) throws StorageException {
+    return list(bucketName, "");
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    return stream(bucketName, prefix).toArray(FileEntry[]::new);
+  }
+
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) {
+    String bucketPrefix = bucketName + "/";
+    return SortedPaths.withPrefix(index, bucketPrefix + prefix)
+        .map(
+            entry -> {
+              Slot slot = entry.getValue();
+              String objectName = entry.getKey().substring(bucketPrefix.length());
+              boolean directory = slot.kind == DIRECTORY;
+              return new FileEntry(objectName, directory, slot.size, slot.lastModified);
+            });
+  }
+
+  @Override
+  public long getSize(String path) throws StorageException {
+    return slot(path).size;
+  }
+
+  @Override
+  public FileTime getLastModifiedTime(String path) throws StorageException {
+    return FileTime.fromMillis(slot(path).lastModified);
+  }
+
+  @Override
+  public void copy(String sourcePath, String destinationPath) throws StorageException {
+    StorageEvent event = StorageEvent.start(LAYER, "copy", destinationPath);
+    try {
+      Slot source = slot(sourcePath);
+      createParentDirectories(destinationPath);
+      if (source.kind == DIRECTORY) {
+        writeLock.lock();
+        try {
+          publish(destinationPath, append(DIRECTORY, destinationPath, 0, now(), null));
+        } finally {
+          writeLock.unlock();
+        }
+      } else if (source.kind == BLOB) {
+        try (InputStream in = Files.newInputStream(blobPath(sourcePath))) {
+          putBlob(destinationPath, in);
+        }
+      } else {
+        putInline(destinationPath, readAllBytes(sourcePath));
+      }
+    } catch (IOException e) {
+      throw new StorageException("Failed to copy from " + sourcePath + " to " + destinationPath, e);
+    } finally {
+      event.commit();
+    }
+  }
+
+  @Override
+  public String createTempDirectory(String prefix) throws StorageException {
+    try {
+      return Files.createTempDirectory(prefix).toString();
+    } catch (IOException e) {
+      throw new StorageException("Failed to create temp directory", e);
+    }
+  }
+
+  @Override
+  public boolean isDirectoryNotEmpty(String path) throws StorageException {
+    Slot slot = index.get(path);
+    if (slot == null || slot.kind != DIRECTORY) {
+      throw new StorageException("Path does not exist or is not a directory: " + path);
+    }
+    return hasChildren(path);
+  }
+
+  private boolean hasChildren(String path) {
+    return SortedPaths.hasChildren(index, path);
+  }
+
+  @Override
+  public String getObjectPath(String bucketName, String key) {
+    if (key == null || key.isEmpty()) {
+      return bucketName;
+    }
+    return bucketName + "/" + key;
+  }
+
+  @Override
+  public FileEntry[] listBuckets() throws StorageException {
+    return SortedPaths.listTopLevel(
+        index,
+        (name, slot) -> new FileEntry(name, slot.kind == DIRECTORY, slot.size, slot.lastModified));
+  }
+
+  @Override
+  public void deleteTempFile(String path) throws StorageException {
+    try {
+      Files.deleteIfExists(Paths.get(path));
+    } catch (IOException e) {
+      throw new StorageException("Failed to delete: " + path, e);
+    }
+  }
+
+  /** Compacts the sealed segments that are mostly dead records. */
+  public synchronized void compact() throws StorageException {
+    List<Segment> candidates =
+        segments.values().stream()
+            .filter(segment -> segment.sealed)
+            .filter(segment -> segment.deadBytes.get() >= segment.size * COMPACTION_THRESHOLD)
+            .sorted((a, b) -> Integer.compare(a.id, b.id))
+            .toList();
+    for (Segment segment : candidates) {
+      try {
+        compact(segment);
+      } catch (IOException e) {
+        throw new StorageException("Failed to compact " + segment.file, e);
+      }
+    }
+  }
+
+  private void compactQuietly() {
+    try {
+      compact();
+    } catch (StorageException | RuntimeException e) {
+      LOGGER.warn("Segment compaction failed", e);
+    }
+  }
+
+  private void compact(Segment segment) throws IOException {
+    List<Record> records = readFooter(segment);
+    if (records == null) {
+      throw new IOException("Sealed segment without a footer: " + segment.file);
+    }
+    boolean oldest = segments.keySet().stream().allMatch(id -> id >= segment.id);
+    int firstTarget;
+    writeLock.lock();
+    try {
+      firstTarget = active.id;
+    } finally {
+      writeLock.unlock();
+    }
+    for (Record record : records) {
+      if (record.kind == TOMBSTONE) {
+        // Only needed while an older segment may still hold a copy of the key
+        if (!oldest && !index.containsKey(record.key)) {
+          moveRecord(record, null, null);
+        }
+        continue;
+      }
+      Slot slot = index.get(record.key);
+      if (slot != null && slot.segment == segment.id && slot.offset == record.offset) {
+        byte[] payload = record.kind == INLINE ? segment.read(slot.offset, (int) slot.size) : null;
+        moveRecord(record, slot, payload);
+      }
+    }
+
+    // The moved records must be on disk before their only other copy is deleted
+    List<Segment> targets = new ArrayList<>();
+    writeLock.lock();
+    try {
+      for (int id = firstTarget; id <= active.id; id++) {
+        Segment target = segments.get(id);
+        if (target != null) {
+          targets.add(target);
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    for (Segment target : targets) {
+      target.force();
+    }
+    StorageFiles.force(segmentsDirectory);
+
+    writeLock.lock();
+    try {
+      segments.remove(segment.id);
+      segment.retire();
+    } finally {
+      writeLock.unlock();
+    }
+    Files.deleteIfExists(segment.file);
+    compactedSegments.increment();
+    LOGGER.debug("Compacted segment {}", segment.file);
+  }
+
+  /** Appends {@code record} again, unless {@code path} changed since it was read. */
+  private void moveRecord(Record record, Slot expected, byte[] payload) throws IOException {
+    writeLock.lock();
+    try {
+      Slot current = index.get(record.key);
+      if (expected == null ? current != null : !expected.equals(current)) {
+        return;
+      }
+      Slot moved = append(record.kind, record.key, record.size, record.lastModified, payload);
+      if (expected == null) {
+        markDead(record.key, moved);
+      } else {
+        index.put(record.key, moved);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    writeLock.lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.retire();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /** Appends a record to the active segment, rolling over to a new one when it is full. */
+  private Slot append(byte kind, String path, long size, long lastModified, byte[] payload)
+      throws IOException {
+    byte[] key = path.getBytes(StandardCharsets.UTF_8);
+    int length = HEADER_SIZE + key.length + (payload == null ? 0 : payload.length);
+    if (active.size > 0 && active.size + length > segmentSize) {
+      seal(active);
+      active = createSegment(active.id + 1);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.put(kind).putShort((short) key.length).putLong(size).putLong(lastModified).put(key);
+    if (payload != null) {
+      buffer.put(payload);
+    }
+    active.write(buffer.flip(), active.size);
+    long offset = active.size + HEADER_SIZE + key.length;
+    active.size += length;
+    active.records.add(new Record(kind, path, offset, size, lastModified));
+    return new Slot(kind, active.id, offset, size, lastModified);
+  }
+
+  /** Points {@code path} to {@code slot}, or removes it when null, and returns the old slot. */
+  private Slot publish(String path, Slot slot) {
+    Slot previous = slot == null ? index.remove(path) : index.put(path, slot);
+    if (previous != null) {
+      markDead(path, previous);
+    }
+    return previous;
+  }
+
+  private void markDead(String path, Slot slot) {
+    Segment segment = segments.get(slot.segment);
+    if (segment != null) {
+      int keyLength = path.getBytes(StandardCharsets.UTF_8).length;
+      long payload = slot.kind == INLINE ? slot.size : 0;
+      segment.deadBytes.addAndGet(HEADER_SIZE + keyLength + payload);
+    }
+  }
+
+  /** Writes the footer that lets the index be rebuilt without reading the records. */
+  private void seal(Segment segment) throws IOException {
+    ByteArrayOutputStream footer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(footer);
+    for (Record record : segment.records) {
+      byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+      out.writeByte(record.kind);
+      out.writeShort(key.length);
+      out.writeLong(record.size);
+      out.writeLong(record.lastModified);
+      out.writeLong(record.offset);
+      out.write(key);
+    }
+    out.writeInt(segment.records.size());
+    out.writeLong(segment.size);
+    out.writeInt(FOOTER_MAGIC);
+    segment.write(ByteBuffer.wrap(footer.toByteArray()), segment.size);
+    segment.sealed = true;
+    segment.records = null;
+  }
+
+  private Segment createSegment(int id) throws IOException {
+    Segment segment = new Segment(id, segmentsDirectory.resolve(segmentName(id)));
+    segment.records = new ArrayList<>();
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static String segmentName(int id) {
+    return String.format("segment-%08d.dat", id);
+  }
+
+  /** Rebuilds the index from the segments, in the order they were written. */
+  private void load() throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    try (Stream<Path> files = Files.list(segmentsDirectory)) {
+      files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.matches("segment-\\d{8}\\.dat"))
+          .forEach(name -> ids.add(Integer.parseInt(name.substring(8, 16))));
+    }
+    ids.sort(null);
+
+    for (int id : ids) {
+      Segment segment = new Segment(id, segmentsDirectory.resolve(segmentName(id)));
+      segments.put(id, segment);
+      List<Record> records = readFooter(segment);
+      if (records != null) {
+        segment.sealed = true;
+      } else {
+        records = scan(segment);
+        segment.records = new ArrayList<>(records);
+      }
+      for (Record record : records) {
+        Slot slot = new Slot(record.kind, id, record.offset, record.size, record.lastModified);
+        if (record.kind == TOMBSTONE) {
+          markDead(record.key, slot);
+          publish(record.key, null);
+        } else {
+          publish(record.key, slot);
+        }
+      }
+      if (active != null && !active.sealed) {
+        // Only the last segment is ever left open
+        seal(active);
+      }
+      active = segment;
+    }
+    if (active == null || active.sealed) {
+      active = createSegment(active == null ? 1 : active.id + 1);
+    }
+    deleteOrphanedBlobs();
+    LOGGER.info("Loaded {} entries from {} segments", index.size(), segments.size());
+  }
+
+  /** The records listed in the footer of {@code segment}, or null when it is not sealed. */
+  private static List<Record> readFooter(Segment segment) throws IOException {
+    long fileSize = segment.channel.size();
+    if (fileSize < TRAILER_SIZE) {
+      return null;
+    }
+    ByteBuffer trailer = ByteBuffer.wrap(segment.read(fileSize - TRAILER_SIZE, TRAILER_SIZE));
+    int count = trailer.getInt();
+    long footerStart = trailer.getLong();
+    if (trailer.getInt() != FOOTER_MAGIC
+        || count < 0
+        || footerStart < 0
+        || footerStart > fileSize - TRAILER_SIZE) {
+      return null;
+    }
+    byte[] footer = segment.read(footerStart, (int) (fileSize - TRAILER_SIZE - footerStart));
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+    List<Record> records = new ArrayList<>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        byte kind = in.readByte();
+        byte[] key = new byte[in.readUnsignedShort()];
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        long offset = in.readLong();
+        in.readFully(key);
+        String path = new String(key, StandardCharsets.UTF_8);
+        records.add(new Record(kind, path, offset, size, lastModified));
+      }
+    } catch (EOFException e) {
+      // The magic matched by chance at the end of an unsealed segment
+      return null;
+    }
+    segment.size = footerStart;
+    return records;
+  }
+
+  /** Reads the records of an unsealed segment, dropping a record torn by a crash at its end. */
+  private static List<Record> scan(Segment segment) throws IOException {
+    List<Record> records = new ArrayList<>();
+    long fileSize = segment.channel.size();
+    long position = 0;
+    InputStream channel = Channels.newInputStream(segment.channel.position(0));
+    DataInputStream in = new DataInputStream(new BufferedInputStream(channel, 64 * 1024));
+    while (position + HEADER_SIZE <= fileSize) {
+      byte kind = in.readByte();
+      int keyLength = in.readUnsignedShort();
+      long size = in.readLong();
+      long lastModified = in.readLong();
+      long payload = kind == INLINE ? size : 0;
+      long end = position + HEADER_SIZE + keyLength + payload;
+      if (kind < INLINE || kind > TOMBSTONE || payload < 0 || end > fileSize) {
+        break;
+      }
+      byte[] key = new byte[keyLength];
+      in.readFully(key);
+      in.skipNBytes(payload);
+      String path = new String(key, StandardCharsets.UTF_8);
+      records.add(new Record(kind, path, position + HEADER_SIZE + keyLength, size, lastModified));
+      position = end;
+    }
+    if (position < fileSize) {
+      LOGGER.warn("Dropping {} torn bytes at the end of {}", fileSize - position, segment.file);
+      segment.channel.truncate(position);
+    }
+    segment.size = position;
+    return records;
+  }
+
+  /** Deletes plain files left behind by a crash, before or after their record was written. */
+  private void deleteOrphanedBlobs() throws IOException {
+    Set<String> live = new HashSet<>();
+    for (Map.Entry<String, Slot> entry : index.entrySet()) {
+      if (entry.getValue().kind == BLOB) {
+        live.add(blobPath(entry.getKey()).getFileName().toString());
+      }
+    }
+    try (Stream<Path> files = Files.list(blobsDirectory)) {
+      for (Path file : files.toList()) {
+        if (!live.contains(file.getFileName().toString())) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  /** The plain file of a large object, named after a hash of its path. */
+  private Path blobPath(String path) {
+    byte[] hash = StorageFiles.sha256().digest(path.getBytes(StandardCharsets.UTF_8));
+    return blobsDirectory.resolve(HexFormat.of().formatHex(hash));
+  }
+
+  private static boolean isTempPath(String path) {
+    // Not Paths, which rejects names the file system encoding cannot represent
+    return new File(path).isAbsolute();
+  }
+
+  private static void createTempDirectories(String path) throws StorageException {
+    try {
+      Files.createDirectories(Paths.get(path));
+    } catch (IOException e) {
+      throw new StorageException("Failed to create directory: " + path, e);
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Where the record of a key is. {@code offset} is where its body starts, and tells records of the
+   * same segment apart for the other kinds.
+   */
+  private record Slot(byte kind, int segment, long offset, long size, long lastModified) {}
+
+  private record Record(byte kind, String key, long offset, long size, long lastModified) {}
+
+  private static final class Segment {
+    final int id;
+    final Path file;
+    final AtomicLong deadBytes = new AtomicLong();
+    volatile FileChannel channel;
+    volatile boolean sealed;
+    volatile boolean retired;
+    // End of the records, guarded by writeLock like records
+    long size;
+    List<Record> records;
+
+    Segment(int id, Path file) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.channel = open(file);
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+      return FileChannel.open(
+          file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    byte[] read(long position, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      FileChannel current = channel();
+      while (buffer.hasRemaining()) {
+        if (current.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Record past the end of " + file);
+        }
+      }
+      return buffer.array();
+    }
+
+    void write(ByteBuffer buffer, long position) throws IOException {
+      while (true) {
+        FileChannel current = channel();
+        try {
+          while (buffer.hasRemaining()) {
+            current.write(buffer, position + buffer.position());
+          }
+          return;
+        } catch (ClosedByInterruptException e) {
+          throw e;
+        } catch (ClosedChannelException e) {
+          // Closed by a reader's interrupt, channel() reopens it
+        }
+      }
+    }
+
+    /**
+     * The open channel. An interrupted reader closes a shared channel for everyone, so it is
+     * reopened here unless the segment was retired.
+     */
+    private FileChannel channel() throws IOException {
+      FileChannel current = channel;
+      if (current.isOpen() || retired) {
+        return current;
+      }
+      synchronized (this) {
+        if (!channel.isOpen() && !retired) {
+          channel = open(file);
+        }
+        return channel;
+      }
+    }
+
+    void force() throws IOException {
+      channel().force(false);
+    }
+
+    synchronized void retire() throws IOException {
+      retired = true;
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package dev.totis.tinys3.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Content that frees its memory once the last reference is released. Starts with one reference. */
+abstract class ReferenceCountedContent implements ObjectContent {
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  @Override
+  public boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  @Override
+  public void release() {
+    if (dropReference()) {
+      free();
+    }
+  }
+
+  @Override
+  public boolean isShared() {
+    return references() > 1;
+  }
+
+  final int references() {
+    return references.get();
+  }
+
+  /** Frees the content if the caller holds the only reference, returns true if it did. */
+  final boolean releaseIfLast() {
+    if (references.compareAndSet(1, 0)) {
+      free();
+      return true;
+    }
+    return false;
+  }
+
+  /** Drops a reference without freeing, returns true if it was the last one. */
+  final boolean dropReference() {
+    return references.decrementAndGet() == 0;
+  }
+
+  abstract void free();
+}
@@ -0,0 +1,125 @@
+package dev.totis.tinys3.io;
+
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Content made of other contents joined end to end, so appending and assembling multipart uploads
+ * link existing chunks instead of copying bytes. A rope holds one reference on each side and gives
+ * them back when it is freed.
+ */
+final class RopeContent extends ReferenceCountedContent {
+  private final ObjectContent prefix;
+  private final ObjectContent suffix;
+  private final long length;
+  private final long memoryBytes;
+  private volatile ObjectContent[] chunks;
+
+  private RopeContent(ObjectContent prefix, ObjectContent suffix) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.length = prefix.length() + suffix.length();
+    this.memoryBytes = prefix.memoryBytes() + suffix.memoryBytes();
+  }
+
+  /** Joins two contents, taking over the caller's reference on each. */
+  static ObjectContent concat(ObjectContent prefix, ObjectContent suffix) {
+    if (prefix.length() == 0) {
+      prefix.release();
+      return suffix;
+    }
+    if (suffix.length() == 0) {
+      suffix.release();
+      return prefix;
+    }
+    return new RopeContent(prefix, suffix);
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public long memoryBytes() {
+    return memoryBytes;
+  }
+
+  @Override
+  public InputStream openStream() {
+    // Chunks are opened one at a time, spilled ones each hold a file handle
+    ObjectContent[] leaves = chunks();
+    return new SequenceInputStream(
+        new Enumeration<>() {
+          private int next;
+
+          @Override
+          public boolean hasMoreElements() {
+            return next < leaves.length;
+          }
+
+          @Override
+          public InputStream nextElement() {
+            return leaves[next++].openStream();
+          }
+        });
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    byte[] data = new byte[Math.toIntExact(length)];
+    int offset = 0;
+    for (ObjectContent chunk : chunks()) {
+      byte[] bytes = chunk.toByteArray();
+      System.arraycopy(bytes, 0, data, offset, bytes.length);
+      offset += bytes.length;
+    }
+    return data;
+  }
+
+  @Override
+  void free() {
+    // Ropes built by repeated appends are deep, walk them without recursion
+    Deque<ObjectContent> pending = new ArrayDeque<>();
+    pending.push(suffix);
+    pending.push(prefix);
+    while (!pending.isEmpty()) {
+      ObjectContent content = pending.pop();
+      if (content instanceof RopeContent rope) {
+        if (rope.dropReference()) {
+          pending.push(rope.suffix);
+          pending.push(rope.prefix);
+        }
+      } else {
+        content.release();
+      }
+    }
+  }
+
+  /** The leaf contents in order, flattened once and kept since the rope never changes. */
+  private ObjectContent[] chunks() {
+    ObjectContent[] flattened = chunks;
+    if (flattened == null) {
+      List<ObjectContent> leaves = new ArrayList<>();
+      Deque<ObjectContent> pending = new ArrayDeque<>();
+      pending.push(this);
+      while (!pending.isEmpty()) {
+        ObjectContent content = pending.pop();
+        if (content instanceof RopeContent rope) {
+          pending.push(rope.suffix);
+          pending.push(rope.prefix);
+        } else {
+          leaves.add(content);
+        }
+      }
+      flattened = leaves.toArray(ObjectContent[]::new);
+      chunks = flattened;
+    }
+    return flattened;
+  }
+}
@@ -0,0 +1,345 @@
+package dev.totis.tinys3.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Stores every object of a bucket in one of 4096 directories picked by a hash of its key, so a flat
+ * keyspace of millions of objects ends up as about a thousand files per directory. {@code
+ * bucket/photos/cat.jpg} becomes {@code bucket/3FA/photos%2Fcat.jpg}.
+ *
+ * <p>The key is percent-encoded into a single name, except for letters, digits, {@code -}, {@code
+ * _} and a {@code .} that does not start a name. Encoded keys longer than a file name allows are
+ * split into directories whose names end with {@code ~}, which never appears unencoded. The
+ * encoding can be reversed, so a walk of the directory still finds every key.
+ *
+ * <p>Paths given to this class are the logical ones of the default layout. Since the file system no
+ * longer mirrors the key hierarchy, listings must come from {@code index}, see {@link
+ * IndexedFileOperations}, which is also used to find everything below a deleted directory.
+ */
+public class ShardedFileOperations implements FileOperations {
+  static final String LAYOUT_FILE = ".layout";
+  private static final String LAYOUT = "sharded-v1";
+  // Leaves room below the 255 bytes of ext4 and xfs for the continuation mark
+  private static final int MAX_NAME_LENGTH = 240;
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private final FileOperations delegate;
+  private final MetadataIndex index;
+  // Shard directories known to exist, saving a mkdir per write
+  private final Set<String> shards = ConcurrentHashMap.newKeySet();
+
+  public ShardedFileOperations(FileOperations delegate, MetadataIndex index)
+      throws StorageException {
+    this.delegate = delegate;
+    this.index = index;
+    checkLayout();
+  }
+
+  private void checkLayout() throws StorageException {
+    if (delegate.exists(LAYOUT_FILE)) {
+      String layout;
+      try (InputStream in = delegate.readFileStream(LAYOUT_FILE)) {
+        layout = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+      } catch (IOException e) {
+        throw new StorageException("Failed to read " + LAYOUT_FILE, e);
+      }
+      if (!LAYOUT.equals(layout)) {
+        throw new StorageException("Unsupported storage layout: " + layout);
+      }
+      return;
+    }
+    if (delegate.listBuckets().length > 0) {
+      throw new StorageException(
+          "The storage directory holds buckets of the default layout, which cannot be sharded");
+    }
+    delegate.writeFile(LAYOUT_FILE, (LAYOUT + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** The location of the logical {@code path} in the file system, temp paths are left as is. */
+  static String toPhysicalPath(String path) {
+    int slash = path.indexOf('/');
+    if (slash < 0 || isTempPath(path)) {
+      return path;
+    }
+    int end = path.length();
+    while (end > slash + 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    String bucket = path.substring(0, slash);
+    if (end == slash + 1) {
+      return bucket;
+    }
+    byte[] key = path.substring(slash + 1, end).getBytes(StandardCharsets.UTF_8);
+    byte[] hash = StorageFiles.sha256().digest(key);
+
+    StringBuilder physical = new StringBuilder(bucket.length() + key.length * 3 + 16);
+    physical.append(bucket);
+    // The first twelve bits of the hash. Two levels of 256 would keep directories even smaller,
+    // but spread writes over so many more directories that they get slower up to millions of keys
+    physical.append('/').append(HEX[(hash[0] >> 4) & 0xf]).append(HEX[hash[0] & 0xf]);
+    physical.append(HEX[(hash[1] >> 4) & 0xf]);
+    physical.append('/');
+    int nameStart = physical.length();
+    for (byte b : key) {
+      char c = (char) (b & 0xff);
+      boolean plain =
+          (c >= 'a' && c <= 'z')
+              || (c >= 'A' && c <= 'Z')
+              || (c >= '0' && c <= '9')
+              || c == '-'
+              || c == '_'
+              || (c == '.' && physical.length() > nameStart);
+      if (physical.length() - nameStart + (plain ? 1 : 3) > MAX_NAME_LENGTH) {
+        physical.append("~/");
+        nameStart = physical.length();
+        plain = plain && c != '.';
+      }
+      if (plain) {
+        physical.append(c);
+      } else {
+        physical.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+    }
+    return physical.toString();
+  }
+
+  /** The key stored at {@code names}, the path of a file below the shard directories. */
+  static String decodeKey(String names) {
+    ByteArrayOutputStream key = new ByteArrayOutputStream(names.length());
+    for (int i = 0; i < names.length(); i++) {
+      char c = names.charAt(i);
+      if (c == '%') {
+        key.write(Integer.parseInt(names, i + 1, i + 3, 16));
+        i += 2;
+      } else if (c == '~') {
+        // The continuation mark and the slash after it
+        i++;
+      } else {
+        key.write(c);
+      }
+    }
+    return key.toString(StandardCharsets.UTF_8);
+  }
+
+  private static boolean isTempPath(String path) {
+    // Not Paths, which rejects names the file system encoding cannot represent
+    return new File(path).isAbsolute();
+  }
+
+  /** Creates the directories that will hold {@code physicalPath}. */
+  private void createParents(String physicalPath) throws StorageException {
+    int slash = physicalPath.lastIndexOf('/');
+    if (slash < 0) {
+      return;
+    }
+    String parent = physicalPath.substring(0, slash);
+    if (parent.endsWith("~") || !shards.contains(parent)) {
+      delegate.createParentDirectories(physicalPath);
+      shards.add(parent);
+    }
+  }
+
+  @Override
+  public void createDirectory(String path) throws StorageException {
+    String physical = toPhysicalPath(path);
+    if (!isTempPath(path)) {
+      createParents(physical);
+    }
+    delegate.createDirectory(physical);
+  }
+
+  @Override
+  public boolean exists(String path) {
+    return delegate.exists(toPhysicalPath(path));
+  }
+
+  @Override
+  public void createParentDirectories(String path) throws StorageException {
+    createParents(toPhysicalPath(path));
+  }
+
+  @Override
+  public void appendToFile(String path, byte[] data) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.appendToFile(physical, data);
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.appendTempFile(physical, sourcePath);
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.concatTempFiles(physical, sourcePaths);
+  }
+
+  @Override
+  public void writeFile(String path, byte[] data) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.writeFile(physical, data);
+  }
+
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.writeFile(physical, data);
+  }
+
+  @Override
+  public String stageTempFile(InputStream data) throws StorageException {
+    return delegate.stageTempFile(data);
+  }
+
+  @Override
+  public void moveTempFile(String path, String sourcePath) throws StorageException {
+    String physical = toPhysicalPath(path);
+    createParents(physical);
+    delegate.moveTempFile(physical, sourcePath);
+  }
+
+  @Override
+  public void writeTempFile(String path, byte[] data) throws StorageException {
+    delegate.writeTempFile(path, data);
+  }
+
+  @Override
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    delegate.writeTempFile(path, data);
+  }
+
+  @Override
+  public byte[] readTempFile(String path) throws StorageException {
+    return delegate.readTempFile(path);
+  }
+
+  @Override
+  public InputStream readFileStream(String path) throws StorageException {
+    return delegate.readFileStream(toPhysicalPath(path));
+  }
+
+  @Override
+  public void delete(String path) throws StorageException {
+    if (path.indexOf('/') < 0 || isTempPath(path)) {
+      // A bucket goes with all of its shards
+      shards.removeIf(shard -> shard.startsWith(path + "/"));
+      delegate.delete(path);
+      return;
+    }
+    // Objects below a directory are spread over other shards, the index knows which
+    String directory = path.endsWith("/") ? path : path + "/";
+    List<String> children = new ArrayList<>();
+    index.withPrefix(directory).forEach(entry -> children.add(entry.getKey()));
+    for (int i = children.size() - 1; i >= 0; i--) {
+      String child = toPhysicalPath(children.get(i));
+      if (delegate.exists(child)) {
+        delegate.delete(child);
+      }
+    }
+    // Directories implied by deeper keys have nothing on disk
+    String physical = toPhysicalPath(path);
+    if (children.isEmpty() || delegate.exists(physical)) {
+      delegate.delete(physical);
+    }
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName) throws StorageException {
+    return list(bucketName, "");
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    try (Stream<FileEntry> entries = stream(bucketName, prefix)) {
+      return entries.toArray(FileEntry[]::new);
+    }
+  }
+
+  /** Walks every shard of the bucket, so entries come in hash order and without parents. */
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) throws StorageException {
+    return delegate.stream(bucketName, "")
+        .map(entry -> toLogicalEntry(entry, prefix))
+        .filter(Objects::nonNull);
+  }
+
+  private static FileEntry toLogicalEntry(FileEntry entry, String prefix) {
+    String path = entry.path();
+    int start = path.indexOf('/') + 1;
+    // Shard directories and the directories of split names hold no key of their own
+    if (start == 0 || (entry.isDirectory() && path.endsWith("~"))) {
+      return null;
+    }
+    String key = decodeKey(path.substring(start));
+    if (!key.startsWith(prefix)) {
+      return null;
+    }
+    return new FileEntry(key, entry.isDirectory(), entry.size(), entry.lastModified());
+  }
+
+  @Override
+  public long getSize(String path) throws StorageException {
+    return delegate.getSize(toPhysicalPath(path));
+  }
+
+  @Override
+  public FileTime getLastModifiedTime(String path) throws StorageException {
+    return delegate.getLastModifiedTime(toPhysicalPath(path));
+  }
+
+  @Override
+  public void copy(String sourcePath, String destinationPath) throws StorageException {
+    String destination = toPhysicalPath(destinationPath);
+    createParents(destination);
+    delegate.copy(toPhysicalPath(sourcePath), destination);
+  }
+
+  @Override
+  public String createTempDirectory(String prefix) throws StorageException {
+    return delegate.createTempDirectory(prefix);
+  }
+
+  @Override
+  public boolean isDirectoryNotEmpty(String path) throws StorageException {
+    String physical = toPhysicalPath(path);
+    if (physical.indexOf('/') < 0) {
+      // A bucket is not empty as long as it has a shard
+      return delegate.isDirectoryNotEmpty(physical);
+    }
+    String directory = path.endsWith("/") ? path : path + "/";
+    return index.withPrefix(directory).findAny().isPresent();
+  }
+
+  @Override
+  public String getObjectPath(String bucketName, String key) {
+    return bucketName + "/" + key;
+  }
+
+  @Override
+  public FileEntry[] listBuckets() throws StorageException {
+    return delegate.listBuckets();
+  }
+
+  @Override
+  public void deleteTempFile(String path) throws StorageException {
+    delegate.deleteTempFile(path);
+  }
+}
@@ -0,0 +1,83 @@
+package dev.totis.tinys3.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out off-heap blocks carved from large direct buffers. Blocks come in power of two size
+ * classes from {@value #MIN_BLOCK_SIZE} to {@value #MAX_BLOCK_SIZE} bytes, each class keeps its
+ * own free list, and freed blocks are reused rather than given back to the OS.
+ *
+ * <p>Direct memory is capped by {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap
+ * size. Raise it for datasets larger than the heap.
+ */
+public class SlabAllocator {
+  static final int MIN_BLOCK_SIZE = 1024;
+  static final int MAX_BLOCK_SIZE = 64 * 1024;
+  private static final int SLAB_SIZE = 4 * 1024 * 1024;
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+  private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE) - MIN_SHIFT + 1;
+
+  private final List<Queue<ByteBuffer>> freeLists;
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  public SlabAllocator() {
+    List<Queue<ByteBuffer>> lists = new ArrayList<>(CLASSES);
+    for (int i = 0; i < CLASSES; i++) {
+      lists.add(new ConcurrentLinkedQueue<>());
+    }
+    freeLists = List.copyOf(lists);
+  }
+
+  /** Direct memory taken from the OS, in use or on a free list. */
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /** Bytes in blocks that currently hold object data. */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /** Returns a cleared block of the smallest class that fits {@code size} bytes. */
+  ByteBuffer allocate(int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer block = freeLists.get(sizeClass).poll();
+    if (block == null) {
+      block = carveSlab(sizeClass);
+    }
+    usedBytes.addAndGet(block.capacity());
+    return block.clear();
+  }
+
+  void free(ByteBuffer block) {
+    usedBytes.addAndGet(-block.capacity());
+    freeLists.get(sizeClass(block.capacity())).offer(block);
+  }
+
+  private ByteBuffer carveSlab(int sizeClass) {
+    int blockSize = MIN_BLOCK_SIZE << sizeClass;
+    ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+    reservedBytes.addAndGet(SLAB_SIZE);
+    // Keep the first block for the caller, the rest go to the free list
+    for (int offset = blockSize; offset < SLAB_SIZE; offset += blockSize) {
+      freeLists.get(sizeClass).offer(slab.slice(offset, blockSize));
+    }
+    return slab.slice(0, blockSize);
+  }
+
+  private static int sizeClass(int size) {
+    if (size <= MIN_BLOCK_SIZE) {
+      return 0;
+    }
+    if (size > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Block size too large: " + size);
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+}
@@ -0,0 +1,153 @@
+package dev.totis.tinys3.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content stored in off-heap blocks from a {@link SlabAllocator}. Every block but the last is full
+ * sized, the last one is moved to a smaller size class when that saves memory. Blocks are only
+ * read with absolute gets, so any number of readers can share them.
+ */
+final class SlabContent extends ReferenceCountedContent {
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  private final SlabAllocator allocator;
+  private final ByteBuffer[] blocks;
+  private final long length;
+
+  private SlabContent(SlabAllocator allocator, ByteBuffer[] blocks, long length) {
+    this.allocator = allocator;
+    this.blocks = blocks;
+    this.length = length;
+  }
+
+  /** Copies the stream to the end, freeing whatever was allocated if reading it fails. */
+  static SlabContent copyOf(SlabAllocator allocator, InputStream data) throws IOException {
+    return copyOf(allocator, data, Long.MAX_VALUE);
+  }
+
+  /** Like {@link #copyOf(SlabAllocator, InputStream)}, stopping after {@code limit} bytes. */
+  static SlabContent copyOf(SlabAllocator allocator, InputStream data, long limit)
+      throws IOException {
+    List<ByteBuffer> blocks = new ArrayList<>();
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long length = 0;
+    try {
+      ByteBuffer block = null;
+      int read;
+      while (length < limit
+          && (read = data.read(buffer, 0, (int) Math.min(buffer.length, limit - length)))
+              != -1) {
+        int offset = 0;
+        while (offset < read) {
+          if (block == null || !block.hasRemaining()) {
+            block = allocator.allocate(SlabAllocator.MAX_BLOCK_SIZE);
+            blocks.add(block);
+          }
+          int count = Math.min(read - offset, block.remaining());
+          block.put(buffer, offset, count);
+          offset += count;
+        }
+        length += read;
+      }
+      if (!blocks.isEmpty()) {
+        blocks.set(blocks.size() - 1, shrink(allocator, blocks.get(blocks.size() - 1)));
+      }
+    } catch (IOException | RuntimeException e) {
+      blocks.forEach(allocator::free);
+      throw e;
+    }
+    for (ByteBuffer block : blocks) {
+      block.flip();
+    }
+    return new SlabContent(allocator, blocks.toArray(ByteBuffer[]::new), length);
+  }
+
+  static SlabContent copyOf(SlabAllocator allocator, byte[] data) {
+    try {
+      return copyOf(allocator, new ByteArrayInputStream(data));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static ByteBuffer shrink(SlabAllocator allocator, ByteBuffer block) {
+    int used = block.position();
+    if (used > block.capacity() / 2) {
+      return block;
+    }
+    ByteBuffer smaller = allocator.allocate(Math.max(used, 1));
+    smaller.put(block.flip());
+    allocator.free(block);
+    return smaller;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  void free() {
+    for (ByteBuffer block : blocks) {
+      allocator.free(block);
+    }
+  }
+
+  @Override
+  public InputStream openStream() {
+    return new BlockInputStream();
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    byte[] data = new byte[Math.toIntExact(length)];
+    int offset = 0;
+    for (ByteBuffer block : blocks) {
+      block.get(0, data, offset, block.limit());
+      offset += block.limit();
+    }
+    return data;
+  }
+
+  private class BlockInputStream extends InputStream {
+    private int blockIndex;
+    private int position;
+
+    @Override
+    public int read() {
+      if (!nextBlock()) {
+        return -1;
+      }
+      return blocks[blockIndex].get(position++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextBlock()) {
+        return -1;
+      }
+      ByteBuffer block = blocks[blockIndex];
+      int count = Math.min(len, block.limit() - position);
+      block.get(position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    /** Moves past the blocks read to the end, returns false once all of them are. */
+    private boolean nextBlock() {
+      while (blockIndex < blocks.length && position == blocks[blockIndex].limit()) {
+        blockIndex++;
+        position = 0;
+      }
+      return blockIndex < blocks.length;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package dev.totis.tinys3.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/** Range queries over the maps sorted by path that several backends keep as their index. */
+final class SortedPaths {
+  private SortedPaths() {}
+
+  /** The entries whose path starts with {@code prefix}, in order. */
+  static <V> Stream<Map.Entry<String, V>> withPrefix(NavigableMap<String, V> map, String prefix) {
+    return map.tailMap(prefix, true).entrySet().stream()
+        .takeWhile(entry -> entry.getKey().startsWith(prefix));
+  }
+
+  /** Whether anything is stored below {@code path}. */
+  static boolean hasChildren(NavigableMap<String, ?> map, String path) {
+    String prefix = path + "/";
+    String first = map.ceilingKey(prefix);
+    return first != null && first.startsWith(prefix);
+  }
+
+  /** The top-level entries, jumping over everything below each one instead of scanning it. */
+  static <V> FileEntry[] listTopLevel(
+      NavigableMap<String, V> map, BiFunction<String, V, FileEntry> toEntry) {
+    List<FileEntry> entries = new ArrayList<>();
+    Map.Entry<String, V> entry = map.firstEntry();
+    while (entry != null) {
+      String key = entry.getKey();
+      int slash = key.indexOf('/');
+      if (slash < 0) {
+        entries.add(toEntry.apply(key, entry.getValue()));
+        entry = map.higherEntry(key);
+      } else {
+        // Skip everything under this top-level name, '0' sorts right after '/'
+        entry = map.ceilingEntry(key.substring(0, slash) + '0');
+      }
+    }
+    return entries.toArray(FileEntry[]::new);
+  }
+}
@@ -0,0 +1,67 @@
+package dev.totis.tinys3.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** Content moved out of memory into its own file, which is deleted once the content is freed. */
+final class SpilledContent extends ReferenceCountedContent {
+  private final Path file;
+  private final long length;
+
+  private SpilledContent(Path file, long length) {
+    this.file = file;
+    this.length = length;
+  }
+
+  static SpilledContent write(Path directory, InputStream data) throws IOException {
+    Path file = Files.createTempFile(directory, "object-", ".bin");
+    try {
+      long length = Files.copy(data, file, StandardCopyOption.REPLACE_EXISTING);
+      return new SpilledContent(file, length);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public long memoryBytes() {
+    return 0;
+  }
+
+  @Override
+  public InputStream openStream() {
+    try {
+      return Files.newInputStream(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open spilled object " + file, e);
+    }
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    try {
+      return Files.readAllBytes(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read spilled object " + file, e);
+    }
+  }
+
+  @Override
+  void free() {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      file.toFile().deleteOnExit();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package dev.totis.tinys3.io;
+
+import dev.totis.tinys3.io.InMemoryFileOperations.FileData;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A frozen copy of the buckets and objects of an {@link InMemoryFileOperations}. Bodies are not
+ * copied, the snapshot shares them and holds a reference on each until it is closed, so taking and
+ * restoring one costs a pointer per key however large the objects are.
+ *
+ * <p>{@link #writeTo(Path)} saves the snapshot as a header followed by every body back to back.
+ * {@link #read(Path)} loads it with a single read, each object then being a slice of that buffer.
+ */
+public final class StorageSnapshot implements Closeable {
+  private static final int MAGIC = 0x54533353; // "TS3S"
+  private static final int VERSION = 1;
+
+  private final SortedMap<String, FileData> entries;
+  private boolean closed;
+
+  StorageSnapshot(SortedMap<String, FileData> entries) {
+    this.entries = Collections.unmodifiableSortedMap(entries);
+  }
+
+  /** The paths in the snapshot and their metadata, buckets and directories included. */
+  public int size() {
+    return entries.size();
+  }
+
+  public void writeTo(Path file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+      writeTo(out);
+    }
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(entries.size());
+    for (Map.Entry<String, FileData> entry : entries.entrySet()) {
+      FileData fileData = entry.getValue();
+      data.writeUTF(entry.getKey());
+      data.writeBoolean(fileData.isDirectory);
+      data.writeLong(fileData.lastModified);
+      data.writeLong(fileData.size());
+    }
+    for (FileData fileData : entries.values()) {
+      if (!fileData.isDirectory) {
+        try (InputStream body = fileData.content.openStream()) {
+          body.transferTo(data);
+        }
+      }
+    }
+    data.flush();
+  }
+
+  /** Loads a snapshot saved with {@link #writeTo(Path)}, keeping the bodies on the heap. */
+  public static StorageSnapshot read(Path file) throws IOException {
+    byte[] buffer = Files.readAllBytes(file);
+    DataInputStream header = new DataInputStream(new ByteArrayInputStream(buffer));
+    if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+      throw new IOException("Not a storage snapshot: " + file);
+    }
+    int count = header.readInt();
+    String[] paths = new String[count];
+    boolean[] directories = new boolean[count];
+    long[] lastModified = new long[count];
+    long[] sizes = new long[count];
+    for (int i = 0; i < count; i++) {
+      paths[i] = header.readUTF();
+      directories[i] = header.readBoolean();
+      lastModified[i] = header.readLong();
+      sizes[i] = header.readLong();
+    }
+
+    SortedMap<String, FileData> entries = new TreeMap<>();
+    int offset = buffer.length - header.available();
+    for (int i = 0; i < count; i++) {
+      if (directories[i]) {
+        entries.put(paths[i], new FileData(null, true, lastModified[i]));
+        continue;
+      }
+      int length = Math.toIntExact(sizes[i]);
+      if (offset + length > buffer.length) {
+        throw new IOException("Truncated storage snapshot: " + file);
+      }
+      ObjectContent content = new HeapContent(buffer, offset, length);
+      entries.put(paths[i], new FileData(content, false, lastModified[i]));
+      offset += length;
+    }
+    return new StorageSnapshot(entries);
+  }
+
+  /** Gives back the snapshot's references, it can no longer be restored. */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      for (FileData fileData : entries.values()) {
+        if (fileData.content != null) {
+          fileData.content.release();
+        }
+      }
+    }
+  }
+
+  /** The entries with a new reference taken on every body, for a store restoring them. */
+  synchronized SortedMap<String, FileData> retainEntries() {
+    if (closed) {
+      throw new IllegalStateException("Snapshot is closed");
+    }
+    for (FileData fileData : entries.values()) {
+      if (fileData.content != null) {
+        fileData.content.retain();
+      }
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,33 @@
+package dev.totis.tinys3.io;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks shared between paths by hash, serializing the changes to a path without
+ * keeping a lock per path. Changes to different paths only wait on each other when their hashes
+ * collide, which becomes rare with a few times more stripes than writer threads.
+ *
+ * <p>A caller must never hold two stripes of the same instance at a time, since two paths may share
+ * one.
+ */
+public final class StripedLocks {
+  public static final int DEFAULT_STRIPES = 1024;
+
+  private final ReentrantLock[] locks;
+
+  public StripedLocks(int stripes) {
+    if (Integer.bitCount(stripes) != 1) {
+      throw new IllegalArgumentException("The number of stripes must be a power of two");
+    }
+    locks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /** The lock guarding {@code path}, which the caller locks and unlocks. */
+  public ReentrantLock get(String path) {
+    int hash = path.hashCode();
+    return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+  }
+}
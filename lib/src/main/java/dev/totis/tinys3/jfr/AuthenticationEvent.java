@@ -0,0 +1,30 @@
+package dev.totis.tinys3.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.totis.tinys3.Authentication")
+@Label("S3 Authentication")
+@Category("tiny-s3")
+@StackTrace(false)
+public class AuthenticationEvent extends jdk.jfr.Event {
+  @Label("Operation")
+  public String operation;
+
+  @Label("Bucket")
+  public String bucket;
+
+  @Label("Key Hash")
+  public int keyHash;
+
+  @Label("Presigned")
+  public boolean presigned;
+
+  @Label("Cached")
+  public boolean cached;
+
+  @Label("Authenticated")
+  public boolean authenticated;
+}
@@ -0,0 +1,74 @@
+package dev.totis.tinys3.jfr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * A single on-demand flight recording for the server. The tiny-s3 events are always enabled in it,
+ * on top of the JDK {@code default} or {@code profile} settings.
+ */
+public class FlightRecording {
+  private static final Duration MAX_AGE = Duration.ofMinutes(30);
+  private static final long MAX_SIZE = 256L * 1024 * 1024;
+
+  private Recording recording;
+
+  /** Returns false if a recording is already running. */
+  public synchronized boolean start(String settings) throws IOException, ParseException {
+    if (isRunning()) {
+      return false;
+    }
+    close();
+    Recording started = new Recording(Configuration.getConfiguration(settings));
+    started.setName("tiny-s3");
+    started.setMaxAge(MAX_AGE);
+    started.setMaxSize(MAX_SIZE);
+    started.enable(RequestEvent.class);
+    started.enable(AuthenticationEvent.class);
+    started.enable(StorageEvent.class);
+    started.start();
+    recording = started;
+    return true;
+  }
+
+  public synchronized boolean isRunning() {
+    return recording != null && recording.getState() == RecordingState.RUNNING;
+  }
+
+  /**
+   * Writes what has been recorded so far to a temp file, or returns null if there is no recording.
+   * The caller owns the file.
+   */
+  public synchronized Path dump() throws IOException {
+    if (recording == null) {
+      return null;
+    }
+    Path file = Files.createTempFile("tiny-s3-", ".jfr");
+    recording.dump(file);
+    return file;
+  }
+
+  /** Stops the recording and dumps it like {@link #dump()}, returns null if none is running. */
+  public synchronized Path stop() throws IOException {
+    if (!isRunning()) {
+      return null;
+    }
+    recording.stop();
+    Path file = dump();
+    close();
+    return file;
+  }
+
+  private void close() {
+    if (recording != null) {
+      recording.close();
+      recording = null;
+    }
+  }
+}
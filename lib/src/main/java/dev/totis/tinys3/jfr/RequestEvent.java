@@ -0,0 +1,36 @@
+package dev.totis.tinys3.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.totis.tinys3.Request")
+@Label("S3 Request")
+@Description("An S3 request, from routing until the response was sent")
+@Category("tiny-s3")
+@StackTrace(false)
+public class RequestEvent extends jdk.jfr.Event {
+  @Label("Operation")
+  public String operation;
+
+  @Label("Bucket")
+  public String bucket;
+
+  @Label("Key Hash")
+  @Description("Hash of the object key, keys themselves are never recorded")
+  public int keyHash;
+
+  @Label("Status")
+  public int status;
+
+  @Label("Bytes In")
+  @DataAmount
+  public long bytesIn;
+
+  @Label("Bytes Out")
+  @DataAmount
+  public long bytesOut;
+}
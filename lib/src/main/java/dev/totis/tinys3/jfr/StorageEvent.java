@@ -0,0 +1,66 @@
+package dev.totis.tinys3.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A storage call, either at the S3 level ({@code s3}) or a single filesystem operation ({@code
+ * nio}). The nio events nest inside the s3 event that caused them.
+ */
+@Name("dev.totis.tinys3.Storage")
+@Label("S3 Storage")
+@Category("tiny-s3")
+@StackTrace(false)
+public class StorageEvent extends jdk.jfr.Event {
+  @Label("Layer")
+  public String layer;
+
+  @Label("Call")
+  public String call;
+
+  @Label("Bucket")
+  public String bucket;
+
+  @Label("Key Hash")
+  @Description("Hash of the object key, or of the path for calls outside a bucket")
+  public int keyHash;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+  public static StorageEvent start(String layer, String call, String bucket, String key) {
+    StorageEvent event = new StorageEvent();
+    if (event.isEnabled()) {
+      event.layer = layer;
+      event.call = call;
+      event.bucket = bucket;
+      event.keyHash = key == null ? 0 : key.hashCode();
+      event.begin();
+    }
+    return event;
+  }
+
+  /** Starts an event for a storage relative {@code bucket/key} path. */
+  public static StorageEvent start(String layer, String call, String path) {
+    StorageEvent event = new StorageEvent();
+    if (event.isEnabled()) {
+      int slash = path.indexOf('/');
+      event.layer = layer;
+      event.call = call;
+      event.bucket = slash > 0 ? path.substring(0, slash) : null;
+      event.keyHash = path.substring(slash + 1).hashCode();
+      event.begin();
+    }
+    return event;
+  }
+
+  public void commit(long bytes) {
+    this.bytes = bytes;
+    commit();
+  }
+}
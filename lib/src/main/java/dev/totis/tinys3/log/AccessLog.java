@@ -0,0 +1,230 @@
+package dev.totis.tinys3.log;
+
+import static dev.totis.tinys3.S3Utils.urlEncode;
+
+import dev.totis.tinys3.S3Operation;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access log with one line per request, in the field order of S3 server access logs.
+ *
+ * <p>Request threads only put an {@link Entry} into a lock-free ring buffer. Formatting, batching,
+ * writing and size based rotation all happen on a single background thread. When the buffer is
+ * full the entry is dropped and counted instead of making the request wait.
+ */
+public class AccessLog implements Closeable {
+  public static final long DEFAULT_MAX_FILE_SIZE = 100L * 1024 * 1024;
+  public static final int DEFAULT_MAX_FILES = 5;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+  private static final int BUFFER_SIZE = 16_384;
+  private static final int MAX_BATCH = 1024;
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final DateTimeFormatter TIME_FORMATTER =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+  private final Path file;
+  private final long maxFileSize;
+  private final int maxFiles;
+  private final RingBuffer<Entry> buffer = new RingBuffer<>(BUFFER_SIZE);
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final StringBuilder batch = new StringBuilder(MAX_BATCH * 256);
+  private final Thread writer;
+  private volatile boolean closed;
+  private FileChannel channel;
+  private long fileSize;
+
+  public AccessLog(Path file) throws IOException {
+    this(file, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+  }
+
+  /**
+   * @param maxFileSize size after which the file is rotated to {@code <file>.1}
+   * @param maxFiles number of rotated files to keep
+   */
+  public AccessLog(Path file, long maxFileSize, int maxFiles) throws IOException {
+    this.file = file;
+    this.maxFileSize = maxFileSize;
+    this.maxFiles = maxFiles;
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    open();
+    this.writer = Thread.ofPlatform().name("tiny-s3-access-log").daemon().start(this::run);
+  }
+
+  /** Queues the entry, never blocks. */
+  public void record(Entry entry) {
+    if (closed || !buffer.offer(entry)) {
+      dropped.increment();
+    }
+  }
+
+  public long getWritten() {
+    return written.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /** Writes out everything queued so far and stops the writer thread. */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+
+  private void run() {
+    while (true) {
+      int lines = drain();
+      if (lines == 0) {
+        if (closed) {
+          return;
+        }
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+    }
+  }
+
+  private int drain() {
+    batch.setLength(0);
+    int lines = 0;
+    Entry entry;
+    while (lines < MAX_BATCH && (entry = buffer.poll()) != null) {
+      entry.appendTo(batch);
+      batch.append('\n');
+      lines++;
+    }
+    if (lines > 0) {
+      try {
+        write(StandardCharsets.UTF_8.encode(batch.toString()));
+        written.add(lines);
+      } catch (IOException e) {
+        dropped.add(lines);
+        LOGGER.warn("Could not write access log {}", file, e);
+      }
+    }
+    return lines;
+  }
+
+  private void write(ByteBuffer bytes) throws IOException {
+    if (fileSize > 0 && fileSize + bytes.remaining() > maxFileSize) {
+      rotate();
+    }
+    while (bytes.hasRemaining()) {
+      fileSize += channel.write(bytes);
+    }
+  }
+
+  private void rotate() throws IOException {
+    channel.close();
+    Files.deleteIfExists(rotated(maxFiles));
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 0) {
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+  }
+
+  private Path rotated(int index) {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+
+  private void open() throws IOException {
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileSize = channel.size();
+  }
+
+  /**
+   * What a request thread captures for one log line. Only references and primitives, the line is
+   * formatted by the writer thread.
+   */
+  public record Entry(
+      long timeMillis,
+      String remoteAddress,
+      String method,
+      String requestUri,
+      S3Operation operation,
+      String bucket,
+      String key,
+      int status,
+      String errorCode,
+      long bytesSent,
+      long bytesReceived,
+      long totalTimeMillis,
+      String userAgent) {
+
+    void appendTo(StringBuilder line) {
+      line.append("- ");
+      field(line, bucket);
+      line.append(" [");
+      line.append(TIME_FORMATTER.format(Instant.ofEpochMilli(timeMillis))).append("] ");
+      field(line, remoteAddress);
+      line.append(" - - ").append(restOperation()).append(' ');
+      // Keys may contain spaces or line breaks, S3 logs them URL encoded
+      field(line, key == null ? null : urlEncode(key).replace("%2F", "/"));
+      line.append(" \"").append(method).append(' ').append(requestUri).append(" HTTP/1.1\" ");
+      line.append(status).append(' ');
+      field(line, errorCode);
+      line.append(' ');
+      number(line, bytesSent);
+      line.append(' ');
+      number(line, bytesReceived);
+      line.append(' ').append(totalTimeMillis).append(" - \"-\" \"");
+      line.append(userAgent == null ? "-" : userAgent.replace('"', '\'')).append("\" -");
+    }
+
+    private String restOperation() {
+      if (operation == S3Operation.LIST_BUCKETS) {
+        return "REST.GET.SERVICE";
+      }
+      return "REST." + method + (key == null || key.isEmpty() ? ".BUCKET" : ".OBJECT");
+    }
+
+    private static void field(StringBuilder line, String value) {
+      line.append(value == null || value.isEmpty() ? "-" : value);
+    }
+
+    private static void number(StringBuilder line, long value) {
+      if (value > 0) {
+        line.append(value);
+      } else {
+        line.append('-');
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package dev.totis.tinys3.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket histogram in the Prometheus layout. Recording is a bucket scan plus two {@link
+ * LongAdder} increments, so concurrent requests never contend on a lock.
+ */
+public class LatencyHistogram {
+  private static final double[] BUCKET_SECONDS = {
+    0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+  private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+  static {
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1_000_000_000L);
+    }
+  }
+
+  // The last slot counts everything above the largest bucket
+  private final LongAdder[] counts = new LongAdder[BUCKET_SECONDS.length + 1];
+  private final LongAdder sumNanos = new LongAdder();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    int bucket = 0;
+    while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+      bucket++;
+    }
+    counts[bucket].increment();
+    sumNanos.add(nanos);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (LongAdder adder : counts) {
+      count += adder.sum();
+    }
+    return count;
+  }
+
+  void writeTo(PrometheusWriter writer, String name, String labels) {
+    String separator = labels.isEmpty() ? "" : ",";
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      cumulative += counts[i].sum();
+      writer.sample(
+          name + "_bucket", labels + separator + "le=\"" + BUCKET_SECONDS[i] + "\"", cumulative);
+    }
+    cumulative += counts[BUCKET_SECONDS.length].sum();
+    writer.sample(name + "_bucket", labels + separator + "le=\"+Inf\"", cumulative);
+    writer.sample(name + "_sum", labels, sumNanos.sum() / 1e9);
+    writer.sample(name + "_count", labels, cumulative);
+  }
+}
@@ -0,0 +1,122 @@
+package dev.totis.tinys3.metrics;
+
+import dev.totis.tinys3.http.S3HttpExchange;
+import dev.totis.tinys3.http.S3HttpHeaders;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/** Counts body bytes in both directions and remembers the status code that was sent. */
+public class MeteredExchange implements S3HttpExchange {
+  private final S3HttpExchange delegate;
+  private InputStream requestBody;
+  private OutputStream responseBody;
+  private long bytesIn;
+  private long bytesOut;
+  private int statusCode;
+
+  public MeteredExchange(S3HttpExchange delegate) {
+    this.delegate = delegate;
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  /** The status sent to the client, or 0 if the handler never responded. */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return delegate.getRequestMethod();
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return delegate.getRequestURI();
+  }
+
+  @Override
+  public S3HttpHeaders getRequestHeaders() {
+    return delegate.getRequestHeaders();
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    if (requestBody == null) {
+      requestBody =
+          new FilterInputStream(delegate.getRequestBody()) {
+            @Override
+            public int read() throws IOException {
+              int b = in.read();
+              if (b != -1) {
+                bytesIn++;
+              }
+              return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              int n = in.read(b, off, len);
+              if (n > 0) {
+                bytesIn += n;
+              }
+              return n;
+            }
+          };
+    }
+    return requestBody;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return delegate.getRemoteAddress();
+  }
+
+  @Override
+  public S3HttpHeaders getResponseHeaders() {
+    return delegate.getResponseHeaders();
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    if (responseBody == null) {
+      responseBody =
+          new FilterOutputStream(delegate.getResponseBody()) {
+            @Override
+            public void write(int b) throws IOException {
+              out.write(b);
+              bytesOut++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              out.write(b, off, len);
+              bytesOut += len;
+            }
+          };
+    }
+    return responseBody;
+  }
+
+  @Override
+  public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+    this.statusCode = rCode;
+    delegate.sendResponseHeaders(rCode, responseLength);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+}
@@ -0,0 +1,280 @@
+package dev.totis.tinys3.metrics;
+
+import dev.totis.tinys3.io.FileEntry;
+import dev.totis.tinys3.io.FileOperations;
+import dev.totis.tinys3.io.StorageException;
+import java.io.InputStream;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Times every storage call, so backend latency can be told apart from auth and HTTP time. Calls
+ * that take a stream include the time spent reading it from the client, {@code readFileStream}
+ * only covers opening the object.
+ */
+public class MeteredFileOperations implements FileOperations {
+  private final FileOperations delegate;
+  private final S3Metrics metrics;
+
+  public MeteredFileOperations(FileOperations delegate, S3Metrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void createDirectory(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.createDirectory(path);
+    } finally {
+      metrics.recordStorageCall("createDirectory", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    long start = System.nanoTime();
+    try {
+      return delegate.exists(path);
+    } finally {
+      metrics.recordStorageCall("exists", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void createParentDirectories(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.createParentDirectories(path);
+    } finally {
+      metrics.recordStorageCall("createParentDirectories", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void appendToFile(String path, byte[] data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.appendToFile(path, data);
+    } finally {
+      metrics.recordStorageCall("appendToFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void appendTempFile(String path, String sourcePath) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.appendTempFile(path, sourcePath);
+    } finally {
+      metrics.recordStorageCall("appendTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void concatTempFiles(String path, List<String> sourcePaths) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.concatTempFiles(path, sourcePaths);
+    } finally {
+      metrics.recordStorageCall("concatTempFiles", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public String stageTempFile(InputStream data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.stageTempFile(data);
+    } finally {
+      metrics.recordStorageCall("stageTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void moveTempFile(String path, String sourcePath) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.moveTempFile(path, sourcePath);
+    } finally {
+      metrics.recordStorageCall("moveTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void writeFile(String path, byte[] data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.writeFile(path, data);
+    } finally {
+      metrics.recordStorageCall("writeFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void writeFile(String path, InputStream data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.writeFile(path, data);
+    } finally {
+      metrics.recordStorageCall("writeFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void writeTempFile(String path, byte[] data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.writeTempFile(path, data);
+    } finally {
+      metrics.recordStorageCall("writeTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void writeTempFile(String path, InputStream data) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.writeTempFile(path, data);
+    } finally {
+      metrics.recordStorageCall("writeTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public byte[] readTempFile(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.readTempFile(path);
+    } finally {
+      metrics.recordStorageCall("readTempFile", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public InputStream readFileStream(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.readFileStream(path);
+    } finally {
+      metrics.recordStorageCall("readFileStream", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void delete(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.delete(path);
+    } finally {
+      metrics.recordStorageCall("delete", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.list(bucketName);
+    } finally {
+      metrics.recordStorageCall("list", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public FileEntry[] list(String bucketName, String prefix) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.list(bucketName, prefix);
+    } finally {
+      metrics.recordStorageCall("list", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public Stream<FileEntry> stream(String bucketName, String prefix) throws StorageException {
+    // Only covers starting the listing, entries are produced while the caller consumes them
+    long start = System.nanoTime();
+    try {
+      return delegate.stream(bucketName, prefix);
+    } finally {
+      metrics.recordStorageCall("list", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long getSize(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.getSize(path);
+    } finally {
+      metrics.recordStorageCall("getSize", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public FileTime getLastModifiedTime(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.getLastModifiedTime(path);
+    } finally {
+      metrics.recordStorageCall("getLastModifiedTime", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void copy(String sourcePath, String destinationPath) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.copy(sourcePath, destinationPath);
+    } finally {
+      metrics.recordStorageCall("copy", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public String createTempDirectory(String prefix) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.createTempDirectory(prefix);
+    } finally {
+      metrics.recordStorageCall("createTempDirectory", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean isDirectoryNotEmpty(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.isDirectoryNotEmpty(path);
+    } finally {
+      metrics.recordStorageCall("isDirectoryNotEmpty", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public String getObjectPath(String bucketName, String key) {
+    return delegate.getObjectPath(bucketName, key);
+  }
+
+  @Override
+  public FileEntry[] listBuckets() throws StorageException {
+    long start = System.nanoTime();
+    try {
+      return delegate.listBuckets();
+    } finally {
+      metrics.recordStorageCall("listBuckets", System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void deleteTempFile(String path) throws StorageException {
+    long start = System.nanoTime();
+    try {
+      delegate.deleteTempFile(path);
+    } finally {
+      metrics.recordStorageCall("deleteTempFile", System.nanoTime() - start);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package dev.totis.tinys3.metrics;
+
+/** Builds a response in the Prometheus text exposition format, version 0.0.4. */
+class PrometheusWriter {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final StringBuilder out = new StringBuilder(4096);
+
+  void header(String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  void sample(String name, String labels, long value) {
+    appendName(name, labels).append(value).append('\n');
+  }
+
+  void sample(String name, String labels, double value) {
+    appendName(name, labels).append(value).append('\n');
+  }
+
+  private StringBuilder appendName(String name, String labels) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    return out.append(' ');
+  }
+
+  static String label(String name, String value) {
+    return name
+        + "=\""
+        + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+        + "\"";
+  }
+
+  @Override
+  public String toString() {
+    return out.toString();
+  }
+}
@@ -0,0 +1,115 @@
+package dev.totis.tinys3.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Where the time, CPU and allocations of one request went. The profile is bound to the thread
+ * handling the request, so storage and auth timings recorded through {@link S3Metrics} land in it
+ * without being passed around.
+ *
+ * <p>The JVM only tracks CPU time and allocated bytes for platform threads. On the default virtual
+ * thread executor both read as {@code -1}; use {@code withCustomExecutor} with a thread pool to get
+ * them.
+ */
+public final class RequestProfile {
+  private static final ThreadLocal<RequestProfile> CURRENT = new ThreadLocal<>();
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final com.sun.management.ThreadMXBean HOTSPOT_THREADS =
+      THREADS instanceof com.sun.management.ThreadMXBean hotspot
+              && hotspot.isThreadAllocatedMemorySupported()
+          ? hotspot
+          : null;
+  private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+  private final long startNanos;
+  private final long startCpuNanos;
+  private final long startAllocatedBytes;
+  private long parseNanos;
+  private long authNanos;
+  private long storageNanos;
+  private long durationNanos;
+  private long cpuNanos = -1;
+  private long allocatedBytes = -1;
+
+  private RequestProfile() {
+    startNanos = System.nanoTime();
+    startCpuNanos = cpuTime();
+    startAllocatedBytes = allocatedBytes();
+  }
+
+  /** Starts a profile for the request about to be handled on the current thread. */
+  public static RequestProfile start() {
+    RequestProfile profile = new RequestProfile();
+    CURRENT.set(profile);
+    return profile;
+  }
+
+  static RequestProfile current() {
+    return CURRENT.get();
+  }
+
+  /** Marks the end of request parsing, which starts with the profile. */
+  public void parsed() {
+    parseNanos = System.nanoTime() - startNanos;
+  }
+
+  void addAuth(long nanos) {
+    authNanos += nanos;
+  }
+
+  void addStorage(long nanos) {
+    storageNanos += nanos;
+  }
+
+  /** Stops the profile and unbinds it from the current thread. */
+  public void finish() {
+    durationNanos = System.nanoTime() - startNanos;
+    if (startCpuNanos >= 0) {
+      cpuNanos = cpuTime() - startCpuNanos;
+    }
+    if (startAllocatedBytes >= 0) {
+      allocatedBytes = allocatedBytes() - startAllocatedBytes;
+    }
+    CURRENT.remove();
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  public long getAuthNanos() {
+    return authNanos;
+  }
+
+  public long getStorageNanos() {
+    return storageNanos;
+  }
+
+  /** Everything else the handler did, mostly building response bodies and writing them out. */
+  public long getSerializeNanos() {
+    return Math.max(0, durationNanos - parseNanos - authNanos - storageNanos);
+  }
+
+  /** CPU time used by the request, or -1 if the thread does not support measuring it. */
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  /** Bytes allocated by the request, or -1 if the thread does not support measuring it. */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  private static long cpuTime() {
+    return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1;
+  }
+
+  private static long allocatedBytes() {
+    return HOTSPOT_THREADS != null ? HOTSPOT_THREADS.getCurrentThreadAllocatedBytes() : -1;
+  }
+}
@@ -0,0 +1,206 @@
+package dev.totis.tinys3.metrics;
+
+import static dev.totis.tinys3.metrics.PrometheusWriter.label;
+
+import dev.totis.tinys3.S3Operation;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request, auth and storage metrics for a server, rendered in the Prometheus text format by {@link
+ * #scrape()}. All recorders are {@link LongAdder} based, recording never blocks a request.
+ */
+public class S3Metrics {
+  private final Map<S3Operation, OperationMetrics> operations = new EnumMap<>(S3Operation.class);
+  private final Map<String, LatencyHistogram> storageCalls = new ConcurrentHashMap<>();
+  private final List<ExternalMetric> externalMetrics = new CopyOnWriteArrayList<>();
+
+  public S3Metrics() {
+    for (S3Operation operation : S3Operation.values()) {
+      operations.put(operation, new OperationMetrics());
+    }
+  }
+
+  public void recordRequest(
+      S3Operation operation,
+      int status,
+      String errorCode,
+      long bytesIn,
+      long bytesOut,
+      long durationNanos) {
+    OperationMetrics metrics = operations.get(operation);
+    counter(metrics.statuses, status).increment();
+    if (errorCode != null) {
+      counter(metrics.errorCodes, errorCode).increment();
+    }
+    metrics.bytesIn.add(bytesIn);
+    metrics.bytesOut.add(bytesOut);
+    metrics.duration.record(durationNanos);
+  }
+
+  /** Adds the CPU time and allocations of a finished request, where the thread measured them. */
+  public void recordResources(S3Operation operation, RequestProfile profile) {
+    OperationMetrics metrics = operations.get(operation);
+    if (profile.getCpuNanos() >= 0) {
+      metrics.cpuNanos.add(profile.getCpuNanos());
+    }
+    if (profile.getAllocatedBytes() >= 0) {
+      metrics.allocatedBytes.add(profile.getAllocatedBytes());
+    }
+  }
+
+  public void recordAuthentication(S3Operation operation, long durationNanos) {
+    operations.get(operation).authDuration.record(durationNanos);
+    RequestProfile profile = RequestProfile.current();
+    if (profile != null) {
+      profile.addAuth(durationNanos);
+    }
+  }
+
+  public void recordStorageCall(String call, long durationNanos) {
+    RequestProfile profile = RequestProfile.current();
+    if (profile != null) {
+      profile.addStorage(durationNanos);
+    }
+    LatencyHistogram histogram = storageCalls.get(call);
+    if (histogram == null) {
+      histogram = storageCalls.computeIfAbsent(call, c -> new LatencyHistogram());
+    }
+    histogram.record(durationNanos);
+  }
+
+  private static <K> LongAdder counter(Map<K, LongAdder> counters, K key) {
+    // Plain get first, the entry exists for all but the first request
+    LongAdder counter = counters.get(key);
+    return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+  }
+
+  /** Exposes a monotonically increasing value owned by another component. */
+  public void registerCounter(String name, String help, LongSupplier value) {
+    externalMetrics.add(new ExternalMetric(name, "counter", help, value));
+  }
+
+  /** Exposes a value owned by another component that can go up and down. */
+  public void registerGauge(String name, String help, LongSupplier value) {
+    externalMetrics.add(new ExternalMetric(name, "gauge", help, value));
+  }
+
+  public String scrape() {
+    PrometheusWriter writer = new PrometheusWriter();
+
+    writer.header("tinys3_requests_total", "counter", "Requests handled, by operation and status.");
+    operations.forEach(
+        (operation, metrics) ->
+            metrics.statuses.forEach(
+                (status, count) ->
+                    writer.sample(
+                        "tinys3_requests_total",
+                        label("operation", operation.getApiName())
+                            + ","
+                            + label("status", String.valueOf(status)),
+                        count.sum())));
+
+    writer.header("tinys3_errors_total", "counter", "S3 error responses, by operation and code.");
+    operations.forEach(
+        (operation, metrics) ->
+            metrics.errorCodes.forEach(
+                (code, count) ->
+                    writer.sample(
+                        "tinys3_errors_total",
+                        label("operation", operation.getApiName()) + "," + label("code", code),
+                        count.sum())));
+
+    writer.header("tinys3_received_bytes_total", "counter", "Request body bytes read.");
+    forEachActive(
+        (labels, metrics) ->
+            writer.sample("tinys3_received_bytes_total", labels, metrics.bytesIn.sum()));
+
+    writer.header("tinys3_sent_bytes_total", "counter", "Response body bytes written.");
+    forEachActive(
+        (labels, metrics) ->
+            writer.sample("tinys3_sent_bytes_total", labels, metrics.bytesOut.sum()));
+
+    writer.header(
+        "tinys3_cpu_seconds_total", "counter", "CPU time used by requests on platform threads.");
+    forEachActive(
+        (labels, metrics) -> {
+          if (metrics.cpuNanos.sum() > 0) {
+            writer.sample("tinys3_cpu_seconds_total", labels, metrics.cpuNanos.sum() / 1e9);
+          }
+        });
+
+    writer.header(
+        "tinys3_allocated_bytes_total",
+        "counter",
+        "Heap allocated by requests on platform threads.");
+    forEachActive(
+        (labels, metrics) -> {
+          if (metrics.allocatedBytes.sum() > 0) {
+            writer.sample("tinys3_allocated_bytes_total", labels, metrics.allocatedBytes.sum());
+          }
+        });
+
+    writer.header(
+        "tinys3_request_duration_seconds", "histogram", "Time from routing to response sent.");
+    forEachActive(
+        (labels, metrics) ->
+            metrics.duration.writeTo(writer, "tinys3_request_duration_seconds", labels));
+
+    writer.header(
+        "tinys3_auth_duration_seconds", "histogram", "Time spent verifying request signatures.");
+    forEachActive(
+        (labels, metrics) -> {
+          if (metrics.authDuration.getCount() > 0) {
+            metrics.authDuration.writeTo(writer, "tinys3_auth_duration_seconds", labels);
+          }
+        });
+
+    writer.header(
+        "tinys3_storage_duration_seconds", "histogram", "Time spent in storage backend calls.");
+    storageCalls.forEach(
+        (call, histogram) ->
+            histogram.writeTo(writer, "tinys3_storage_duration_seconds", label("call", call)));
+
+    for (ExternalMetric metric : externalMetrics) {
+      writer.header(metric.name(), metric.type(), metric.help());
+      writer.sample(metric.name(), "", metric.value().getAsLong());
+    }
+    return writer.toString();
+  }
+
+  public static String contentType() {
+    return PrometheusWriter.CONTENT_TYPE;
+  }
+
+  private void forEachActive(ActiveOperationConsumer consumer) {
+    operations.forEach(
+        (operation, metrics) -> {
+          if (metrics.duration.getCount() > 0) {
+            consumer.accept(label("operation", operation.getApiName()), metrics);
+          }
+        });
+  }
+
+  @FunctionalInterface
+  private interface ActiveOperationConsumer {
+    void accept(String labels, OperationMetrics metrics);
+  }
+
+  private static class OperationMetrics {
+    final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    final Map<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder cpuNanos = new LongAdder();
+    final LongAdder allocatedBytes = new LongAdder();
+    final LatencyHistogram duration = new LatencyHistogram();
+    final LatencyHistogram authDuration = new LatencyHistogram();
+  }
+
+  private record ExternalMetric(String name, String type, String help, LongSupplier value) {}
+}
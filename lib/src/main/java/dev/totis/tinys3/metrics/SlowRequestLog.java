@@ -0,0 +1,113 @@
+package dev.totis.tinys3.metrics;
+
+import dev.totis.tinys3.S3Operation;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/** Keeps the most recent requests that took longer than a threshold, with their profile. */
+public class SlowRequestLog {
+  public static final Duration DEFAULT_THRESHOLD = Duration.ofSeconds(1);
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private final long thresholdNanos;
+  private final int maxEntries;
+  private final Deque<SlowRequest> entries = new ArrayDeque<>();
+
+  public SlowRequestLog(Duration threshold, int maxEntries) {
+    this.thresholdNanos = threshold.toNanos();
+    this.maxEntries = maxEntries;
+  }
+
+  public void record(
+      S3Operation operation, String method, String path, int status, RequestProfile profile) {
+    if (maxEntries <= 0 || profile.getDurationNanos() < thresholdNanos) {
+      return;
+    }
+    SlowRequest request =
+        new SlowRequest(
+            Instant.now(),
+            operation,
+            method,
+            path,
+            status,
+            profile.getDurationNanos(),
+            profile.getParseNanos(),
+            profile.getAuthNanos(),
+            profile.getStorageNanos(),
+            profile.getSerializeNanos(),
+            profile.getCpuNanos(),
+            profile.getAllocatedBytes());
+    synchronized (entries) {
+      if (entries.size() >= maxEntries) {
+        entries.removeLast();
+      }
+      entries.addFirst(request);
+    }
+  }
+
+  /** The logged requests, newest first. */
+  public List<SlowRequest> getEntries() {
+    synchronized (entries) {
+      return new ArrayList<>(entries);
+    }
+  }
+
+  public String toText() {
+    StringBuilder text = new StringBuilder();
+    for (SlowRequest request : getEntries()) {
+      text.append(request).append('\n');
+    }
+    return text.toString();
+  }
+
+  public record SlowRequest(
+      Instant time,
+      S3Operation operation,
+      String method,
+      String path,
+      int status,
+      long durationNanos,
+      long parseNanos,
+      long authNanos,
+      long storageNanos,
+      long serializeNanos,
+      long cpuNanos,
+      long allocatedBytes) {
+
+    @Override
+    public String toString() {
+      return time
+          + " "
+          + operation.getApiName()
+          + " "
+          + method
+          + " "
+          + path
+          + " "
+          + status
+          + " total="
+          + millis(durationNanos)
+          + " parse="
+          + millis(parseNanos)
+          + " auth="
+          + millis(authNanos)
+          + " storage="
+          + millis(storageNanos)
+          + " serialize="
+          + millis(serializeNanos)
+          + " cpu="
+          + (cpuNanos < 0 ? "n/a" : millis(cpuNanos))
+          + " allocated="
+          + (allocatedBytes < 0 ? "n/a" : allocatedBytes + "B");
+    }
+
+    private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.3fms", nanos / 1_000_000.0);
+    }
+  }
+}
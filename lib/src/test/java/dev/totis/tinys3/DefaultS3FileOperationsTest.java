@@ -0,0 +1,79 @@
+package dev.totis.tinys3;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.io.StorageSnapshot;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class DefaultS3FileOperationsTest {
+
+  @Test
+  void joinsPartsUploadedConcurrently() throws Exception {
+    InMemoryFileOperations storage = new InMemoryFileOperations();
+    DefaultS3FileOperations operations = new DefaultS3FileOperations(storage);
+    operations.createDirectory("bucket");
+    String uploadId = operations.getInitiateMultipartUploadResult("bucket", "key").uploadId();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int part = 1; part <= 64; part++) {
+      byte[] body = {(byte) part};
+      Map<String, String> query = Map.of("partNumber", String.valueOf(part));
+      threads.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    try {
+                      operations.handleUploadPart(uploadId, query, new ByteArrayInputStream(body));
+                    } catch (Exception e) {
+                      throw new RuntimeException(e);
+                    }
+                  }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    operations.getCompleteMultipartUploadResult("bucket", "key", uploadId);
+
+    byte[] object = storage.readFileStream("bucket/key").readAllBytes();
+    assertEquals(64, object.length);
+    for (int i = 0; i < object.length; i++) {
+      assertEquals(i + 1, object[i]);
+    }
+    // The upload is gone, late parts and completions are refused
+    Map<String, String> query = Map.of("partNumber", "65");
+    assertNull(operations.handleUploadPart(uploadId, query, new ByteArrayInputStream(new byte[1])));
+    assertNull(operations.getCompleteMultipartUploadResult("bucket", "key", uploadId));
+  }
+
+  @Test
+  void refusesUploadsStartedBeforeARestore() throws Exception {
+    InMemoryFileOperations storage = new InMemoryFileOperations();
+    DefaultS3FileOperations operations = new DefaultS3FileOperations(storage);
+    operations.createDirectory("bucket");
+    StorageSnapshot snapshot = storage.snapshot();
+    String uploadId = operations.getInitiateMultipartUploadResult("bucket", "key").uploadId();
+    Map<String, String> first = Map.of("partNumber", "1");
+    assertNotNull(
+        operations.handleUploadPart(uploadId, first, new ByteArrayInputStream(new byte[1])));
+
+    storage.restore(snapshot);
+    operations.abortMultipartUploads();
+
+    Map<String, String> second = Map.of("partNumber", "2");
+    assertNull(
+        operations.handleUploadPart(uploadId, second, new ByteArrayInputStream(new byte[1])));
+    assertNull(operations.getCompleteMultipartUploadResult("bucket", "key", uploadId));
+    assertFalse(storage.exists("bucket/key"));
+
+    // Uploads started afterwards are unaffected
+    String next = operations.getInitiateMultipartUploadResult("bucket", "key").uploadId();
+    operations.handleUploadPart(next, first, new ByteArrayInputStream(new byte[] {7}));
+    operations.getCompleteMultipartUploadResult("bucket", "key", next);
+    assertArrayEquals(new byte[] {7}, storage.readFileStream("bucket/key").readAllBytes());
+  }
+}
@@ -0,0 +1,153 @@
+package dev.totis.tinys3;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.http.S3HttpExchange;
+import dev.totis.tinys3.http.S3HttpHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+
+public class S3OperationTest {
+
+  @Test
+  void classifiesBucketOperations() throws Exception {
+    assertEquals(S3Operation.LIST_BUCKETS, classify("GET", "/"));
+    assertEquals(S3Operation.CREATE_BUCKET, classify("PUT", "/bucket"));
+    assertEquals(S3Operation.HEAD_BUCKET, classify("HEAD", "/bucket/"));
+    assertEquals(S3Operation.LIST_OBJECTS, classify("GET", "/bucket?prefix=a/"));
+    assertEquals(S3Operation.LIST_OBJECTS_V2, classify("GET", "/bucket?list-type=2&prefix=a/"));
+    assertEquals(S3Operation.DELETE_BUCKET, classify("DELETE", "/bucket"));
+    assertEquals(S3Operation.DELETE_OBJECTS, classify("POST", "/bucket?delete"));
+    assertEquals(S3Operation.METHOD_NOT_ALLOWED, classify("PATCH", "/bucket"));
+  }
+
+  @Test
+  void classifiesObjectOperations() throws Exception {
+    assertEquals(S3Operation.GET_OBJECT, classify("GET", "/bucket/dir/key.txt"));
+    assertEquals(S3Operation.HEAD_OBJECT, classify("HEAD", "/bucket/key"));
+    assertEquals(S3Operation.PUT_OBJECT, classify("PUT", "/bucket/key"));
+    assertEquals(
+        S3Operation.COPY_OBJECT, classify("PUT", "/bucket/key", "x-amz-copy-source", "/b/k"));
+    assertEquals(S3Operation.DELETE_OBJECT, classify("DELETE", "/bucket/key"));
+    assertEquals(S3Operation.INVALID_PATH, classify("GET", "/bucket/../secret"));
+  }
+
+  @Test
+  void classifiesMultipartOperations() throws Exception {
+    assertEquals(S3Operation.CREATE_MULTIPART_UPLOAD, classify("POST", "/bucket/key?uploads"));
+    assertEquals(
+        S3Operation.UPLOAD_PART, classify("PUT", "/bucket/key?partNumber=1&uploadId=abc"));
+    assertEquals(S3Operation.COMPLETE_MULTIPART_UPLOAD, classify("POST", "/bucket/key?uploadId=a"));
+    assertEquals(S3Operation.ABORT_MULTIPART_UPLOAD, classify("DELETE", "/bucket/key?uploadId=a"));
+  }
+
+  @Test
+  void classifiesAnonymousOperations() throws Exception {
+    assertEquals(S3Operation.OPTIONS, classify("OPTIONS", "/bucket/key"));
+    assertEquals(S3Operation.FRONTEND, classify("GET", "/", "User-Agent", "Mozilla/5.0"));
+    assertEquals(
+        S3Operation.GET_OBJECT,
+        classify("GET", "/bucket/key?X-Amz-Algorithm=AWS4-HMAC-SHA256", "User-Agent", "Mozilla"));
+    assertEquals(
+        S3Operation.POST_OBJECT,
+        classify("POST", "/bucket", "Content-Type", "multipart/form-data; boundary=x"));
+  }
+
+  @Test
+  void parsesPathAndQueryOnce() throws Exception {
+    S3Context context = S3Context.create(new FakeExchange("PUT", "/bucket/a/b?partNumber=2&x"));
+
+    assertEquals("bucket", context.getBucketName());
+    assertEquals("a/b", context.getObjectKey());
+    assertEquals(Map.of("partNumber", "2", "x", ""), context.getQueriesParams());
+    assertSame(context.getQueriesParams(), context.getRequestParams());
+  }
+
+  private static S3Operation classify(String method, String uri, String... headers)
+      throws Exception {
+    FakeExchange exchange = new FakeExchange(method, uri);
+    for (int i = 0; i < headers.length; i += 2) {
+      exchange.headers.put(headers[i], new ArrayList<>(List.of(headers[i + 1])));
+    }
+    return S3Context.create(exchange).getOperation();
+  }
+
+  private static class FakeExchange implements S3HttpExchange, S3HttpHeaders {
+    private final String method;
+    private final URI uri;
+    private final Map<String, List<String>> headers =
+        new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    FakeExchange(String method, String uri) {
+      this.method = method;
+      this.uri = URI.create(uri);
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return method;
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public S3HttpHeaders getRequestHeaders() {
+      return this;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return InputStream.nullInputStream();
+    }
+
+    @Override
+    public S3HttpHeaders getResponseHeaders() {
+      return this;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      return new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void addHeader(String key, String value) {}
+
+    @Override
+    public boolean containsHeader(String headerName) {
+      return headers.containsKey(headerName);
+    }
+
+    @Override
+    public String getFirst(String header) {
+      List<String> values = headers.get(header);
+      return values == null ? null : values.getFirst();
+    }
+
+    @Override
+    public void forEach(HeaderConsumer consumer) {
+      headers.forEach(consumer::accept);
+    }
+
+    @Override
+    public Iterable<? extends Map.Entry<String, List<String>>> entrySet() {
+      return headers.entrySet();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package dev.totis.tinys3.archive;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+
+public class ArchiveImporterTest {
+
+  @Test
+  void importsTarEntriesIncludingLongNames() throws Exception {
+    String longName = "deep/" + "nested/".repeat(20) + "file.txt";
+    byte[] large = new byte[ArchiveImporter.MAX_BUFFERED_SIZE + 1000];
+    Arrays.fill(large, (byte) 'x');
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    writeTarEntry(tar, "./dir/", '5', new byte[0]);
+    writeTarEntry(tar, "./dir/small.txt", '0', bytes("small"));
+    writeTarEntry(tar, "././@LongLink", 'L', bytes(longName + "\0"));
+    writeTarEntry(tar, "truncated-name", '0', bytes("long"));
+    writeTarEntry(tar, "large.bin", '0', large);
+    tar.write(new byte[TarReader.BLOCK_SIZE * 2]);
+
+    InMemoryFileOperations fileOps = new InMemoryFileOperations();
+    ArchiveImporter importer = new ArchiveImporter(new DefaultS3FileOperations(fileOps), 4);
+    ArchiveImporter.Result result =
+        importer.importArchive(
+            "fixtures", new ByteArrayInputStream(tar.toByteArray()), ArchiveFormat.TAR);
+
+    assertEquals(3, result.objects());
+    assertEquals(5 + 4 + large.length, result.bytes());
+    assertEquals(0, result.skipped());
+    assertArrayEquals(bytes("small"), fileOps.readTempFile("fixtures/dir/small.txt"));
+    assertArrayEquals(bytes("long"), fileOps.readTempFile("fixtures/" + longName));
+    assertArrayEquals(large, fileOps.readTempFile("fixtures/large.bin"));
+  }
+
+  @Test
+  void importsGzippedTarAndZip() throws Exception {
+    ByteArrayOutputStream tarGz = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(tarGz)) {
+      ByteArrayOutputStream tar = new ByteArrayOutputStream();
+      writeTarEntry(tar, "a.txt", '0', bytes("from tar"));
+      tar.write(new byte[TarReader.BLOCK_SIZE * 2]);
+      gzip.write(tar.toByteArray());
+    }
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(zip)) {
+      for (int i = 0; i < 100; i++) {
+        out.putNextEntry(new ZipEntry("items/" + i + ".json"));
+        out.write(bytes("{\"id\":" + i + "}"));
+        out.closeEntry();
+      }
+      out.putNextEntry(new ZipEntry("../escape"));
+      out.write(bytes("nope"));
+      out.closeEntry();
+    }
+
+    InMemoryFileOperations fileOps = new InMemoryFileOperations();
+    ArchiveImporter importer = new ArchiveImporter(new DefaultS3FileOperations(fileOps), 4);
+    importer.importArchive(
+        "bucket", new ByteArrayInputStream(tarGz.toByteArray()), ArchiveFormat.TAR_GZ);
+    ArchiveImporter.Result result =
+        importer.importArchive(
+            "bucket", new ByteArrayInputStream(zip.toByteArray()), ArchiveFormat.ZIP);
+
+    assertEquals(100, result.objects());
+    assertEquals(1, result.skipped());
+    assertArrayEquals(bytes("from tar"), fileOps.readTempFile("bucket/a.txt"));
+    assertArrayEquals(bytes("{\"id\":42}"), fileOps.readTempFile("bucket/items/42.json"));
+    assertFalse(fileOps.exists("escape"));
+  }
+
+  @Test
+  void detectsTheFormatFromTheName() {
+    assertEquals(ArchiveFormat.TAR_GZ, ArchiveFormat.fromName("fixtures.tar.gz"));
+    assertEquals(ArchiveFormat.TAR_GZ, ArchiveFormat.fromName("tgz"));
+    assertEquals(ArchiveFormat.TAR, ArchiveFormat.fromName("fixtures.TAR"));
+    assertEquals(ArchiveFormat.ZIP, ArchiveFormat.fromName("zip"));
+    assertThrows(IllegalArgumentException.class, () -> ArchiveFormat.fromName("fixtures.rar"));
+  }
+
+  private static void writeTarEntry(ByteArrayOutputStream out, String name, char type, byte[] body)
+      throws IOException {
+    byte[] header = new byte[TarReader.BLOCK_SIZE];
+    byte[] encodedName = bytes(name);
+    System.arraycopy(encodedName, 0, header, 0, Math.min(encodedName.length, 100));
+    putOctal(header, 100, 8, 0644);
+    putOctal(header, 124, 12, body.length);
+    header[156] = (byte) type;
+    System.arraycopy(bytes("ustar\0"), 0, header, 257, 6);
+    out.write(header);
+    out.write(body);
+    int padding = (TarReader.BLOCK_SIZE - body.length % TarReader.BLOCK_SIZE) % 512;
+    out.write(new byte[padding]);
+  }
+
+  private static void putOctal(byte[] header, int offset, int length, long value) {
+    byte[] digits = bytes(String.format("%0" + (length - 1) + "o", value));
+    System.arraycopy(digits, 0, header, offset, digits.length);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,72 @@
+package dev.totis.tinys3.archive;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.DefaultS3FileOperations;
+import dev.totis.tinys3.io.FileOperations;
+import dev.totis.tinys3.io.InMemoryFileOperations;
+import dev.totis.tinys3.io.NioFileOperations;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BucketExporterTest {
+  private static final String LONG_KEY = "logs/" + "2024/".repeat(30) + "summary.json";
+
+  @Test
+  void exportsInMemoryBucketsAndImportsThemBack() throws Exception {
+    InMemoryFileOperations source = new InMemoryFileOperations();
+    fill(source);
+
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    long exported = new BucketExporter(source).export("bucket", "", tar);
+
+    assertEquals(3, exported);
+    assertEquals(
+        Map.of("a.txt", "first", "logs/today.txt", "today", LONG_KEY, "{}"), readTar(tar));
+
+    InMemoryFileOperations target = new InMemoryFileOperations();
+    new ArchiveImporter(new DefaultS3FileOperations(target), 2)
+        .importArchive("copy", new ByteArrayInputStream(tar.toByteArray()), ArchiveFormat.TAR);
+    assertArrayEquals(bytes("{}"), target.readTempFile("copy/" + LONG_KEY));
+  }
+
+  @Test
+  void exportsOnlyThePrefixFromDisk(@TempDir Path dir) throws Exception {
+    NioFileOperations storage = new NioFileOperations(dir.toString());
+    fill(storage);
+
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    long exported = new BucketExporter(storage).export("bucket", "logs/t", tar);
+
+    assertEquals(1, exported);
+    assertEquals(Map.of("logs/today.txt", "today"), readTar(tar));
+  }
+
+  private static void fill(FileOperations storage) throws Exception {
+    DefaultS3FileOperations objects = new DefaultS3FileOperations(storage);
+    objects.createDirectory("bucket");
+    objects.handlePutObject("bucket", "a.txt", new ByteArrayInputStream(bytes("first")));
+    objects.handlePutObject("bucket", "logs/today.txt", new ByteArrayInputStream(bytes("today")));
+    objects.handlePutObject("bucket", LONG_KEY, new ByteArrayInputStream(bytes("{}")));
+  }
+
+  private static Map<String, String> readTar(ByteArrayOutputStream tar) throws Exception {
+    TarReader reader = new TarReader(new ByteArrayInputStream(tar.toByteArray()));
+    Map<String, String> files = new TreeMap<>();
+    ArchiveReader.Entry entry;
+    while ((entry = reader.next()) != null) {
+      files.put(entry.name(), new String(entry.body().readAllBytes(), StandardCharsets.UTF_8));
+    }
+    return files;
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,135 @@
+package dev.totis.tinys3.auth;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.auth.AwsChunkedInputStream.ChunkSigningContext;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+
+/** Uses the example from the AWS "Signature Calculations for the Authorization Header" docs. */
+public class AwsChunkedInputStreamTest {
+  private static final String SEED_SIGNATURE =
+      "4f232c4386841ef735655705268965c44a0e4690baa4adea153f7db9fa80a0a9";
+
+  @Test
+  void decodesSignedChunks() throws Exception {
+    byte[] decoded =
+        new AwsChunkedInputStream(new ByteArrayInputStream(awsExample()), signing(), null, 66560)
+            .readAllBytes();
+
+    assertEquals(66560, decoded.length);
+    assertEquals("a".repeat(66560), new String(decoded, StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void rejectsTamperedChunk() throws Exception {
+    byte[] body = awsExample();
+    body[200] = 'b';
+
+    PayloadVerificationException e =
+        assertThrows(
+            PayloadVerificationException.class,
+            () ->
+                new AwsChunkedInputStream(new ByteArrayInputStream(body), signing(), null, 66560)
+                    .readAllBytes());
+    assertEquals("SignatureDoesNotMatch", e.getErrorCode());
+  }
+
+  @Test
+  void rejectsWrongDecodedLength() {
+    PayloadVerificationException e =
+        assertThrows(
+            PayloadVerificationException.class,
+            () ->
+                new AwsChunkedInputStream(
+                        new ByteArrayInputStream(awsExample()), signing(), null, 100)
+                    .readAllBytes());
+    assertEquals("IncompleteBody", e.getErrorCode());
+  }
+
+  @Test
+  void rejectsMalformedDecodedLengthHeader() throws Exception {
+    for (String header : new String[] {"abc", "-5", ""}) {
+      AwsChunkedInputStream in =
+          AwsChunkedInputStream.withDecodedLengthHeader(
+              new ByteArrayInputStream(awsExample()), signing(), null, header);
+      PayloadVerificationException e =
+          assertThrows(PayloadVerificationException.class, in::readAllBytes);
+      assertEquals(400, e.getStatusCode());
+      assertEquals("InvalidArgument", e.getErrorCode());
+    }
+    assertEquals(
+        66560,
+        AwsChunkedInputStream.withDecodedLengthHeader(
+                new ByteArrayInputStream(awsExample()), signing(), null, "66560")
+            .readAllBytes()
+            .length);
+  }
+
+  @Test
+  void verifiesUnsignedTrailingChecksum() throws Exception {
+    String body = "5\r\nhello\r\n0\r\nx-amz-checksum-crc32:" + crc32("hello") + "\r\n\r\n";
+
+    byte[] decoded =
+        new AwsChunkedInputStream(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)),
+                null,
+                "x-amz-checksum-crc32",
+                5)
+            .readAllBytes();
+
+    assertEquals("hello", new String(decoded, StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void rejectsWrongTrailingChecksum() {
+    String body = "5\r\nhello\r\n0\r\nx-amz-checksum-crc32:" + crc32("other") + "\r\n\r\n";
+
+    PayloadVerificationException e =
+        assertThrows(
+            PayloadVerificationException.class,
+            () ->
+                new AwsChunkedInputStream(
+                        new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)),
+                        null,
+                        "x-amz-checksum-crc32",
+                        5)
+                    .readAllBytes());
+    assertEquals("BadDigest", e.getErrorCode());
+  }
+
+  private static ChunkSigningContext signing() throws Exception {
+    byte[] key = "AWS4wJalrXUtnFEMI/K7MDENG/bPxRfiCYEXAMPLEKEY".getBytes(StandardCharsets.UTF_8);
+    key = S3Utils.hmacSHA256(key, "20130524");
+    key = S3Utils.hmacSHA256(key, "us-east-1");
+    key = S3Utils.hmacSHA256(key, "s3");
+    key = S3Utils.hmacSHA256(key, "aws4_request");
+    return new ChunkSigningContext(
+        key, "20130524T000000Z", "20130524/us-east-1/s3/aws4_request", SEED_SIGNATURE);
+  }
+
+  private static byte[] awsExample() {
+    String body =
+        "10000;chunk-signature="
+            + "ad80c730a21e5b8d04586a2213dd63b9a0e99e0e2307b0ade35a65485a288648\r\n"
+            + "a".repeat(65536)
+            + "\r\n400;chunk-signature="
+            + "0055627c9e194cb4542bae2aa5492e3c1575bbb81b612b7d234b86a503ef5497\r\n"
+            + "a".repeat(1024)
+            + "\r\n0;chunk-signature="
+            + "b6c6ea8a5354eaf15b3cb7646744f4275b71ea724fed81ceb9323e279d449df9\r\n\r\n";
+    return body.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String crc32(String value) {
+    CRC32 crc = new CRC32();
+    crc.update(value.getBytes(StandardCharsets.US_ASCII));
+    return Base64.getEncoder()
+        .encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+  }
+}
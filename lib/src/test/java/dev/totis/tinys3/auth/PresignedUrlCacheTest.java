@@ -0,0 +1,40 @@
+package dev.totis.tinys3.auth;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class PresignedUrlCacheTest {
+  private static final String URL = "http://localhost/bucket/key?X-Amz-Signature=abc";
+
+  @Test
+  void remembersUrlUntilItExpires() {
+    PresignedUrlCache cache = new PresignedUrlCache(10);
+    cache.put("GET", URL, System.currentTimeMillis() + 60_000);
+
+    assertTrue(cache.isVerified("GET", URL));
+    assertFalse(cache.isVerified("PUT", URL));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  void dropsExpiredUrls() {
+    PresignedUrlCache cache = new PresignedUrlCache(10);
+    cache.put("GET", URL, System.currentTimeMillis() - 1);
+
+    assertFalse(cache.isVerified("GET", URL));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void staysWithinMaxEntries() {
+    PresignedUrlCache cache = new PresignedUrlCache(2);
+    long expiresAt = System.currentTimeMillis() + 60_000;
+    for (int i = 0; i < 5; i++) {
+      cache.put("GET", URL + i, expiresAt);
+    }
+
+    assertTrue(cache.size() <= 2);
+  }
+}
@@ -0,0 +1,282 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class InMemoryFileOperationsTest {
+
+  @Test
+  void roundTripsObjectsAcrossBlocks() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    byte[] body = randomBytes(200_000);
+
+    fileOps.writeFile("bucket/key", new ByteArrayInputStream(body));
+
+    assertEquals(body.length, fileOps.getSize("bucket/key"));
+    try (InputStream in = fileOps.readFileStream("bucket/key")) {
+      assertArrayEquals(body, in.readAllBytes());
+    }
+    try (InputStream in = fileOps.readFileStream("bucket/key")) {
+      for (byte expected : body) {
+        assertEquals(expected & 0xff, in.read());
+      }
+      assertEquals(-1, in.read());
+    }
+    assertTrue(allocator.getUsedBytes() < body.length + 64 * 1024);
+  }
+
+  @Test
+  void shrinksSmallObjectsToTheirSizeClass() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+
+    fileOps.writeFile("bucket/small", randomBytes(1500));
+
+    assertEquals(2048, allocator.getUsedBytes());
+  }
+
+  @Test
+  void freesBlocksOnceTheLastReaderIsDone() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    byte[] body = randomBytes(100_000);
+    fileOps.writeFile("bucket/key", body);
+    fileOps.copy("bucket/key", "bucket/copy");
+    long used = allocator.getUsedBytes();
+
+    InputStream reader = fileOps.readFileStream("bucket/key");
+    fileOps.delete("bucket/key");
+    fileOps.writeFile("bucket/copy", new byte[0]);
+    assertEquals(used, allocator.getUsedBytes());
+
+    assertArrayEquals(body, reader.readAllBytes());
+    reader.close();
+    assertEquals(0, allocator.getUsedBytes());
+  }
+
+  @Test
+  void appendsAndReleasesTheOldContent() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    byte[] first = randomBytes(70_000);
+    byte[] second = randomBytes(5_000);
+
+    fileOps.appendToFile("bucket/key", first);
+    fileOps.appendToFile("bucket/key", second);
+
+    byte[] expected = new byte[first.length + second.length];
+    System.arraycopy(first, 0, expected, 0, first.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    assertArrayEquals(expected, fileOps.readTempFile("bucket/key"));
+    fileOps.delete("bucket/key");
+    assertEquals(0, allocator.getUsedBytes());
+  }
+
+  @Test
+  void assemblesPartsWithoutCopying() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 50; i++) {
+      byte[] part = randomBytes(10_000 + i);
+      expected.write(part);
+      fileOps.writeTempFile("/tmp/part-" + i, part);
+    }
+    long used = allocator.getUsedBytes();
+
+    for (int i = 0; i < 50; i++) {
+      fileOps.appendTempFile("bucket/object", "/tmp/part-" + i);
+      fileOps.deleteTempFile("/tmp/part-" + i);
+    }
+
+    assertEquals(used, allocator.getUsedBytes());
+    assertEquals(expected.size(), fileOps.getSize("bucket/object"));
+    try (InputStream in = fileOps.readFileStream("bucket/object")) {
+      assertArrayEquals(expected.toByteArray(), in.readAllBytes());
+    }
+    fileOps.delete("bucket/object");
+    assertEquals(0, allocator.getUsedBytes());
+  }
+
+  @Test
+  void appendsManyTimesOnTheHeap() throws Exception {
+    InMemoryFileOperations fileOps = new InMemoryFileOperations();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 10_000; i++) {
+      byte[] chunk = {(byte) i, (byte) (i >> 8)};
+      expected.write(chunk);
+      fileOps.appendToFile("bucket/log", chunk);
+    }
+
+    assertArrayEquals(expected.toByteArray(), fileOps.readTempFile("bucket/log"));
+    fileOps.delete("bucket/log");
+  }
+
+  @Test
+  void listsOnlyTheRequestedRange() throws Exception {
+    InMemoryFileOperations fileOps = new InMemoryFileOperations();
+    fileOps.createDirectory("bucket");
+    fileOps.createDirectory("bucket.logs");
+    fileOps.createDirectory("bucket0");
+    fileOps.writeFile("bucket/a/1", new byte[1]);
+    fileOps.writeFile("bucket/a/2", new byte[2]);
+    fileOps.writeFile("bucket/b", new byte[3]);
+    fileOps.writeFile("bucket.logs/a/1", new byte[4]);
+    fileOps.writeTempFile(fileOps.createTempDirectory("multipart-") + "/part-1", new byte[5]);
+
+    assertArrayEquals(
+        new String[] {"a/1", "a/2"},
+        Arrays.stream(fileOps.list("bucket", "a/")).map(FileEntry::path).toArray());
+    assertEquals(4, fileOps.list("bucket").length);
+    assertEquals(0, fileOps.list("bucket0").length);
+    assertArrayEquals(
+        new String[] {"bucket", "bucket.logs", "bucket0"},
+        Arrays.stream(fileOps.listBuckets()).map(FileEntry::path).toArray());
+
+    assertTrue(fileOps.isDirectoryNotEmpty("bucket.logs"));
+    assertFalse(fileOps.isDirectoryNotEmpty("bucket0"));
+    assertThrows(StorageException.class, () -> fileOps.delete("bucket/a"));
+    fileOps.delete("bucket/a/1");
+    fileOps.delete("bucket/a/2");
+    fileOps.delete("bucket/a");
+    assertEquals(1, fileOps.list("bucket").length);
+  }
+
+  @Test
+  void spillsColdObjectsAndReadsThemBack(@TempDir Path spillDirectory) throws Exception {
+    MemoryBudget budget = new MemoryBudget(25_000, MemoryBudget.Overflow.SPILL, spillDirectory);
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(null, budget);
+    byte[] first = randomBytes(10_000);
+    fileOps.writeFile("bucket/first", first);
+    fileOps.writeFile("bucket/second", randomBytes(10_000));
+    fileOps.readTempFile("bucket/first");
+    fileOps.writeFile("bucket/third", randomBytes(10_000));
+
+    assertEquals(1, budget.getSpills());
+    assertEquals(20_000, budget.getResidentBytes());
+    try (Stream<Path> files = Files.list(spillDirectory)) {
+      assertEquals(1, files.count());
+    }
+
+    assertArrayEquals(randomBytes(10_000), fileOps.readTempFile("bucket/second"));
+    assertEquals(1, budget.getMisses());
+    assertEquals(2, budget.getSpills());
+    assertArrayEquals(first, fileOps.readTempFile("bucket/first"));
+    assertEquals(10_000, fileOps.getSize("bucket/first"));
+
+    fileOps.writeFile("bucket/huge", randomBytes(100_000));
+    assertEquals(20_000, budget.getResidentBytes());
+    for (String key : new String[] {"first", "second", "third", "huge"}) {
+      fileOps.delete("bucket/" + key);
+    }
+    try (Stream<Path> files = Files.list(spillDirectory)) {
+      assertEquals(0, files.count());
+    }
+    assertEquals(0, budget.getResidentBytes());
+  }
+
+  @Test
+  void streamsBodiesLargerThanTheBudgetToDisk(@TempDir Path spillDirectory) throws Exception {
+    MemoryBudget budget = new MemoryBudget(25_000, MemoryBudget.Overflow.SPILL, spillDirectory);
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator, budget);
+    byte[] body = randomBytes(1_000_000);
+    long[] peak = new long[1];
+    InputStream upload =
+        new FilterInputStream(new ByteArrayInputStream(body)) {
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            peak[0] = Math.max(peak[0], allocator.getUsedBytes());
+            return super.read(b, off, len);
+          }
+        };
+
+    fileOps.writeFile("bucket/huge", upload);
+
+    // At most the budget and the last block it was filling, never the whole body
+    assertTrue(peak[0] <= 25_000 + SlabAllocator.MAX_BLOCK_SIZE, peak[0] + " bytes");
+    assertEquals(0, allocator.getUsedBytes());
+    assertEquals(0, budget.getResidentBytes());
+    assertEquals(1, budget.getSpills());
+    assertArrayEquals(body, fileOps.readTempFile("bucket/huge"));
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedObjects(@TempDir Path spillDirectory) throws Exception {
+    MemoryBudget budget = new MemoryBudget(25_000, MemoryBudget.Overflow.EVICT, spillDirectory);
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(new SlabAllocator(), budget);
+    fileOps.writeFile("bucket/first", randomBytes(10_000));
+    fileOps.writeFile("bucket/second", randomBytes(10_000));
+    fileOps.readTempFile("bucket/first");
+    fileOps.writeFile("bucket/third", randomBytes(10_000));
+
+    assertTrue(fileOps.exists("bucket/first"));
+    assertFalse(fileOps.exists("bucket/second"));
+    assertEquals(1, budget.getEvictions());
+    assertEquals(1, budget.getHits());
+  }
+
+  @Test
+  void storesIdenticalBodiesOnce() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    ContentStore contentStore = new ContentStore(Duration.ZERO);
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator, null, contentStore);
+    byte[] body = randomBytes(100_000);
+    fileOps.writeFile("bucket/other", randomBytes(1_000));
+    for (int i = 0; i < 100; i++) {
+      fileOps.writeFile("bucket/key-" + i, new ByteArrayInputStream(body));
+    }
+
+    assertEquals(2, contentStore.getContents());
+    assertEquals(99, contentStore.getHits());
+    assertTrue(allocator.getUsedBytes() < 2 * body.length);
+    assertArrayEquals(body, fileOps.readTempFile("bucket/key-42"));
+
+    for (int i = 0; i < 100; i++) {
+      fileOps.delete("bucket/key-" + i);
+    }
+    assertEquals(1, contentStore.reclaim());
+    assertEquals(1_024, allocator.getUsedBytes());
+    fileOps.writeFile("bucket/again", body);
+    assertEquals(2, contentStore.getContents());
+  }
+
+  @Test
+  void keepsSharedBodiesInMemory(@TempDir Path spillDirectory) throws Exception {
+    MemoryBudget budget = new MemoryBudget(25_000, MemoryBudget.Overflow.SPILL, spillDirectory);
+    ContentStore contentStore = new ContentStore(Duration.ZERO);
+    InMemoryFileOperations fileOps =
+        new InMemoryFileOperations(new SlabAllocator(), budget, contentStore);
+    fileOps.writeFile("bucket/first", randomBytes(10_000));
+    fileOps.writeFile("bucket/copy", randomBytes(10_000));
+    fileOps.writeFile("bucket/other", randomBytes(10_001));
+
+    // Spilling either key of the shared body would copy it to disk without freeing it
+    assertEquals(1, budget.getSpills());
+    assertEquals(20_000, budget.getResidentBytes());
+    fileOps.readTempFile("bucket/first");
+    fileOps.readTempFile("bucket/copy");
+    assertEquals(2, budget.getHits());
+    assertEquals(0, budget.getMisses());
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
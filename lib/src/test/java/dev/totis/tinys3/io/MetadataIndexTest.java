@@ -0,0 +1,200 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MetadataIndexTest {
+
+  @Test
+  void replaysTheLogTailOnTopOfTheSnapshot(@TempDir Path dir) throws Exception {
+    MetadataIndex index = new MetadataIndex(dir, Duration.ZERO);
+    assertTrue(index.isFresh());
+    index.put("bucket", new MetadataIndex.Entry(0, 1000, true));
+    index.put("bucket/a", new MetadataIndex.Entry(1, 2000, false));
+    index.put("bucket/b", new MetadataIndex.Entry(2, 3000, false));
+    index.checkpoint();
+    index.remove("bucket/a");
+    index.put("bucket/c", new MetadataIndex.Entry(3, 4000, false));
+    // Not closed, as if the process died
+
+    MetadataIndex reopened = new MetadataIndex(dir, Duration.ZERO);
+    assertFalse(reopened.isFresh());
+    assertNull(reopened.get("bucket/a"));
+    assertEquals(new MetadataIndex.Entry(2, 3000, false), reopened.get("bucket/b"));
+    assertEquals(new MetadataIndex.Entry(3, 4000, false), reopened.get("bucket/c"));
+    assertEquals(3, reopened.size());
+    reopened.close();
+  }
+
+  @Test
+  void dropsARecordTornByACrash(@TempDir Path dir) throws Exception {
+    MetadataIndex index = new MetadataIndex(dir, Duration.ZERO);
+    index.put("bucket/kept", new MetadataIndex.Entry(1, 1000, false));
+    try (Stream<Path> files = Files.list(dir)) {
+      Path log = files.filter(file -> file.toString().endsWith(".log")).findFirst().orElseThrow();
+      Files.write(log, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+    }
+
+    MetadataIndex reopened = new MetadataIndex(dir, Duration.ZERO);
+    assertEquals(1, reopened.size());
+    reopened.put("bucket/after", new MetadataIndex.Entry(2, 2000, false));
+    reopened.close();
+
+    MetadataIndex last = new MetadataIndex(dir, Duration.ZERO);
+    assertNotNull(last.get("bucket/after"));
+    last.close();
+  }
+
+  @Test
+  void concurrentChangesShareForces(@TempDir Path dir) throws Exception {
+    MetadataIndex index = new MetadataIndex(dir, Duration.ZERO);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+      threads.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    for (int i = 0; i < 100; i++) {
+                      try {
+                        index.put("b/" + thread + "-" + i, new MetadataIndex.Entry(i, i, false));
+                      } catch (Exception e) {
+                        throw new RuntimeException(e);
+                      }
+                    }
+                  }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(800, index.getRecords());
+    // Writers arriving while a force runs share the next one
+    assertTrue(index.getForces() < index.getRecords(), index.getForces() + " forces");
+    index.close();
+    MetadataIndex reopened = new MetadataIndex(dir, Duration.ZERO);
+    assertEquals(800, reopened.size());
+    reopened.close();
+  }
+
+  @Test
+  void indexesExistingFilesOnFirstOpen(@TempDir Path dir) throws Exception {
+    Files.createDirectories(dir.resolve("bucket/nested"));
+    Files.writeString(dir.resolve("bucket/nested/file.txt"), "content");
+    MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO);
+    IndexedFileOperations storage =
+        new IndexedFileOperations(new NioFileOperations(dir.toString()), index);
+
+    assertEquals(1, storage.listBuckets().length);
+    assertEquals(7, storage.getSize("bucket/nested/file.txt"));
+    storage.writeFile("bucket/new.txt", "new".getBytes(StandardCharsets.UTF_8));
+    storage.delete("bucket/nested/file.txt");
+    index.close();
+
+    // Written behind the index's back, so not seen once the index exists
+    Files.writeString(dir.resolve("bucket/ignored.txt"), "ignored");
+    MetadataIndex reopened = new MetadataIndex(dir.resolve(".index"), Duration.ZERO);
+    storage = new IndexedFileOperations(new NioFileOperations(dir.toString()), reopened);
+    assertTrue(storage.exists("bucket/new.txt"));
+    assertFalse(storage.exists("bucket/nested/file.txt"));
+    assertFalse(storage.exists("bucket/ignored.txt"));
+    assertEquals(2, storage.list("bucket").length);
+    reopened.close();
+  }
+
+  @Test
+  void checksTheIndexAgainstTheFilesAfterACrash(@TempDir Path dir) throws Exception {
+    MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO, Durability.NONE);
+    IndexedFileOperations storage =
+        new IndexedFileOperations(new NioFileOperations(dir.toString()), index);
+    storage.createDirectory("bucket");
+    storage.writeFile("bucket/kept.txt", "kept".getBytes(StandardCharsets.UTF_8));
+    storage.writeFile("bucket/deleted.txt", "deleted".getBytes(StandardCharsets.UTF_8));
+    storage.writeFile("bucket/rewritten.txt", "old".getBytes(StandardCharsets.UTF_8));
+    // Nothing is forced when the bodies are not either
+    assertEquals(0, index.getForces());
+
+    // Changes that reached the files but not the log before the crash, the index is never closed
+    Files.delete(dir.resolve("bucket/deleted.txt"));
+    Files.writeString(dir.resolve("bucket/rewritten.txt"), "rewritten");
+    Files.writeString(dir.resolve("bucket/added.txt"), "added");
+
+    MetadataIndex reopened = new MetadataIndex(dir.resolve(".index"), Duration.ZERO);
+    assertFalse(reopened.isFresh());
+    assertFalse(reopened.wasClosedCleanly());
+    storage = new IndexedFileOperations(new NioFileOperations(dir.toString()), reopened);
+    storage.awaitReconciled();
+    assertTrue(storage.exists("bucket/kept.txt"));
+    assertFalse(storage.exists("bucket/deleted.txt"));
+    assertEquals(9, storage.getSize("bucket/rewritten.txt"));
+    assertEquals(5, storage.getSize("bucket/added.txt"));
+    reopened.close();
+
+    MetadataIndex last = new MetadataIndex(dir.resolve(".index"), Duration.ZERO);
+    assertTrue(last.wasClosedCleanly());
+    last.close();
+  }
+
+  @Test
+  void readsBodiesWithoutHoldingTheirPath(@TempDir Path dir) throws Exception {
+    MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO);
+    IndexedFileOperations storage =
+        new IndexedFileOperations(new NioFileOperations(dir.toString()), index);
+    storage.createDirectory("bucket");
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    InputStream slow =
+        new SequenceInputStream(
+            new ByteArrayInputStream("slow".getBytes(StandardCharsets.UTF_8)),
+            new InputStream() {
+              @Override
+              public int read() throws IOException {
+                reading.countDown();
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  throw new IOException(e);
+                }
+                return -1;
+              }
+            });
+    Thread writer =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  try {
+                    storage.writeFile("bucket/key", slow);
+                  } catch (StorageException e) {
+                    throw new RuntimeException(e);
+                  }
+                });
+    reading.await();
+
+    // Not blocked by the body still being read for the same path
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(10),
+        () -> storage.writeFile("bucket/key", "fast".getBytes(StandardCharsets.UTF_8)));
+    assertEquals(4, storage.getSize("bucket/key"));
+    release.countDown();
+    writer.join();
+    try (InputStream in = storage.readFileStream("bucket/key")) {
+      assertEquals("slow", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    index.close();
+  }
+}
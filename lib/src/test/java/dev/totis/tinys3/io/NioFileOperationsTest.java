@@ -0,0 +1,121 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class NioFileOperationsTest {
+
+  @Test
+  void readersNeverSeeAPartialOverwrite(@TempDir Path dir) throws Exception {
+    NioFileOperations storage = new NioFileOperations(dir.toString());
+    storage.createDirectory("bucket");
+    storage.writeFile("bucket/key", filled(1 << 20, 0));
+
+    AtomicBoolean done = new AtomicBoolean();
+    Thread writer =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  try {
+                    for (int i = 1; i <= 50; i++) {
+                      storage.writeFile("bucket/key", filled(1 << 20, i));
+                    }
+                  } catch (StorageException e) {
+                    throw new RuntimeException(e);
+                  } finally {
+                    done.set(true);
+                  }
+                });
+    while (!done.get()) {
+      try (InputStream in = storage.readFileStream("bucket/key")) {
+        byte[] read = in.readAllBytes();
+        assertEquals(1 << 20, read.length);
+        assertArrayEquals(filled(read.length, read[0]), read);
+      }
+    }
+    writer.join();
+    assertEquals(0, dir.resolve(".staging").toFile().list().length);
+  }
+
+  @Test
+  void joinsTempFilesIntoTheObject(@TempDir Path dir) throws Exception {
+    NioFileOperations storage = new NioFileOperations(dir.toString());
+    storage.createDirectory("bucket");
+    storage.writeFile("bucket/key", filled(10, 9));
+    Path first = Files.write(dir.resolve("part-1"), filled(3, 1));
+    Path second = Files.write(dir.resolve("part-2"), filled(2, 2));
+
+    storage.concatTempFiles("bucket/key", List.of(first.toString(), second.toString()));
+
+    byte[] expected = {1, 1, 1, 2, 2};
+    assertArrayEquals(expected, storage.readFileStream("bucket/key").readAllBytes());
+  }
+
+  @Test
+  void streamsNothingOutsideTheBucket(@TempDir Path dir) throws Exception {
+    Files.createDirectories(dir.resolve("outside"));
+    Files.write(dir.resolve("outside/secret"), filled(4, 1));
+    Files.createDirectories(dir.resolve("root"));
+    NioFileOperations storage = new NioFileOperations(dir.resolve("root").toString());
+    storage.createDirectory("bucket");
+    storage.writeFile("bucket/key", filled(4, 2));
+
+    assertEquals(0, storage.stream("bucket", "../../outside/").count());
+    assertEquals(1, storage.stream("bucket", "").count());
+  }
+
+  @Test
+  void groupCommitSharesDirectoryForces(@TempDir Path dir) throws Exception {
+    NioFileOperations fsync =
+        new NioFileOperations(dir.toString(), Durability.FSYNC, Duration.ZERO);
+    fsync.createDirectory("single");
+    long before = fsync.getForces();
+    fsync.writeFile("single/key", filled(10, 1));
+    // The staged file and the directory naming it
+    assertEquals(2, fsync.getForces() - before);
+
+    NioFileOperations storage =
+        new NioFileOperations(dir.toString(), Durability.GROUP_COMMIT, Duration.ZERO);
+    storage.createDirectory("bucket");
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 16; t++) {
+      int thread = t;
+      threads.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    for (int i = 0; i < 20; i++) {
+                      try {
+                        storage.writeFile("bucket/" + thread + "-" + i, filled(100, i));
+                      } catch (StorageException e) {
+                        throw new RuntimeException(e);
+                      }
+                    }
+                  }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // The walk includes the bucket itself
+    assertEquals(321, storage.list("bucket").length);
+    // One force per file, but far fewer than one per write for the directory
+    assertTrue(storage.getForces() < 2 * 320);
+  }
+
+  private static byte[] filled(int length, int value) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) value);
+    return data;
+  }
+}
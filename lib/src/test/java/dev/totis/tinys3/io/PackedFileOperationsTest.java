@@ -0,0 +1,110 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PackedFileOperationsTest {
+
+  @Test
+  void rebuildsTheIndexFromSegmentsOnReopen(@TempDir Path dir) throws Exception {
+    byte[] large = new byte[5000];
+    Arrays.fill(large, (byte) 'x');
+    try (PackedFileOperations storage = open(dir)) {
+      storage.createDirectory("bucket");
+      for (int i = 0; i < 100; i++) {
+        storage.createParentDirectories("bucket/dir/" + i);
+        storage.writeFile("bucket/dir/" + i, bytes("value " + i));
+      }
+      storage.writeFile("bucket/large", new ByteArrayInputStream(large));
+      storage.delete("bucket/dir/7");
+      storage.writeFile("bucket/dir/8", bytes("changed"));
+      assertTrue(storage.getSegments() > 1);
+    }
+
+    try (PackedFileOperations storage = open(dir)) {
+      assertEquals(99, storage.list("bucket", "dir/").length);
+      assertFalse(storage.exists("bucket/dir/7"));
+      assertArrayEquals(bytes("value 9"), storage.readTempFile("bucket/dir/9"));
+      assertArrayEquals(bytes("changed"), storage.readFileStream("bucket/dir/8").readAllBytes());
+      assertArrayEquals(large, storage.readFileStream("bucket/large").readAllBytes());
+      assertEquals(large.length, storage.getSize("bucket/large"));
+      assertEquals(1, storage.listBuckets().length);
+    }
+  }
+
+  @Test
+  void storesKeysTheFileSystemEncodingCannotName(@TempDir Path dir) throws Exception {
+    try (PackedFileOperations storage = open(dir)) {
+      storage.createDirectory("bucket");
+      storage.createDirectory("bucket/dêr");
+      storage.writeFile("bucket/café", bytes("coffee"));
+      assertArrayEquals(bytes("coffee"), storage.readFileStream("bucket/café").readAllBytes());
+      storage.delete("bucket/café");
+      assertFalse(storage.exists("bucket/café"));
+    }
+  }
+
+  @Test
+  void compactsSegmentsOfDeadRecords(@TempDir Path dir) throws Exception {
+    try (PackedFileOperations storage = open(dir)) {
+      storage.createDirectory("bucket");
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < 50; i++) {
+          storage.writeFile("bucket/" + i, bytes("round " + round));
+        }
+      }
+      storage.delete("bucket/0");
+      int segments = storage.getSegments();
+
+      storage.compact();
+
+      assertTrue(storage.getCompactedSegments() > 0);
+      assertTrue(storage.getSegments() < segments);
+      assertArrayEquals(bytes("round 4"), storage.readTempFile("bucket/49"));
+    }
+
+    try (PackedFileOperations storage = open(dir)) {
+      assertFalse(storage.exists("bucket/0"));
+      assertArrayEquals(bytes("round 4"), storage.readTempFile("bucket/1"));
+      assertEquals(49, storage.list("bucket").length);
+    }
+  }
+
+  @Test
+  void dropsARecordTornByACrash(@TempDir Path dir) throws Exception {
+    try (PackedFileOperations storage = open(dir)) {
+      storage.createDirectory("bucket");
+      storage.writeFile("bucket/kept", bytes("kept"));
+    }
+    try (Stream<Path> files = Files.list(dir.resolve(".segments"))) {
+      Path segment = files.max(Path::compareTo).orElseThrow();
+      Files.write(segment, new byte[] {1, 0, 9, 0, 0}, StandardOpenOption.APPEND);
+    }
+
+    try (PackedFileOperations storage = open(dir)) {
+      assertArrayEquals(bytes("kept"), storage.readTempFile("bucket/kept"));
+      storage.writeFile("bucket/after", bytes("after"));
+    }
+    try (PackedFileOperations storage = open(dir)) {
+      assertArrayEquals(bytes("after"), storage.readTempFile("bucket/after"));
+    }
+  }
+
+  private static PackedFileOperations open(Path dir) throws Exception {
+    return new PackedFileOperations(dir, 1024, 1024, Duration.ZERO);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,98 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardedFileOperationsTest {
+
+  @Test
+  void encodesKeysIntoSafeNames() {
+    String longKey = "deep/".repeat(100) + "file.txt";
+    for (String key : new String[] {"photo.jpg", ".hidden", "a b/c?d~e%f", "ünïcode", longKey}) {
+      String physical = ShardedFileOperations.toPhysicalPath("bucket/" + key);
+      String[] names = physical.split("/");
+      assertEquals("bucket", names[0]);
+      assertEquals(3, names[1].length());
+      for (int i = 2; i < names.length; i++) {
+        assertTrue(names[i].length() <= 255);
+        assertFalse(names[i].startsWith("."));
+        assertTrue(names[i].chars().allMatch(c -> c < 128));
+      }
+      String stored = physical.substring("bucket/xxx/".length());
+      assertEquals(key, ShardedFileOperations.decodeKey(stored));
+    }
+    assertEquals(
+        ShardedFileOperations.toPhysicalPath("bucket/dir"),
+        ShardedFileOperations.toPhysicalPath("bucket/dir/"));
+  }
+
+  @Test
+  void rebuildsTheKeyHierarchyFromShards(@TempDir Path dir) throws Exception {
+    String longKey = "nested/" + "x".repeat(600);
+    try (MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO)) {
+      FileOperations storage = open(dir, index);
+      storage.createDirectory("bucket");
+      for (int i = 0; i < 50; i++) {
+        storage.writeFile("bucket/" + i + ".jpg", bytes("image " + i));
+      }
+      storage.createParentDirectories("bucket/" + longKey);
+      storage.writeFile("bucket/" + longKey, bytes("long"));
+      storage.createDirectory("bucket/empty");
+      storage.createParentDirectories("bucket/gone/a");
+      storage.writeFile("bucket/gone/a", bytes("a"));
+      storage.delete("bucket/gone");
+
+      assertEquals(53, storage.list("bucket").length);
+      assertTrue(storage.exists("bucket/nested"));
+      assertFalse(storage.exists("bucket/gone/a"));
+    }
+    // No shard should hold more than a handful of the flat keys
+    try (Stream<Path> files = Files.list(dir.resolve("bucket"))) {
+      assertTrue(files.count() > 30);
+    }
+
+    deleteRecursively(dir.resolve(".index"));
+    try (MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO)) {
+      FileOperations storage = open(dir, index);
+      FileEntry[] entries = storage.list("bucket");
+      assertEquals(53, entries.length);
+      assertTrue(Arrays.stream(entries).anyMatch(e -> e.isDirectory() && e.path().equals("empty")));
+      assertTrue(storage.getLastModifiedTime("bucket/nested").toMillis() > 0);
+      assertArrayEquals(bytes("long"), storage.readFileStream("bucket/" + longKey).readAllBytes());
+      assertEquals(7, storage.getSize("bucket/7.jpg"));
+    }
+  }
+
+  @Test
+  void refusesADirectoryOfTheDefaultLayout(@TempDir Path dir) throws Exception {
+    Files.createDirectories(dir.resolve("bucket/key"));
+    try (MetadataIndex index = new MetadataIndex(dir.resolve(".index"), Duration.ZERO)) {
+      assertThrows(
+          StorageException.class,
+          () -> new ShardedFileOperations(new NioFileOperations(dir.toString()), index));
+    }
+  }
+
+  private static FileOperations open(Path dir, MetadataIndex index) throws StorageException {
+    FileOperations disk = new NioFileOperations(dir.toString());
+    return new IndexedFileOperations(new ShardedFileOperations(disk, index), index);
+  }
+
+  private static void deleteRecursively(Path path) throws Exception {
+    try (Stream<Path> files = Files.walk(path)) {
+      files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,111 @@
+package dev.totis.tinys3.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StorageSnapshotTest {
+
+  @Test
+  void restoresTheSnapshottedState() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    fileOps.createDirectory("bucket");
+    fileOps.writeFile("bucket/kept", bytes("kept"));
+    fileOps.writeFile("bucket/changed", bytes("before"));
+    StorageSnapshot snapshot = fileOps.snapshot();
+    long used = allocator.getUsedBytes();
+
+    fileOps.delete("bucket/kept");
+    fileOps.writeFile("bucket/changed", bytes("after"));
+    fileOps.writeFile("bucket/added", bytes("added"));
+    fileOps.restore(snapshot);
+
+    assertArrayEquals(bytes("kept"), fileOps.readTempFile("bucket/kept"));
+    assertArrayEquals(bytes("before"), fileOps.readTempFile("bucket/changed"));
+    assertFalse(fileOps.exists("bucket/added"));
+    assertEquals(used, allocator.getUsedBytes());
+
+    fileOps.delete("bucket/kept");
+    fileOps.restore(snapshot);
+    assertTrue(fileOps.exists("bucket/kept"));
+
+    snapshot.close();
+    assertThrows(IllegalStateException.class, () -> fileOps.restore(snapshot));
+    fileOps.delete("bucket/kept");
+    fileOps.delete("bucket/changed");
+    assertEquals(0, allocator.getUsedBytes());
+  }
+
+  @Test
+  void restoreDiscardsOrKeepsConcurrentWritesWithoutLeaking() throws Exception {
+    SlabAllocator allocator = new SlabAllocator();
+    InMemoryFileOperations fileOps = new InMemoryFileOperations(allocator);
+    fileOps.createDirectory("bucket");
+    StorageSnapshot empty = fileOps.snapshot();
+
+    AtomicBoolean done = new AtomicBoolean();
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      String key = "bucket/" + t;
+      writers.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    try {
+                      for (int i = 0; i < 20_000; i++) {
+                        fileOps.writeFile(key, bytes("value " + i));
+                      }
+                    } catch (StorageException e) {
+                      throw new RuntimeException(e);
+                    } finally {
+                      done.set(true);
+                    }
+                  }));
+    }
+    while (!done.get()) {
+      fileOps.restore(empty);
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    // Every write went into a map that the last restore released
+    fileOps.restore(empty);
+    assertEquals(0, allocator.getUsedBytes());
+  }
+
+  @Test
+  void roundTripsThroughAFile(@TempDir Path dir) throws Exception {
+    InMemoryFileOperations source = new InMemoryFileOperations();
+    source.createDirectory("bucket");
+    source.writeFile("bucket/a/one", bytes("one"));
+    source.writeFile("bucket/empty", new byte[0]);
+    source.writeTempFile(source.createTempDirectory("multipart-") + "/part-1", bytes("part"));
+    Path file = dir.resolve("fixtures.snapshot");
+    try (StorageSnapshot snapshot = source.snapshot()) {
+      snapshot.writeTo(file);
+    }
+
+    InMemoryFileOperations target = new InMemoryFileOperations();
+    StorageSnapshot loaded = StorageSnapshot.read(file);
+    target.restore(loaded);
+
+    assertEquals(4, loaded.size());
+    assertArrayEquals(bytes("one"), target.readTempFile("bucket/a/one"));
+    assertEquals(0, target.getSize("bucket/empty"));
+    assertEquals(
+        source.getLastModifiedTime("bucket/a/one"), target.getLastModifiedTime("bucket/a/one"));
+    assertEquals(1, target.listBuckets().length);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,76 @@
+package dev.totis.tinys3.log;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.S3Operation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccessLogTest {
+  @TempDir Path directory;
+
+  @Test
+  void writesOneLinePerRequest() throws Exception {
+    Path file = directory.resolve("access.log");
+    try (AccessLog log = new AccessLog(file)) {
+      log.record(entry("dir/my key.txt", 200, null));
+      log.record(entry("missing", 404, "NoSuchKey"));
+    }
+
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).startsWith("- bucket [01/Jan/2024:00:00:00 +0000] 127.0.0.1 - - "));
+    assertTrue(
+        lines.get(0).contains("REST.GET.OBJECT dir/my%20key.txt \"GET /bucket/key HTTP/1.1\""));
+    assertTrue(lines.get(1).contains(" 404 NoSuchKey 12 - 3 - \"-\" \"test-agent\" -"));
+  }
+
+  @Test
+  void rotatesBySize() throws Exception {
+    Path file = directory.resolve("access.log");
+    try (AccessLog log = new AccessLog(file, 100, 2)) {
+      for (int i = 0; i < 20; i++) {
+        log.record(entry("key" + i, 200, null));
+        Thread.sleep(2);
+      }
+    }
+
+    assertTrue(Files.exists(file));
+    assertTrue(Files.exists(directory.resolve("access.log.1")));
+    assertTrue(Files.exists(directory.resolve("access.log.2")));
+    assertFalse(Files.exists(directory.resolve("access.log.3")));
+  }
+
+  @Test
+  void ringBufferRejectsWhenFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(2);
+    assertTrue(buffer.offer(1));
+    assertTrue(buffer.offer(2));
+    assertFalse(buffer.offer(3));
+    assertEquals(Integer.valueOf(1), buffer.poll());
+    assertTrue(buffer.offer(3));
+    assertEquals(Integer.valueOf(2), buffer.poll());
+    assertEquals(Integer.valueOf(3), buffer.poll());
+    assertNull(buffer.poll());
+  }
+
+  private static AccessLog.Entry entry(String key, int status, String errorCode) {
+    return new AccessLog.Entry(
+        1_704_067_200_000L,
+        "127.0.0.1",
+        "GET",
+        "/bucket/key",
+        S3Operation.GET_OBJECT,
+        "bucket",
+        key,
+        status,
+        errorCode,
+        12,
+        0,
+        3,
+        "test-agent");
+  }
+}
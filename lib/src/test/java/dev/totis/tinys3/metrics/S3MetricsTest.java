@@ -0,0 +1,41 @@
+package dev.totis.tinys3.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.S3Operation;
+import org.junit.jupiter.api.Test;
+
+public class S3MetricsTest {
+
+  @Test
+  void scrapesRequestsByOperationAndStatus() {
+    S3Metrics metrics = new S3Metrics();
+    metrics.recordRequest(S3Operation.PUT_OBJECT, 200, null, 1024, 0, 2_000_000);
+    metrics.recordRequest(S3Operation.GET_OBJECT, 404, "NoSuchKey", 0, 120, 300_000);
+
+    String scrape = metrics.scrape();
+
+    assertTrue(scrape.contains("tinys3_requests_total{operation=\"PutObject\",status=\"200\"} 1"));
+    assertTrue(
+        scrape.contains("tinys3_errors_total{operation=\"GetObject\",code=\"NoSuchKey\"} 1"));
+    assertTrue(scrape.contains("tinys3_received_bytes_total{operation=\"PutObject\"} 1024"));
+    assertFalse(scrape.contains("operation=\"DeleteBucket\""));
+  }
+
+  @Test
+  void bucketsLatenciesCumulatively() {
+    S3Metrics metrics = new S3Metrics();
+    metrics.recordRequest(S3Operation.HEAD_OBJECT, 200, null, 0, 0, 2_000_000);
+
+    String scrape = metrics.scrape();
+
+    assertTrue(
+        scrape.contains(
+            "tinys3_request_duration_seconds_bucket{operation=\"HeadObject\",le=\"0.001\"} 0"));
+    assertTrue(
+        scrape.contains(
+            "tinys3_request_duration_seconds_bucket{operation=\"HeadObject\",le=\"+Inf\"} 1"));
+    assertTrue(
+        scrape.contains("tinys3_request_duration_seconds_count{operation=\"HeadObject\"} 1"));
+  }
+}
@@ -0,0 +1,50 @@
+package dev.totis.tinys3.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import dev.totis.tinys3.S3Operation;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class SlowRequestLogTest {
+
+  @Test
+  void keepsNewestRequestsOverThreshold() {
+    SlowRequestLog log = new SlowRequestLog(Duration.ZERO, 2);
+    for (String key : List.of("a", "b", "c")) {
+      log.record(S3Operation.GET_OBJECT, "GET", "/bucket/" + key, 200, finishedProfile());
+    }
+
+    List<SlowRequestLog.SlowRequest> entries = log.getEntries();
+    assertEquals(2, entries.size());
+    assertEquals("/bucket/c", entries.get(0).path());
+    assertEquals("/bucket/b", entries.get(1).path());
+  }
+
+  @Test
+  void ignoresFastRequests() {
+    SlowRequestLog log = new SlowRequestLog(Duration.ofHours(1), 10);
+    log.record(S3Operation.PUT_OBJECT, "PUT", "/bucket/key", 200, finishedProfile());
+
+    assertTrue(log.getEntries().isEmpty());
+  }
+
+  @Test
+  void measuresAllocationsOnPlatformThreads() {
+    RequestProfile profile = RequestProfile.start();
+    byte[] garbage = new byte[1 << 20];
+    profile.finish();
+
+    assertEquals(1 << 20, garbage.length);
+    assertTrue(profile.getAllocatedBytes() >= 1 << 20);
+    assertNull(RequestProfile.current());
+  }
+
+  private static RequestProfile finishedProfile() {
+    RequestProfile profile = RequestProfile.start();
+    profile.parsed();
+    profile.finish();
+    return profile;
+  }
+}
@@ -0,0 +1,17 @@
+plugins {
+    java
+    application
+}
+
+dependencies {
+    implementation(project(":tiny-s3-lib"))
+    implementation("org.hdrhistogram:HdrHistogram:2.2.2")
+}
+
+application {
+    mainClass = "dev.totis.tinys3.loadgen.LoadGenerator"
+}
+
+tasks.withType<PublishToMavenRepository>().configureEach {
+    enabled = false
+}
@@ -0,0 +1,63 @@
+package dev.totis.tinys3.loadgen;
+
+import java.util.Random;
+
+/**
+ * Picks key indexes out of a fixed key space. The zipfian variant follows the rejection-free
+ * generator from Gray et al., "Quickly Generating Billion-Record Synthetic Databases", which is
+ * also what YCSB uses, so hot keys stay hot across runs with the same key count.
+ */
+public class KeyChooser {
+
+  public enum Distribution {
+    UNIFORM,
+    ZIPFIAN
+  }
+
+  private final Distribution distribution;
+  private final int keys;
+  private final double theta;
+  private final double zetaN;
+  private final double alpha;
+  private final double eta;
+
+  public KeyChooser(Distribution distribution, int keys, double theta) {
+    this.distribution = distribution;
+    this.keys = keys;
+    this.theta = theta;
+    if (distribution == Distribution.ZIPFIAN) {
+      this.zetaN = zeta(keys, theta);
+      double zeta2 = zeta(2, theta);
+      this.alpha = 1.0 / (1.0 - theta);
+      this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta2 / zetaN);
+    } else {
+      this.zetaN = 0;
+      this.alpha = 0;
+      this.eta = 0;
+    }
+  }
+
+  public int next(Random random) {
+    if (distribution == Distribution.UNIFORM) {
+      return random.nextInt(keys);
+    }
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    if (uz < 1.0) {
+      return 0;
+    }
+    if (uz < 1.0 + Math.pow(0.5, theta)) {
+      return 1;
+    }
+    int index = (int) (keys * Math.pow(eta * u - eta + 1, alpha));
+    return Math.min(index, keys - 1);
+  }
+
+  private static double zeta(int n, double theta) {
+    double sum = 0;
+    for (int i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+}
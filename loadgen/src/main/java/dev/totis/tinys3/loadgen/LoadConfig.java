@@ -0,0 +1,121 @@
+package dev.totis.tinys3.loadgen;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Load generator settings, read from {@code --name=value} arguments. Without an endpoint an
+ * embedded {@code S3Server} is started on a free loopback port.
+ */
+public record LoadConfig(
+    String endpoint,
+    String accessKey,
+    String secretKey,
+    String region,
+    String bucket,
+    boolean inMemory,
+    Duration duration,
+    Duration warmup,
+    int concurrency,
+    int keys,
+    KeyChooser.Distribution distribution,
+    double zipfExponent,
+    WeightedChoice<Operation> mix,
+    WeightedChoice<Integer> sizes,
+    int multipartParts,
+    int multipartPartSize,
+    boolean preload) {
+
+  public static final String USAGE =
+      """
+      Options (all optional):
+        --endpoint=http://localhost:8000   target server, an embedded one is started when omitted
+        --access-key=... --secret-key=... --region=us-east-1
+        --bucket=loadgen
+        --storage=memory|disk              backend of the embedded server (default memory)
+        --duration=30s --warmup=5s
+        --concurrency=16
+        --keys=10000                       size of the key space
+        --distribution=uniform|zipfian     key popularity (default uniform)
+        --zipf-exponent=0.99
+        --mix=get:60,put:20,head:10,list:5,delete:5,multipart:0
+        --sizes=1KiB:70,64KiB:25,1MiB:5    object size distribution (size:weight)
+        --multipart-parts=3 --multipart-part-size=5MiB
+        --preload=true                     write every key once before measuring
+      """;
+
+  public static LoadConfig parse(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Unexpected argument: " + arg + "\n" + USAGE);
+      }
+      int equals = arg.indexOf('=');
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+
+    LoadConfig config =
+        new LoadConfig(
+            options.remove("endpoint"),
+            take(options, "access-key", "loadgen"),
+            take(options, "secret-key", "loadgen-secret"),
+            take(options, "region", "us-east-1"),
+            take(options, "bucket", "loadgen"),
+            !"disk".equals(take(options, "storage", "memory")),
+            parseDuration(take(options, "duration", "30s")),
+            parseDuration(take(options, "warmup", "5s")),
+            Integer.parseInt(take(options, "concurrency", "16")),
+            Integer.parseInt(take(options, "keys", "10000")),
+            KeyChooser.Distribution.valueOf(
+                take(options, "distribution", "uniform").toUpperCase(Locale.ROOT)),
+            Double.parseDouble(take(options, "zipf-exponent", "0.99")),
+            WeightedChoice.parse(
+                take(options, "mix", "get:60,put:20,head:10,list:5,delete:5"),
+                name -> Operation.valueOf(name.toUpperCase(Locale.ROOT))),
+            WeightedChoice.parse(
+                take(options, "sizes", "1KiB:70,64KiB:25,1MiB:5"), LoadConfig::parseSize),
+            Integer.parseInt(take(options, "multipart-parts", "3")),
+            parseSize(take(options, "multipart-part-size", "5MiB")),
+            Boolean.parseBoolean(take(options, "preload", "true")));
+
+    if (!options.isEmpty()) {
+      throw new IllegalArgumentException("Unknown options: " + options.keySet() + "\n" + USAGE);
+    }
+    return config;
+  }
+
+  private static String take(Map<String, String> options, String name, String defaultValue) {
+    String value = options.remove(name);
+    return value != null ? value : defaultValue;
+  }
+
+  static int parseSize(String value) {
+    String size = value.trim();
+    long multiplier = 1;
+    if (size.endsWith("KiB")) {
+      multiplier = 1024;
+    } else if (size.endsWith("MiB")) {
+      multiplier = 1024 * 1024;
+    } else if (size.endsWith("GiB")) {
+      multiplier = 1024 * 1024 * 1024;
+    }
+    String number = multiplier == 1 ? size : size.substring(0, size.length() - 3);
+    return Math.toIntExact(Long.parseLong(number) * multiplier);
+  }
+
+  static Duration parseDuration(String value) {
+    String duration = value.trim();
+    if (duration.endsWith("ms")) {
+      return Duration.ofMillis(Long.parseLong(duration.substring(0, duration.length() - 2)));
+    }
+    if (duration.endsWith("s")) {
+      return Duration.ofSeconds(Long.parseLong(duration.substring(0, duration.length() - 1)));
+    }
+    if (duration.endsWith("m")) {
+      return Duration.ofMinutes(Long.parseLong(duration.substring(0, duration.length() - 1)));
+    }
+    return Duration.ofSeconds(Long.parseLong(duration));
+  }
+}
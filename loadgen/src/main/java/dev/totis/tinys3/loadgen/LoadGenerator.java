@@ -0,0 +1,276 @@
+package dev.totis.tinys3.loadgen;
+
+import dev.totis.tinys3.S3Server;
+import dev.totis.tinys3.auth.Credentials;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Closed-loop load generator: every worker thread picks an operation from the mix, runs it to
+ * completion and records the latency, until the run is over. Latencies are kept per operation in
+ * HdrHistograms with microsecond resolution.
+ */
+public class LoadGenerator {
+  private static final int PREFIXES = 16;
+
+  private final LoadConfig config;
+  private final S3Client client;
+  private final KeyChooser keyChooser;
+  private final String[] keys;
+  private final Map<Integer, byte[]> bodies = new HashMap<>();
+  private final byte[] multipartPart;
+  private final Map<Operation, Recorder> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> notFound = new EnumMap<>(Operation.class);
+
+  public LoadGenerator(LoadConfig config, S3Client client) {
+    this.config = config;
+    this.client = client;
+    this.keyChooser =
+        new KeyChooser(config.distribution(), config.keys(), config.zipfExponent());
+    this.keys = new String[config.keys()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "p" + (i % PREFIXES) + "/key-" + i;
+    }
+    Random random = new Random(42);
+    for (int size : config.sizes().values()) {
+      byte[] body = new byte[size];
+      random.nextBytes(body);
+      bodies.put(size, body);
+    }
+    this.multipartPart = new byte[config.multipartPartSize()];
+    random.nextBytes(multipartPart);
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new Recorder(3));
+      errors.put(operation, new LongAdder());
+      notFound.put(operation, new LongAdder());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadConfig config;
+    try {
+      config = LoadConfig.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+
+    Credentials credentials =
+        new Credentials(config.accessKey(), config.secretKey(), config.region());
+    S3Server embedded = null;
+    Path storageDir = null;
+    URI endpoint;
+    if (config.endpoint() != null) {
+      endpoint = URI.create(config.endpoint());
+    } else {
+      int port = freePort();
+      S3Server.Builder builder =
+          new S3Server.Builder().withPort(port).withCredentials(credentials);
+      if (config.inMemory()) {
+        builder.withInMemory();
+      } else {
+        storageDir = Files.createTempDirectory("tinys3-loadgen-");
+        builder.withStorageDir(storageDir.toString());
+      }
+      embedded = builder.build();
+      embedded.start();
+      endpoint = URI.create("http://localhost:" + port);
+    }
+
+    try {
+      new LoadGenerator(config, new S3Client(endpoint, credentials)).run();
+    } finally {
+      if (embedded != null) {
+        embedded.stop();
+      }
+      if (storageDir != null) {
+        deleteRecursively(storageDir);
+      }
+    }
+  }
+
+  public void run() throws Exception {
+    int status = client.createBucket(config.bucket());
+    if (status != 200 && status != 409) {
+      throw new IllegalStateException("Could not create bucket, got status " + status);
+    }
+
+    if (config.preload()) {
+      long start = System.nanoTime();
+      preload();
+      System.out.printf(
+          "Preloaded %d keys in %d ms%n",
+          keys.length, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    if (!config.warmup().isZero()) {
+      runFor(config.warmup().toNanos());
+      latencies.values().forEach(Recorder::reset);
+      errors.values().forEach(LongAdder::reset);
+      notFound.values().forEach(LongAdder::reset);
+    }
+
+    long start = System.nanoTime();
+    runFor(config.duration().toNanos());
+    report(System.nanoTime() - start);
+  }
+
+  private void preload() throws Exception {
+    AtomicInteger next = new AtomicInteger();
+    runWorkers(
+        () -> {
+          Random random = ThreadLocalRandom.current();
+          int index;
+          while ((index = next.getAndIncrement()) < keys.length) {
+            int status = client.put(config.bucket(), keys[index], nextBody(random));
+            if (status != 200) {
+              throw new IllegalStateException("Preload of " + keys[index] + " got " + status);
+            }
+          }
+        });
+  }
+
+  private void runFor(long nanos) throws Exception {
+    long deadline = System.nanoTime() + nanos;
+    runWorkers(
+        () -> {
+          Random random = ThreadLocalRandom.current();
+          while (System.nanoTime() < deadline) {
+            Operation operation = config.mix().next(random);
+            String key = keys[keyChooser.next(random)];
+            long start = System.nanoTime();
+            int status;
+            try {
+              status = execute(operation, key, random);
+            } catch (IOException e) {
+              status = -1;
+            }
+            latencies.get(operation).recordValue((System.nanoTime() - start) / 1000);
+            if (status == 404) {
+              notFound.get(operation).increment();
+            } else if (status < 200 || status >= 300) {
+              errors.get(operation).increment();
+            }
+          }
+        });
+  }
+
+  private int execute(Operation operation, String key, Random random)
+      throws IOException, InterruptedException {
+    String bucket = config.bucket();
+    return switch (operation) {
+      case PUT -> client.put(bucket, key, nextBody(random));
+      case GET -> client.get(bucket, key);
+      case HEAD -> client.head(bucket, key);
+      case LIST -> client.list(bucket, "p" + random.nextInt(PREFIXES) + "/");
+      case DELETE -> client.delete(bucket, key);
+      case MULTIPART -> client.multipart(bucket, key, config.multipartParts(), multipartPart);
+    };
+  }
+
+  private byte[] nextBody(Random random) {
+    return bodies.get(config.sizes().next(random));
+  }
+
+  private void runWorkers(Worker worker) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(config.concurrency());
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < config.concurrency(); i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  worker.run();
+                  return null;
+                }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf(
+        "%n%d workers, %s keys, %.1f s%n",
+        config.concurrency(), config.distribution().name().toLowerCase(), seconds);
+    System.out.printf(
+        "%-10s %10s %10s %8s %8s %10s %10s %10s %10s%n",
+        "operation", "count", "ops/s", "errors", "404", "p50 ms", "p99 ms", "p999 ms", "max ms");
+
+    Histogram total = new Histogram(3);
+    long totalErrors = 0;
+    for (Operation operation : Operation.values()) {
+      Histogram histogram = latencies.get(operation).getIntervalHistogram();
+      if (histogram.getTotalCount() == 0) {
+        continue;
+      }
+      total.add(histogram);
+      totalErrors += errors.get(operation).sum();
+      printRow(
+          operation.name(),
+          histogram,
+          seconds,
+          errors.get(operation).sum(),
+          notFound.get(operation).sum());
+    }
+    printRow("TOTAL", total, seconds, totalErrors, -1);
+  }
+
+  private static void printRow(
+      String name, Histogram histogram, double seconds, long errors, long notFound) {
+    System.out.printf(
+        "%-10s %10d %10.1f %8d %8s %10.3f %10.3f %10.3f %10.3f%n",
+        name,
+        histogram.getTotalCount(),
+        histogram.getTotalCount() / seconds,
+        errors,
+        notFound < 0 ? "" : String.valueOf(notFound),
+        histogram.getValueAtPercentile(50) / 1000.0,
+        histogram.getValueAtPercentile(99) / 1000.0,
+        histogram.getValueAtPercentile(99.9) / 1000.0,
+        histogram.getMaxValue() / 1000.0);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void deleteRecursively(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @FunctionalInterface
+  private interface Worker {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,10 @@
+package dev.totis.tinys3.loadgen;
+
+public enum Operation {
+  PUT,
+  GET,
+  HEAD,
+  LIST,
+  DELETE,
+  MULTIPART
+}
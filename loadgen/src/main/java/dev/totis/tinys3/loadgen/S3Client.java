@@ -0,0 +1,143 @@
+package dev.totis.tinys3.loadgen;
+
+import dev.totis.tinys3.S3Utils;
+import dev.totis.tinys3.auth.Credentials;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Minimal SigV4 client for the handful of calls the load generator makes. */
+public class S3Client {
+  private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+  private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+  private static final Pattern ETAG = Pattern.compile("\"?([^\"]+)\"?");
+
+  private final HttpClient http;
+  private final URI endpoint;
+  private final Credentials credentials;
+
+  public S3Client(URI endpoint, Credentials credentials) {
+    this.endpoint = endpoint;
+    this.credentials = credentials;
+    this.http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+  }
+
+  public int createBucket(String bucket) throws IOException, InterruptedException {
+    return send("PUT", "/" + bucket, "", null).statusCode();
+  }
+
+  public int put(String bucket, String key, byte[] body) throws IOException, InterruptedException {
+    return send("PUT", "/" + bucket + "/" + key, "", body).statusCode();
+  }
+
+  public int get(String bucket, String key) throws IOException, InterruptedException {
+    return send("GET", "/" + bucket + "/" + key, "", null).statusCode();
+  }
+
+  public int head(String bucket, String key) throws IOException, InterruptedException {
+    return send("HEAD", "/" + bucket + "/" + key, "", null).statusCode();
+  }
+
+  public int list(String bucket, String prefix) throws IOException, InterruptedException {
+    return send("GET", "/" + bucket, "list-type=2&max-keys=1000&prefix=" + prefix, null)
+        .statusCode();
+  }
+
+  public int delete(String bucket, String key) throws IOException, InterruptedException {
+    return send("DELETE", "/" + bucket + "/" + key, "", null).statusCode();
+  }
+
+  /** Runs initiate, one upload per part and complete, returning the first failing status. */
+  public int multipart(String bucket, String key, int parts, byte[] part)
+      throws IOException, InterruptedException {
+    String path = "/" + bucket + "/" + key;
+    HttpResponse<byte[]> initiate = send("POST", path, "uploads", null);
+    if (initiate.statusCode() != 200) {
+      return initiate.statusCode();
+    }
+    Matcher uploadId =
+        UPLOAD_ID.matcher(new String(initiate.body(), StandardCharsets.UTF_8));
+    if (!uploadId.find()) {
+      return 500;
+    }
+
+    StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+    for (int partNumber = 1; partNumber <= parts; partNumber++) {
+      HttpResponse<byte[]> upload =
+          send("PUT", path, "partNumber=" + partNumber + "&uploadId=" + uploadId.group(1), part);
+      if (upload.statusCode() != 200) {
+        return upload.statusCode();
+      }
+      Matcher eTag = ETAG.matcher(upload.headers().firstValue("ETag").orElse(""));
+      complete
+          .append("<Part><PartNumber>")
+          .append(partNumber)
+          .append("</PartNumber><ETag>")
+          .append(eTag.matches() ? eTag.group(1) : "")
+          .append("</ETag></Part>");
+    }
+    complete.append("</CompleteMultipartUpload>");
+
+    return send(
+            "POST",
+            path,
+            "uploadId=" + uploadId.group(1),
+            complete.toString().getBytes(StandardCharsets.UTF_8))
+        .statusCode();
+  }
+
+  private HttpResponse<byte[]> send(String method, String path, String query, byte[] body)
+      throws IOException, InterruptedException {
+    String date = S3Utils.AMZ_DATE_FORMATTER.format(Instant.now());
+    String host = endpoint.getAuthority();
+    String canonicalRequest =
+        method
+            + "\n"
+            + path
+            + "\n"
+            + S3Utils.canonicalQuery(query)
+            + "\nhost:"
+            + host
+            + "\nx-amz-content-sha256:UNSIGNED-PAYLOAD\nx-amz-date:"
+            + date
+            + "\n\n"
+            + SIGNED_HEADERS
+            + "\nUNSIGNED-PAYLOAD";
+
+    String signature;
+    try {
+      String stringToSign = S3Utils.createStringToSign(canonicalRequest, date, credentials);
+      signature = S3Utils.calculateSignature(stringToSign, date, credentials);
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to sign request", e);
+    }
+
+    HttpRequest.BodyPublisher publisher =
+        body == null
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofByteArray(body);
+    HttpRequest request =
+        HttpRequest.newBuilder(endpoint.resolve(query.isEmpty() ? path : path + "?" + query))
+            .method(method, publisher)
+            .header("X-Amz-Date", date)
+            .header("X-Amz-Content-Sha256", "UNSIGNED-PAYLOAD")
+            .header(
+                "Authorization",
+                "AWS4-HMAC-SHA256 Credential="
+                    + credentials.accessKey()
+                    + "/"
+                    + S3Utils.getCredentialScope(date, credentials)
+                    + ", SignedHeaders="
+                    + SIGNED_HEADERS
+                    + ", Signature="
+                    + signature)
+            .build();
+    return http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+  }
+}
@@ -0,0 +1,65 @@
+package dev.totis.tinys3.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/** Picks values in proportion to their weights, e.g. an operation mix or a size distribution. */
+public class WeightedChoice<T> {
+  private final List<T> values;
+  private final double[] cumulativeWeights;
+
+  public WeightedChoice(List<T> values, List<Double> weights) {
+    if (values.isEmpty() || values.size() != weights.size()) {
+      throw new IllegalArgumentException("Need one weight per value");
+    }
+    this.values = List.copyOf(values);
+    this.cumulativeWeights = new double[weights.size()];
+    double total = 0;
+    for (int i = 0; i < weights.size(); i++) {
+      total += weights.get(i);
+      cumulativeWeights[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("Weights must add up to more than zero");
+    }
+  }
+
+  /** Parses {@code name:weight,name:weight}. */
+  public static <T> WeightedChoice<T> parse(String spec, Function<String, T> parser) {
+    List<T> values = new ArrayList<>();
+    List<Double> weights = new ArrayList<>();
+    for (String entry : spec.split(",")) {
+      String[] parts = entry.trim().split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Expected name:weight but got " + entry);
+      }
+      values.add(parser.apply(parts[0]));
+      weights.add(Double.parseDouble(parts[1]));
+    }
+    return new WeightedChoice<>(values, weights);
+  }
+
+  public T next(Random random) {
+    double target = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (target < cumulativeWeights[i]) {
+        return values.get(i);
+      }
+    }
+    return values.get(values.size() - 1);
+  }
+
+  public List<T> values() {
+    return values;
+  }
+
+  public double weightOf(T value) {
+    int index = values.indexOf(value);
+    if (index < 0) {
+      return 0;
+    }
+    return cumulativeWeights[index] - (index == 0 ? 0 : cumulativeWeights[index - 1]);
+  }
+}
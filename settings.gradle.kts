@@ -22,6 +22,9 @@ rootProject.name = "tiny-s3"
 
 include("lib")
 include("application")
+include("benchmarks")
+include("loadgen")
+include("junit")
 
 
 rootProject.children.forEach {